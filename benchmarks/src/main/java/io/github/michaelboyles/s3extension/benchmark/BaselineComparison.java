@@ -0,0 +1,95 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files, e.g. a saved baseline and the current run, and reports the change in each
+ * benchmark's score. Exits with status 1 if any benchmark regressed by more than the threshold.
+ * <pre>
+ * java -cp target/benchmarks.jar io.github.michaelboyles.s3extension.benchmark.BaselineComparison \
+ *     baseline.json results.json [thresholdPercent]
+ * </pre>
+ */
+public final class BaselineComparison {
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10;
+
+    private BaselineComparison() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison <baseline.json> <results.json> [thresholdPercent]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+
+        int regressions = 0;
+        System.out.printf("%-90s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Result> entry : new TreeMap<>(current).entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-90s %14s %14.3f %9s%n", entry.getKey(), "-", now.score, "new");
+                continue;
+            }
+            // positive is always better, whether the mode is throughput or time per operation
+            double improvement = now.higherIsBetter()
+                ? (now.score - before.score) / before.score * 100
+                : (before.score - now.score) / before.score * 100;
+            boolean regressed = improvement < -threshold;
+            if (regressed) regressions++;
+            System.out.printf("%-90s %14.3f %14.3f %+8.1f%%%s%n",
+                entry.getKey(), before.score, now.score, improvement, regressed ? "  REGRESSION" : "");
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Result> read(String path) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(path))) {
+            JsonArray array = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : array) {
+                JsonObject benchmark = element.getAsJsonObject();
+                StringBuilder name = new StringBuilder(benchmark.get("benchmark").getAsString());
+                if (benchmark.has("params")) {
+                    name.append(new TreeMap<>(benchmark.getAsJsonObject("params").asMap()));
+                }
+                String mode = benchmark.get("mode").getAsString();
+                double score = benchmark.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+                results.put(name.toString(), new Result(mode, score));
+            }
+        }
+        return results;
+    }
+
+    private static final class Result {
+        private final String mode;
+        private final double score;
+
+        private Result(String mode, double score) {
+            this.mode = mode;
+            this.score = score;
+        }
+
+        boolean higherIsBetter() {
+            return mode.equals("thrpt");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The fake S3 server and a connected wagon, shared by all benchmarks. The simulated network is controlled by the
+ * {@code latencyMillis} and {@code bandwidthBytesPerSecond} parameters, e.g. {@code -p latencyMillis=20}.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkServer {
+    @Param("0")
+    public long latencyMillis;
+
+    @Param("0")
+    public long bandwidthBytesPerSecond;
+
+    FakeS3Server server;
+    File tempDirectory;
+
+    @Setup
+    public void startServer() throws Exception {
+        server = new FakeS3Server(latencyMillis, bandwidthBytesPerSecond);
+        tempDirectory = Files.createTempDirectory("s3-benchmark").toFile();
+    }
+
+    @TearDown
+    public void stopServer() {
+        server.close();
+        File[] files = tempDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDirectory.delete();
+    }
+
+    S3Wagon connect(Map<String, String> config) throws Exception {
+        return Wagons.connect(server, config);
+    }
+
+    void putObject(String resourceName, int size) {
+        server.putObject(Wagons.BUCKET, Wagons.BASE_DIR + "/" + resourceName, randomBytes(size));
+    }
+
+    File newFile(String name, int size) throws Exception {
+        File file = new File(tempDirectory, name);
+        Files.write(file.toPath(), randomBytes(size));
+        return file;
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deploys a module the way Maven does, one file after another: each artifact followed by its checksums, then the
+ * metadata and its checksums. With deferred puts, the artifacts and their checksums are uploaded concurrently, and
+ * the metadata waits for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeployBenchmark {
+    private static final String BASE = "com/example/lib/1.0/lib-1.0";
+    private static final String[] ARTIFACTS = { ".pom", ".jar", "-sources.jar", "-javadoc.jar" };
+    private static final String[] CHECKSUMS = { ".md5", ".sha1" };
+
+    @Param({ "false", "true" })
+    public String deferredPuts;
+
+    private S3Wagon wagon;
+    private File jar;
+    private File pom;
+    private final byte[] checksum = new byte[40];
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        jar = server.newFile("lib.jar", 256 * 1024);
+        pom = server.newFile("lib.pom", 2 * 1024);
+        wagon = server.connect(Map.of("deferredPuts", deferredPuts));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public void deploy() throws Exception {
+        for (String artifact : ARTIFACTS) {
+            wagon.put(artifact.equals(".pom") ? pom : jar, BASE + artifact);
+            for (String suffix : CHECKSUMS) {
+                putChecksum(BASE + artifact + suffix);
+            }
+        }
+        wagon.putFromStream(new ByteArrayInputStream(checksum), "com/example/lib/maven-metadata.xml", checksum.length, -1);
+        for (String suffix : CHECKSUMS) {
+            putChecksum("com/example/lib/maven-metadata.xml" + suffix);
+        }
+    }
+
+    private void putChecksum(String resourceName) throws Exception {
+        wagon.putFromStream(new ByteArrayInputStream(checksum), resourceName, checksum.length, -1);
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes for artifacts which aren't in the repository, as Maven does when it looks for each dependency in a
+ * repository which doesn't have it. Every probe is for a different artifact, so the metadata cache can't answer it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExistenceIndexBenchmark {
+    @Param({ "false", "true" })
+    public String existenceIndex;
+
+    private S3Wagon wagon;
+    private long probe;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        File pom = server.newFile("lib.pom", 2 * 1024);
+        wagon = server.connect(Map.of("existenceIndex", existenceIndex));
+        for (int i = 0; i < 100; i++) {
+            wagon.put(pom, "com/example/lib" + i + "/1.0/lib" + i + "-1.0.pom");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public boolean resourceExists() {
+        probe++;
+        return wagon.resourceExists("com/example/missing" + probe + "/1.0/missing" + probe + "-1.0.pom");
+    }
+}
@@ -0,0 +1,523 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal, in-memory, S3-compatible HTTP server which supports just enough of the API for the wagon: GET (including
+ * ranges and conditional requests), HEAD, PUT (including aws-chunked bodies with trailing checksums, and conditional
+ * writes), copies, DELETE, multipart uploads, and ListObjectsV2. ACLs are accepted, and ignored. Buckets are addressed
+ * by path, and requests are not authenticated.
+ * <p>
+ * A fixed latency can be added to every request, and the bandwidth of each request and response body can be limited,
+ * to approximate a real network without needing one. A fraction of requests can also be made much slower than the
+ * rest, to imitate the long tail of S3's latency.
+ */
+public final class FakeS3Server implements AutoCloseable {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final int THROTTLE_CHUNK_SIZE = 16 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<Integer, StoredObject>> uploads = new ConcurrentHashMap<>();
+    private volatile double slowRequestFraction;
+    private volatile long slowRequestMillis;
+
+    /**
+     * @param latencyMillis added before every response
+     * @param bytesPerSecond the maximum rate of each request and response body, or zero for unlimited
+     */
+    public FakeS3Server(long latencyMillis, long bytesPerSecond) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        // otherwise small responses wait on delayed ACKs, which would dwarf the latency being measured
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-s3");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String endpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Store an object directly, bypassing HTTP.
+     */
+    public void putObject(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, new StoredObject(content, md5(content), Map.of(), null));
+    }
+
+    /**
+     * Make a random fraction of requests slow.
+     *
+     * @param fraction between 0 and 1
+     * @param extraMillis added to the latency of slow requests
+     */
+    public void setSlowRequests(double fraction, long extraMillis) {
+        this.slowRequestFraction = fraction;
+        this.slowRequestMillis = extraMillis;
+    }
+
+    public boolean hasObject(String bucket, String key) {
+        return objects.containsKey(bucket + "/" + key);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            sleep(latencyMillis);
+            if (slowRequestFraction > 0 && ThreadLocalRandom.current().nextDouble() < slowRequestFraction) {
+                sleep(slowRequestMillis);
+            }
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), StandardCharsets.UTF_8).substring(1);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            int slash = path.indexOf('/');
+            String bucket = slash == -1 ? path : path.substring(0, slash);
+            String key = slash == -1 ? "" : path.substring(slash + 1);
+            String method = exchange.getRequestMethod();
+
+            if (key.isEmpty() && method.equals("GET")) {
+                listObjects(exchange, bucket, query);
+            }
+            else if (method.equals("GET") || method.equals("HEAD")) {
+                getObject(exchange, bucket + "/" + key, method.equals("HEAD"));
+            }
+            else if (method.equals("PUT") && query.containsKey("uploadId")) {
+                uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+            }
+            else if (method.equals("PUT") && query.containsKey("acl")) {
+                exchange.getRequestBody().readAllBytes();
+                exchange.sendResponseHeaders(200, -1);
+            }
+            else if (method.equals("PUT") && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+                copyObject(exchange, bucket + "/" + key);
+            }
+            else if (method.equals("PUT")) {
+                putObject(exchange, bucket + "/" + key);
+            }
+            else if (method.equals("POST") && query.containsKey("uploads")) {
+                createMultipartUpload(exchange, bucket, key);
+            }
+            else if (method.equals("POST") && query.containsKey("uploadId")) {
+                completeMultipartUpload(exchange, bucket, key, query.get("uploadId"));
+            }
+            else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                exchange.sendResponseHeaders(204, -1);
+            }
+            else if (method.equals("DELETE")) {
+                objects.remove(bucket + "/" + key);
+                exchange.sendResponseHeaders(204, -1);
+            }
+            else {
+                sendError(exchange, 501, "NotImplemented", method + " is not supported");
+            }
+        }
+        catch (RuntimeException e) {
+            sendError(exchange, 500, "InternalError", String.valueOf(e));
+        }
+    }
+
+    private void getObject(HttpExchange exchange, String path, boolean isHead) throws IOException {
+        StoredObject object = objects.get(path);
+        Headers request = exchange.getRequestHeaders();
+        if (object == null) {
+            if (isHead) {
+                sendWithoutBody(exchange, 404);
+            }
+            else {
+                sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            }
+            return;
+        }
+        String ifMatch = request.getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(object.eTag)) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        String ifModifiedSince = request.getFirst("If-Modified-Since");
+        boolean notModified = ifNoneMatch != null
+            ? ifNoneMatch.equals(object.eTag)
+            : ifModifiedSince != null && !object.lastModified.isAfter(parseDate(ifModifiedSince));
+        Headers response = exchange.getResponseHeaders();
+        response.set("ETag", object.eTag);
+        if (object.cacheControl != null) {
+            response.set("Cache-Control", object.cacheControl);
+        }
+        response.set("Last-Modified", HTTP_DATE.format(ZonedDateTime.ofInstant(object.lastModified, ZoneOffset.UTC)));
+        if (notModified) {
+            sendWithoutBody(exchange, 304);
+            return;
+        }
+
+        int start = 0;
+        int end = object.content.length;
+        int status = 200;
+        String range = request.getFirst("Range");
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches()) {
+                sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            start = Integer.parseInt(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? end : Math.min(end, Integer.parseInt(matcher.group(2)) + 1);
+            if (start >= end) {
+                sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            status = 206;
+            response.set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + object.content.length);
+        }
+        else if ("ENABLED".equals(request.getFirst("x-amz-checksum-mode"))) {
+            object.checksums.forEach(response::set);
+        }
+        response.set("Accept-Ranges", "bytes");
+        if (isHead) {
+            response.set("Content-Length", String.valueOf(end - start));
+            sendWithoutBody(exchange, status);
+            return;
+        }
+        // zero would mean a chunked response
+        exchange.sendResponseHeaders(status, end > start ? end - start : -1);
+        writeThrottled(exchange.getResponseBody(), object.content, start, end);
+    }
+
+    /**
+     * Send the response to a HEAD request, or a 304. The JDK's server drops the connection after those, so the client
+     * is told not to reuse it. Otherwise it finds out on the next request, and retries with a backoff.
+     */
+    private static void sendWithoutBody(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private void putObject(HttpExchange exchange, String path) throws IOException {
+        Map<String, String> checksums = new HashMap<>();
+        byte[] content = readBody(exchange, checksums);
+        StoredObject existing = objects.get(path);
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if ((ifMatch != null && (existing == null || !ifMatch.equals(existing.eTag)))
+            || ("*".equals(ifNoneMatch) && existing != null)) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+        StoredObject object = new StoredObject(
+            content, md5(content), checksums, exchange.getRequestHeaders().getFirst("Cache-Control")
+        );
+        objects.put(path, object);
+        exchange.getResponseHeaders().set("ETag", object.eTag);
+        checksums.forEach(exchange.getResponseHeaders()::set);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    /**
+     * Copy an object, replacing its Cache-Control. Nothing else about it is kept.
+     */
+    private void copyObject(HttpExchange exchange, String path) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        Headers request = exchange.getRequestHeaders();
+        String source = URLDecoder.decode(request.getFirst("x-amz-copy-source"), StandardCharsets.UTF_8);
+        StoredObject object = objects.get(source.startsWith("/") ? source.substring(1) : source);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        String ifMatch = request.getFirst("x-amz-copy-source-if-match");
+        if (ifMatch != null && !ifMatch.equals(object.eTag)) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+        StoredObject copy = new StoredObject(object.content, object.eTag, object.checksums, request.getFirst("Cache-Control"));
+        objects.put(path, copy);
+        sendXml(exchange, 200, "<CopyObjectResult><ETag>" + escape(copy.eTag) + "</ETag></CopyObjectResult>");
+    }
+
+    private void createMultipartUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new ConcurrentHashMap<>());
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + escape(bucket) + "</Bucket><Key>"
+            + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+        Map<Integer, StoredObject> parts = uploads.get(uploadId);
+        if (parts == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        Map<String, String> checksums = new HashMap<>();
+        byte[] content = readBody(exchange, checksums);
+        StoredObject part = new StoredObject(content, md5(content), checksums, null);
+        parts.put(partNumber, part);
+        exchange.getResponseHeaders().set("ETag", part.eTag);
+        checksums.forEach(exchange.getResponseHeaders()::set);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String bucket, String key, String uploadId)
+        throws IOException
+    {
+        exchange.getRequestBody().readAllBytes();
+        Map<Integer, StoredObject> parts = uploads.remove(uploadId);
+        if (parts == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (StoredObject part : new TreeMap<>(parts).values()) {
+            content.write(part.content);
+        }
+        byte[] bytes = content.toByteArray();
+        String eTag = md5(bytes).replace("\"", "");
+        StoredObject object = new StoredObject(bytes, "\"" + eTag + "-" + parts.size() + "\"", Map.of(), null);
+        objects.put(bucket + "/" + key, object);
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult><Bucket>" + escape(bucket) + "</Bucket><Key>"
+            + escape(key) + "</Key><ETag>" + escape(object.eTag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        String startAfter = query.getOrDefault("continuation-token", "");
+        int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        String bucketPrefix = bucket + "/";
+
+        StringBuilder contents = new StringBuilder();
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : objects.tailMap(bucketPrefix + prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(bucketPrefix + prefix)) break;
+            String key = entry.getKey().substring(bucketPrefix.length());
+            if (key.compareTo(startAfter) <= 0) continue;
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            int delimiterIndex = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (delimiterIndex != -1) {
+                String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                if (commonPrefixes.add(commonPrefix)) count++;
+            }
+            else {
+                contents.append("<Contents><Key>").append(escape(key)).append("</Key><ETag>")
+                    .append(escape(entry.getValue().eTag)).append("</ETag><Size>").append(entry.getValue().content.length)
+                    .append("</Size></Contents>");
+                count++;
+            }
+            last = key;
+        }
+        StringBuilder xml = new StringBuilder("<ListBucketResult><Name>").append(escape(bucket)).append("</Name><Prefix>")
+            .append(escape(prefix)).append("</Prefix><KeyCount>").append(count).append("</KeyCount><MaxKeys>")
+            .append(maxKeys).append("</MaxKeys><IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>").append(escape(last)).append("</NextContinuationToken>");
+        }
+        xml.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix)).append("</Prefix></CommonPrefixes>");
+        }
+        xml.append("</ListBucketResult>");
+        sendXml(exchange, 200, xml.toString());
+    }
+
+    /**
+     * Read a request body, decoding it if it was sent with aws-chunked content encoding, in which case any checksums
+     * in the trailer are added to the map. Checksums sent as headers are added too.
+     */
+    private byte[] readBody(HttpExchange exchange, Map<String, String> checksums) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        headers.forEach((name, values) -> {
+            if (name.toLowerCase(Locale.ROOT).startsWith("x-amz-checksum-") && !name.equalsIgnoreCase("x-amz-checksum-algorithm")) {
+                checksums.put(name.toLowerCase(Locale.ROOT), values.get(0));
+            }
+        });
+        InputStream in = exchange.getRequestBody();
+        String encoding = headers.getFirst("Content-Encoding");
+        boolean chunked = headers.containsKey("x-amz-decoded-content-length")
+            || (encoding != null && encoding.contains("aws-chunked"));
+        if (!chunked) {
+            return readThrottled(in);
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(in);
+            int semicolon = line.indexOf(';');
+            int size = Integer.parseInt(semicolon == -1 ? line.trim() : line.substring(0, semicolon).trim(), 16);
+            if (size == 0) break;
+            byte[] chunk = in.readNBytes(size);
+            throttle(chunk.length);
+            content.write(chunk);
+            readLine(in);
+        }
+        String trailer;
+        while (!(trailer = readLine(in)).isEmpty()) {
+            int colon = trailer.indexOf(':');
+            String name = trailer.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            if (name.startsWith("x-amz-checksum-")) {
+                checksums.put(name, trailer.substring(colon + 1).trim());
+            }
+        }
+        // consume anything left, such as a trailer signature, or the server won't reuse the connection
+        in.transferTo(OutputStream.nullOutputStream());
+        return content.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private byte[] readThrottled(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[THROTTLE_CHUNK_SIZE];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            content.write(buffer, 0, length);
+            throttle(length);
+        }
+        return content.toByteArray();
+    }
+
+    private void writeThrottled(OutputStream out, byte[] content, int start, int end) throws IOException {
+        int position = start;
+        while (position < end) {
+            int length = Math.min(THROTTLE_CHUNK_SIZE, end - position);
+            out.write(content, position, length);
+            position += length;
+            throttle(length);
+        }
+    }
+
+    private void throttle(int bytes) {
+        if (bytesPerSecond > 0) {
+            sleep(bytes * 1000L / bytesPerSecond);
+        }
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>");
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) return query;
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals == -1 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals == -1 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            query.put(name, value);
+        }
+        return query;
+    }
+
+    private static Instant parseDate(String date) {
+        return ZonedDateTime.parse(date, HTTP_DATE).toInstant();
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            StringBuilder hex = new StringBuilder("\"");
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.append('"').toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class StoredObject {
+        private final byte[] content;
+        private final String eTag;
+        private final Map<String, String> checksums;
+        private final String cacheControl;
+        // S3 only has second precision
+        private final Instant lastModified = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+        private StoredObject(byte[] content, String eTag, Map<String, String> checksums, String cacheControl) {
+            this.content = content;
+            this.eTag = eTag;
+            this.checksums = checksums;
+            this.cacheControl = cacheControl;
+        }
+    }
+}
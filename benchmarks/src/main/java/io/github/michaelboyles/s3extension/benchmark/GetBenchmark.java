@@ -0,0 +1,54 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a single artifact of various sizes. The largest size exceeds the default parallel download threshold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+    @Param({ "1024", "1048576", "104857600" })
+    public int size;
+
+    private S3Wagon wagon;
+    private File destination;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        server.putObject("artifact.jar", size);
+        wagon = server.connect(Map.of());
+        destination = new File(server.tempDirectory, "downloaded.jar");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public long get() throws Exception {
+        wagon.get("artifact.jar", destination);
+        return destination.length();
+    }
+}
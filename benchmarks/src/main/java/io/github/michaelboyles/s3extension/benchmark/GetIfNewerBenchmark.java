@@ -0,0 +1,56 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks a metadata file for updates, as a -U build does, when it has and hasn't changed. Metadata caching is
+ * disabled so that every invocation goes to the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetIfNewerBenchmark {
+    @Param({ "true", "false" })
+    public boolean modified;
+
+    private S3Wagon wagon;
+    private File destination;
+    private long timestamp;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        server.putObject("com/example/maven-metadata.xml", 2048);
+        wagon = server.connect(Map.of("metadataCacheTtlSeconds", "0", "negativeMetadataCacheTtlSeconds", "0"));
+        destination = new File(server.tempDirectory, "maven-metadata.xml");
+        timestamp = modified ? 0 : System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public boolean getIfNewer() throws Exception {
+        return wagon.getIfNewer("com/example/maven-metadata.xml", destination, timestamp);
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a small file from a server where 2% of requests are 200ms slower than the rest, with and without hedging.
+ * Sampled, rather than averaged, so that the tail percentiles can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class HedgedGetBenchmark {
+    @Param({ "false", "true" })
+    public String hedgeGets;
+
+    private S3Wagon wagon;
+    private File destination;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        server.putObject("artifact-1.0.pom", 2048);
+        server.server.setSlowRequests(0.02, 200);
+        wagon = server.connect(Map.of("hedgeGets", hedgeGets));
+        destination = new File(server.tempDirectory, "downloaded.pom");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public long get() throws Exception {
+        wagon.get("artifact-1.0.pom", destination);
+        return destination.length();
+    }
+}
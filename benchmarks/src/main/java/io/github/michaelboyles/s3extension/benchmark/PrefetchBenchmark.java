@@ -0,0 +1,65 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves an artifact the way Maven does, one file after another: the POM, its checksum, the JAR and its checksum.
+ * With prefetching, the last three are fetched in the background as soon as the POM is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefetchBenchmark {
+    private static final String[] FILES = { ".pom", ".pom.sha1", ".jar", ".jar.sha1" };
+
+    @Param({ "false", "true" })
+    public String prefetch;
+
+    private S3Wagon wagon;
+    private File destination;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        for (String file : FILES) {
+            server.putObject("com/example/lib/1.0/lib-1.0" + file, file.endsWith(".jar") ? 256 * 1024 : 1024);
+        }
+        wagon = server.connect(Map.of(
+            "prefetch", prefetch, "metadataCacheTtlSeconds", "0", "negativeMetadataCacheTtlSeconds", "0"
+        ));
+        destination = new File(server.tempDirectory, "downloaded");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public long resolve() throws Exception {
+        long total = 0;
+        for (String file : FILES) {
+            wagon.get("com/example/lib/1.0/lib-1.0" + file, destination);
+            total += destination.length();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of transfer progress events, by downloading with and without a listener which, like Maven
+ * Resolver's checksum calculation, reads every byte it is given.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgressBenchmark {
+    @Param({ "1048576", "16777216" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean listener;
+
+    @Param({ "1", "65536" })
+    public String progressGranularityBytes;
+
+    private S3Wagon wagon;
+    private File destination;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        server.putObject("artifact.jar", size);
+        wagon = server.connect(Map.of("progressGranularityBytes", progressGranularityBytes));
+        if (listener) {
+            wagon.addTransferListener(new ConsumingListener());
+        }
+        destination = new File(server.tempDirectory, "downloaded.jar");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public long get() throws Exception {
+        wagon.get("artifact.jar", destination);
+        return destination.length();
+    }
+
+    private static final class ConsumingListener implements TransferListener {
+        // written so that the JIT can't eliminate the loop
+        private volatile long sink;
+
+        @Override
+        public void transferProgress(TransferEvent event, byte[] buffer, int length) {
+            long sum = 0;
+            for (int i = 0; i < length; i++) {
+                sum += buffer[i];
+            }
+            sink = sum + event.getTimestamp();
+        }
+
+        @Override
+        public void transferInitiated(TransferEvent event) {
+        }
+
+        @Override
+        public void transferStarted(TransferEvent event) {
+        }
+
+        @Override
+        public void transferCompleted(TransferEvent event) {
+        }
+
+        @Override
+        public void transferError(TransferEvent event) {
+        }
+
+        @Override
+        public void debug(String message) {
+        }
+    }
+}
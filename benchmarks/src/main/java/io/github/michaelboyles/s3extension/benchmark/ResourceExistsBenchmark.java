@@ -0,0 +1,57 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes for a key which does and doesn't exist, with and without the metadata cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceExistsBenchmark {
+    @Param({ "true", "false" })
+    public boolean exists;
+
+    @Param({ "0", "60" })
+    public String cacheTtlSeconds;
+
+    private S3Wagon wagon;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        if (exists) {
+            server.putObject("com/example/artifact-1.0.pom", 1024);
+        }
+        wagon = server.connect(Map.of(
+            "metadataCacheTtlSeconds", cacheTtlSeconds, "negativeMetadataCacheTtlSeconds", cacheTtlSeconds
+        ));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public boolean resourceExists() {
+        return wagon.resourceExists("com/example/artifact-1.0.pom");
+    }
+}
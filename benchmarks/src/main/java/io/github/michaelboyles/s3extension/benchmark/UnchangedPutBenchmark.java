@@ -0,0 +1,57 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads an artifact which S3 already has, as when a deploy is run again. It's most telling with limited bandwidth,
+ * e.g. {@code -p bandwidthBytesPerSecond=10485760}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnchangedPutBenchmark {
+    @Param({ "1048576", "16777216" })
+    public int size;
+
+    @Param({ "0", "1" })
+    public String skipUnchangedUploadThreshold;
+
+    private S3Wagon wagon;
+    private File source;
+
+    @Setup
+    public void setUp(BenchmarkServer server) throws Exception {
+        source = server.newFile("upload.jar", size);
+        wagon = server.connect(Map.of("skipUnchangedUploadThreshold", skipUnchangedUploadThreshold));
+        wagon.put(source, "com/example/upload.jar");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wagon.disconnect();
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        wagon.put(source, "com/example/upload.jar");
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.michaelboyles.s3extension.benchmark;
+
+import io.github.michaelboyles.s3extension.S3Wagon;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates wagons connected to a {@link FakeS3Server}.
+ */
+final class Wagons {
+    static final String BUCKET = "bench-bucket";
+    static final String BASE_DIR = "repo";
+
+    private Wagons() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param config server configuration, as it would be given in settings.xml
+     */
+    static S3Wagon connect(FakeS3Server server, Map<String, String> config) throws Exception {
+        S3Wagon wagon = new S3Wagon();
+        Map<String, String> allConfig = new HashMap<>();
+        allConfig.put("endpoint", server.endpoint());
+        allConfig.put("pathStyleAccess", "true");
+        allConfig.put("region", "us-east-1");
+        allConfig.putAll(config);
+        allConfig.forEach((name, value) -> configure(wagon, name, value));
+
+        AuthenticationInfo auth = new AuthenticationInfo();
+        auth.setUserName("benchmark");
+        auth.setPassword("benchmark");
+        wagon.connect(new Repository("benchmark", "s3://" + BUCKET + "/" + BASE_DIR), auth);
+        return wagon;
+    }
+
+    /**
+     * Set a field the same way Plexus does for settings.xml server configuration.
+     */
+    private static void configure(Object wagon, String name, String value) {
+        for (Class<?> type = wagon.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(wagon, convert(field.getType(), value));
+                return;
+            }
+            catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+            catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalArgumentException("No such configuration " + name);
+    }
+
+    private static Object convert(Class<?> type, String value) {
+        if (type == int.class) return Integer.parseInt(value);
+        if (type == long.class) return Long.parseLong(value);
+        if (type == boolean.class) return Boolean.parseBoolean(value);
+        return value;
+    }
+}
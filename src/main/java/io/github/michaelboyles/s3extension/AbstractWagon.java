@@ -1,9 +1,12 @@
 package io.github.michaelboyles.s3extension;
 
 import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
 import org.apache.maven.wagon.Wagon;
 import org.apache.maven.wagon.authentication.AuthenticationException;
 import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.authorization.AuthorizationException;
 import org.apache.maven.wagon.proxy.ProxyInfo;
 import org.apache.maven.wagon.proxy.ProxyInfoProvider;
 import org.apache.maven.wagon.repository.Repository;
@@ -102,12 +105,16 @@ abstract class AbstractWagon implements Wagon {
     }
 
     @Override
-    public List<String> getFileList(String destinationDirectory) {
+    public List<String> getFileList(String destinationDirectory)
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
         throw new UnsupportedOperationException("getFileList is not supported");
     }
 
     @Override
-    public void putDirectory(File sourceDirectory, String destinationDirectory) {
+    public void putDirectory(File sourceDirectory, String destinationDirectory)
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
         throw new UnsupportedOperationException("putDirectory is not supported");
     }
 }
@@ -0,0 +1,72 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtHttpClient;
+
+import java.time.Duration;
+import java.util.stream.Collectors;
+
+/**
+ * Builds CRT HTTP clients. The CRT isn't a dependency of the extension by default, because it brings native libraries
+ * for every platform, so this is kept apart from {@link HttpClientSettings}; it can only be loaded if the user added
+ * {@code aws-crt-client} to the classpath.
+ */
+final class CrtHttpClients {
+    private static final String CLIENT_CLASS = "software.amazon.awssdk.http.crt.AwsCrtHttpClient";
+
+    private CrtHttpClients() {
+        throw new UnsupportedOperationException();
+    }
+
+    static SdkHttpClient.Builder<?> newBuilder(HttpClientSettings settings) {
+        try {
+            Class.forName(CLIENT_CLASS, false, CrtHttpClients.class.getClassLoader());
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException(
+                "The crt HTTP client needs software.amazon.awssdk:aws-crt-client on the classpath of the extension", e
+            );
+        }
+        return Builders.newBuilder(settings);
+    }
+
+    /**
+     * Only loaded once the CRT is known to be there.
+     */
+    private static final class Builders {
+        static SdkHttpClient.Builder<?> newBuilder(HttpClientSettings settings) {
+            var builder = AwsCrtHttpClient.builder();
+            if (settings.connectTimeoutMillis() > 0) {
+                builder.connectionTimeout(Duration.ofMillis(settings.connectTimeoutMillis()));
+            }
+            if (settings.readTimeoutMillis() > 0) {
+                // the CRT has no read timeout. A connection which transfers nothing for that long is the equivalent
+                builder.connectionHealthConfiguration(health -> health
+                    .minimumThroughputInBps(1L)
+                    .minimumThroughputTimeout(Duration.ofMillis(settings.readTimeoutMillis()))
+                );
+            }
+            if (settings.maxConnections() > 0) builder.maxConcurrency(settings.maxConnections());
+            // connectionTtlSeconds and socketReceiveBufferSize aren't applied. The CRT only has a maximum idle time and
+            // the size of its own read buffer, which are different things
+            if (settings.proxyHost() != null) {
+                builder.proxyConfiguration(proxy -> proxy
+                    .scheme(settings.proxyScheme())
+                    .host(settings.proxyHost())
+                    .port(settings.proxyPort())
+                    .username(settings.proxyUserName())
+                    .password(settings.proxyPassword())
+                    // the CRT matches the ends of host names, so *.example.com is just .example.com
+                    .nonProxyHosts(
+                        settings.nonProxyHosts().stream()
+                            .map(host -> host.startsWith("*") ? host.substring(1) : host)
+                            .collect(Collectors.toSet())
+                    )
+                    .useSystemPropertyValues(false)
+                    .useEnvironmentVariableValues(false)
+                );
+            }
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.TransferFailedException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Uploads which a wagon has returned from before they finished. Maven deploys every file one at a time, waiting for
+ * each upload to finish before starting the next, so most of a deploy is spent waiting on round trips. Queueing
+ * uploads lets many run at once.
+ * <p>
+ * The queue is bounded by size, so a caller waits if it's full. A second upload of the same object waits for the
+ * first, so the last one wins as it would have anyway. Failures are kept until whoever queued the upload waits for it,
+ * and are then reported to them. Metadata must not be written until the files it refers to are, so a wagon waits for
+ * every queued upload to the bucket before it uploads metadata. That includes uploads queued by other wagons, since
+ * Maven may use several at once for the same repository; their failures stop the metadata too, but are left for the
+ * wagon which queued them to report as its own.
+ */
+final class DeferredPuts {
+    private static final DeferredPuts INSTANCE = new DeferredPuts();
+    private static final int DEFAULT_CONCURRENCY = 8;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        new DaemonThreadFactory("s3-deferred-put")
+    );
+    /** Uploads in the order they were queued. Finished ones are removed, unless they failed and haven't been reported */
+    private final List<Pending> pending = new ArrayList<>();
+    private long queuedBytes;
+
+    private DeferredPuts() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static DeferredPuts getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void setConcurrency(int concurrency) {
+        int threads = Math.max(concurrency, 1);
+        if (threads == executor.getMaximumPoolSize()) return;
+        // the core size may never be more than the maximum
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        }
+        else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Queue an upload. Waits first if the queue is full, or if the same object is already queued.
+     *
+     * @param owner whatever queued it, so it can wait for its own uploads
+     * @param bytes the size of the upload. One bigger than the whole queue is allowed, but only on its own
+     */
+    void submit(Object owner, String bucket, String key, long bytes, long maxQueuedBytes, Upload upload)
+        throws InterruptedException
+    {
+        long cost = Math.min(bytes, Math.max(maxQueuedBytes, 1));
+        Pending entry = new Pending(owner, bucket, key, cost);
+        synchronized (this) {
+            // checked together, so that two uploads of the same object can't both see that the other isn't queued
+            while (isQueued(bucket, key) || (queuedBytes > 0 && queuedBytes + cost > maxQueuedBytes)) {
+                wait();
+            }
+            queuedBytes += cost;
+            pending.add(entry);
+        }
+        executor.execute(() -> {
+            try {
+                upload.upload();
+                entry.done.complete(null);
+            }
+            catch (Exception e) {
+                entry.failure = e;
+                entry.done.completeExceptionally(e);
+            }
+            catch (Throwable t) {
+                entry.failure = new TransferFailedException(t.toString(), t);
+                entry.done.completeExceptionally(t);
+            }
+            finally {
+                finished(entry);
+            }
+        });
+    }
+
+    private boolean isQueued(String bucket, String key) {
+        for (Pending entry : pending) {
+            if (!entry.done.isDone() && entry.bucket.equals(bucket) && entry.key.equals(key)) return true;
+        }
+        return false;
+    }
+
+    private synchronized void finished(Pending entry) {
+        queuedBytes -= entry.cost;
+        if (!entry.done.isCompletedExceptionally()) {
+            pending.remove(entry);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait for every upload to the bucket queued so far, e.g. before uploading metadata which refers to them.
+     *
+     * @throws TransferFailedException if any of them failed, and no one else has reported it yet. Failures of uploads
+     * which another owner queued are left for that owner to report too
+     */
+    void awaitBucket(Object owner, String bucket) throws InterruptedException, TransferFailedException {
+        report(owner, await(p -> p.bucket.equals(bucket)));
+    }
+
+    /**
+     * Wait for an object's upload, if it's queued, e.g. so it can be downloaded again. Failures are left for someone
+     * else to report.
+     */
+    void awaitObject(String bucket, String key) throws InterruptedException {
+        await(p -> p.bucket.equals(bucket) && p.key.equals(key));
+    }
+
+    /**
+     * Wait for everything the owner queued.
+     *
+     * @throws TransferFailedException if any of them failed, and no one else has reported it yet
+     */
+    void awaitOwner(Object owner) throws InterruptedException, TransferFailedException {
+        report(owner, await(p -> p.owner == owner));
+    }
+
+    /**
+     * @return the uploads which were waited for
+     */
+    private List<Pending> await(Predicate<Pending> filter) throws InterruptedException {
+        List<Pending> waitingFor = new ArrayList<>();
+        synchronized (this) {
+            for (Pending entry : pending) {
+                if (filter.test(entry)) waitingFor.add(entry);
+            }
+        }
+        for (Pending entry : waitingFor) {
+            try {
+                entry.done.get();
+            }
+            catch (ExecutionException e) {
+                // collected below
+            }
+        }
+        return waitingFor;
+    }
+
+    private void report(Object owner, List<Pending> finished) throws TransferFailedException {
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        Map<String, Exception> othersFailures = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Pending entry : finished) {
+                if (!entry.done.isCompletedExceptionally()) continue;
+                if (entry.owner != owner) {
+                    if (pending.contains(entry)) othersFailures.put(entry.key, entry.failure);
+                }
+                else if (pending.remove(entry)) {
+                    failures.put(entry.key, entry.failure);
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw DirectoryUpload.summarise(failures);
+        }
+        if (!othersFailures.isEmpty()) {
+            TransferFailedException summary = DirectoryUpload.summarise(othersFailures);
+            throw new TransferFailedException(
+                "Uploads queued by another connection to the same bucket failed. " + summary.getMessage(), summary
+            );
+        }
+    }
+
+    interface Upload {
+        void upload() throws Exception;
+    }
+
+    private static final class Pending {
+        private final Object owner;
+        private final String bucket;
+        private final String key;
+        private final long cost;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile Exception failure;
+
+        Pending(Object owner, String bucket, String key, long cost) {
+            this.owner = owner;
+            this.bucket = bucket;
+            this.key = key;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.TransferFailedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Uploads every file in a directory tree, as a pipeline. The tree is walked lazily, and the walk is throttled so that
+ * at most {@code concurrency} files, and at most {@code maxInFlightBytes} bytes, are being uploaded at any time. A
+ * single file larger than the byte limit is allowed, but only on its own.
+ * <p>
+ * After the first failure no new uploads are started. Uploads already in flight are allowed to finish, then every
+ * failure is reported together.
+ */
+final class DirectoryUpload {
+    private final int concurrency;
+    private final long maxInFlightBytes;
+
+    DirectoryUpload(int concurrency, long maxInFlightBytes) {
+        this.concurrency = Math.max(concurrency, 1);
+        this.maxInFlightBytes = Math.max(maxInFlightBytes, 1);
+    }
+
+    /**
+     * @param uploader called once per file, with its path relative to the source directory, using '/' as separator
+     */
+    void upload(File sourceDirectory, FileUploader uploader) throws TransferFailedException, InterruptedException {
+        Path root = sourceDirectory.toPath();
+        Map<String, Exception> failures = new ConcurrentHashMap<>();
+        Semaphore slots = new Semaphore(concurrency);
+        ByteBudget budget = new ByteBudget(maxInFlightBytes);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("s3-put-directory"));
+        try (Stream<Path> tree = Files.walk(root)) {
+            Iterator<Path> paths = tree.filter(Files::isRegularFile).iterator();
+            while (paths.hasNext() && failures.isEmpty()) {
+                Path path = paths.next();
+                String relativePath = root.relativize(path).toString().replace(File.separatorChar, '/');
+                long cost = Math.min(Files.size(path), maxInFlightBytes);
+                slots.acquire();
+                try {
+                    budget.acquire(cost);
+                }
+                catch (InterruptedException e) {
+                    slots.release();
+                    throw e;
+                }
+                executor.execute(() -> {
+                    try {
+                        if (failures.isEmpty()) {
+                            uploader.upload(path.toFile(), relativePath);
+                        }
+                    }
+                    catch (Exception e) {
+                        failures.put(relativePath, e);
+                    }
+                    finally {
+                        budget.release(cost);
+                        slots.release();
+                    }
+                });
+            }
+        }
+        catch (IOException | UncheckedIOException e) {
+            failures.put(root.toString(), e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : e);
+        }
+        finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                executor.shutdownNow();
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw summarise(failures);
+        }
+    }
+
+    static TransferFailedException summarise(Map<String, Exception> failures) {
+        List<String> paths = new ArrayList<>(failures.keySet());
+        paths.sort(null);
+        StringBuilder message = new StringBuilder("Failed to upload ").append(paths.size()).append(" file(s):");
+        for (String path : paths) {
+            message.append("\n  ").append(path).append(": ").append(failures.get(path).getMessage());
+        }
+        TransferFailedException exception = new TransferFailedException(message.toString(), failures.get(paths.get(0)));
+        for (int i = 1; i < paths.size(); i++) {
+            exception.addSuppressed(failures.get(paths.get(i)));
+        }
+        return exception;
+    }
+
+    interface FileUploader {
+        void upload(File file, String relativePath) throws Exception;
+    }
+
+    /**
+     * A semaphore counted in bytes, which may exceed the range of an int.
+     */
+    private static final class ByteBudget {
+        private long available;
+
+        ByteBudget(long available) {
+            this.available = available;
+        }
+
+        synchronized void acquire(long bytes) throws InterruptedException {
+            while (available < bytes) {
+                wait();
+            }
+            available -= bytes;
+        }
+
+        synchronized void release(long bytes) {
+            available += bytes;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.michaelboyles.s3extension;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the ETag of the object which each local file was downloaded from, so that a later conditional GET can ask
+ * S3 to only send the object if it has changed. An ETag is only offered for a file if the file appears not to have
+ * been modified since it was downloaded.
+ * <p>
+ * Only files fetched by {@code getIfNewer} are remembered, since they're the ones which are checked again in place.
+ * Other downloads go to temporary files which Maven renames afterwards. At most {@value #MAX_ENTRIES} files are
+ * remembered, and the least recently used are forgotten first.
+ */
+final class ETagCache {
+    private static final int MAX_ENTRIES = 1_000;
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ETagCache() {
+        throw new UnsupportedOperationException();
+    }
+
+    static void put(File file, String eTag) {
+        if (eTag == null) return;
+        Entry entry = new Entry(eTag, file.length(), file.lastModified());
+        synchronized (entries) {
+            entries.put(file.getAbsolutePath(), entry);
+        }
+    }
+
+    /**
+     * @return the ETag of the object the file was downloaded from, or null if unknown
+     */
+    static String get(File file) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (entries) {
+            Entry entry = entries.get(file.getAbsolutePath());
+            if (entry == null) return null;
+            if (entry.length != length || entry.lastModified != lastModified) {
+                entries.remove(file.getAbsolutePath());
+                return null;
+            }
+            return entry.eTag;
+        }
+    }
+
+    private static final class Entry {
+        private final String eTag;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(String eTag, long length, long lastModified) {
+            this.eTag = eTag;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
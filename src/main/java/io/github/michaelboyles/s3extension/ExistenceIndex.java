@@ -0,0 +1,497 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An optional index of the paths in a repository, so that probes for objects which don't exist can be answered
+ * without asking S3. Maven looks for every dependency in every repository in turn, so most of the requests a build
+ * makes to a repository which only holds some of its dependencies are for objects which aren't there.
+ * <p>
+ * The index is split into shards by groupId, so a build only downloads the shards for the groups it uses, and deploys
+ * of different groups don't contend for the same shard. The directory of the groupId is the path without its
+ * artifactId, version and file name, or without its artifactId and file name for metadata. Each shard is a gzipped,
+ * sorted list of the paths which belong to its group, stored at {@code .s3-index/<group directory>/index} in the
+ * repository. A shard is downloaded once, and revalidated by ETag when it expires.
+ * <p>
+ * Paths are added before their objects are uploaded, with conditional writes so that concurrent deploys don't lose
+ * each other's paths. The index may therefore list an object which doesn't exist, which only costs the request it
+ * would have anyway, but not the other way round, as long as everything which uploads to the repository keeps it up to
+ * date. If a shard doesn't exist, nothing is known about its paths, and S3 is asked as usual. The first upload to a
+ * shard creates it from a listing of its directory, and {@link RebuildIndex} creates or repairs all of them at once.
+ * <p>
+ * If a shard can't be updated because others keep changing it first, it's marked as invalid rather than failing the
+ * upload. Nothing is known about the paths of an invalid shard, and it's left alone until it's rebuilt.
+ */
+final class ExistenceIndex {
+    static final String DIRECTORY = ".s3-index/";
+    private static final String SHARD_NAME = "index";
+    /** How many directories deep in its group's directory a path can be: artifactId, version, and then the file */
+    private static final int MAX_DEPTH = 3;
+    private static final String HEADER = "# s3-maven-extension index 1";
+    /** Follows the header of a shard which has been given up on */
+    private static final String INVALID = "# invalid";
+    private static final int MAX_WRITE_ATTEMPTS = 10;
+    private static final long BASE_BACKOFF_MILLIS = 20;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    /** Indexed along with each path, so that uploading its checksums afterwards doesn't need to change the index */
+    private static final List<String> CHECKSUM_SUFFIXES = List.of(".md5", ".sha1", ".sha256", ".sha512", ".asc");
+    private static final ExistenceIndex INSTANCE = new ExistenceIndex();
+
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+
+    ExistenceIndex() {
+    }
+
+    static ExistenceIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param ttlMillis how long to use a downloaded shard for before revalidating it
+     * @return false if the index says the object doesn't exist, or true if it may
+     */
+    boolean mayExist(S3Client s3, S3Location location, String key, long ttlMillis) {
+        String path = pathOf(location, key);
+        if (path == null) return true;
+        Shard shard = shard(location, shardDirectory(path));
+        synchronized (shard) {
+            if (shard.isExpired(ttlMillis)) {
+                try {
+                    shard.load(s3);
+                }
+                catch (IOException | RuntimeException e) {
+                    // don't try again until it expires
+                    shard.forget();
+                }
+            }
+            if (shard.names == null || shard.names.contains(path.substring(shard.directory.length()))) return true;
+        }
+        S3Metrics.getInstance().existenceIndexAbsent();
+        return false;
+    }
+
+    /**
+     * Add an object to the index, along with its checksums. Must be called before the object is uploaded.
+     *
+     * @param acl the canned ACL of the index, which should be the same as the repository's objects, or null
+     */
+    void add(S3Client s3, S3Location location, String key, ObjectCannedACL acl) throws IOException {
+        String path = pathOf(location, key);
+        if (path == null) return;
+        Shard shard = shard(location, shardDirectory(path));
+        String name = path.substring(shard.directory.length());
+        List<String> added = new ArrayList<>();
+        added.add(name);
+        if (!isChecksum(name)) {
+            for (String suffix : CHECKSUM_SUFFIXES) {
+                added.add(name + suffix);
+            }
+        }
+        synchronized (shard) {
+            // an invalid shard may have been rebuilt since
+            if (!shard.isLoaded() || shard.isInvalid()) {
+                shard.load(s3);
+            }
+            for (int attempt = 1; ; attempt++) {
+                if (shard.isInvalid()) return;
+                if (shard.names != null && shard.names.containsAll(added)) return;
+                // if there's no index yet, it has to start with whatever's already there
+                SortedSet<String> names = shard.names != null
+                    ? new TreeSet<>(shard.names)
+                    : list(s3, location, shard.directory);
+                names.addAll(added);
+                try {
+                    shard.write(s3, names, acl);
+                    return;
+                }
+                catch (S3Exception e) {
+                    // 412 means someone else changed it first, and 409 that they're changing it now
+                    if (e.statusCode() != 412 && e.statusCode() != 409) throw e;
+                    if (attempt >= MAX_WRITE_ATTEMPTS) {
+                        // Deleting it instead wouldn't do: the next upload would create it again from a listing,
+                        // which this object isn't in until it's uploaded
+                        shard.invalidate(s3, acl);
+                        System.err.println("Gave up adding to the existence index " + shard.key + ", which is now "
+                            + "ignored until RebuildIndex is run");
+                        return;
+                    }
+                    backOff(attempt);
+                    shard.load(s3);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite every shard from a listing of the repository. Paths which are indexed but weren't listed are kept
+     * unless pruning, since their objects may be being uploaded.
+     *
+     * @param prune whether to remove paths which weren't listed. Only safe when nothing is uploading
+     * @return the number of paths in each shard which was written, by directory
+     */
+    Map<String, Integer> rebuild(S3Client s3, S3Location location, boolean prune, ObjectCannedACL acl)
+        throws IOException
+    {
+        String base = location.directoryKey("");
+        Map<String, SortedSet<String>> listed = new TreeMap<>();
+        String indexPrefix = base + DIRECTORY;
+        forEachKey(s3, location.bucket(), base, key -> {
+            if (key.startsWith(indexPrefix)) {
+                // make sure that shards which are now empty are rewritten too
+                if (key.endsWith("/" + SHARD_NAME) || key.equals(indexPrefix + SHARD_NAME)) {
+                    String directory = key.substring(indexPrefix.length(), key.length() - SHARD_NAME.length());
+                    listed.computeIfAbsent(directory, d -> new TreeSet<>());
+                }
+                return;
+            }
+            String path = key.substring(base.length());
+            String directory = shardDirectory(path);
+            listed.computeIfAbsent(directory, d -> new TreeSet<>()).add(path.substring(directory.length()));
+        });
+
+        Map<String, Integer> written = new TreeMap<>();
+        for (Map.Entry<String, SortedSet<String>> entry : listed.entrySet()) {
+            Shard shard = shard(location, entry.getKey());
+            synchronized (shard) {
+                for (int attempt = 1; ; attempt++) {
+                    shard.load(s3);
+                    SortedSet<String> names = new TreeSet<>(entry.getValue());
+                    if (!prune && shard.names != null) {
+                        names.addAll(shard.names);
+                    }
+                    if (names.equals(shard.names) || (names.isEmpty() && shard.names == null && !shard.isInvalid())) {
+                        break;
+                    }
+                    try {
+                        if (names.isEmpty()) {
+                            shard.delete(s3);
+                        }
+                        else {
+                            shard.write(s3, names, acl);
+                        }
+                        written.put(entry.getKey(), names.size());
+                        break;
+                    }
+                    catch (S3Exception e) {
+                        if ((e.statusCode() != 412 && e.statusCode() != 409) || attempt >= MAX_WRITE_ATTEMPTS) throw e;
+                        backOff(attempt);
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Wait a random time before trying to write a shard again, up to a limit which doubles with each attempt, so that
+     * writers which conflicted once are unlikely to conflict again.
+     */
+    private static void backOff(int attempt) throws IOException {
+        long limit = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to update the existence index");
+        }
+    }
+
+    /**
+     * Whether the path is one of the checksums indexed along with another path, which have no checksums of their own
+     */
+    private static boolean isChecksum(String path) {
+        for (String suffix : CHECKSUM_SUFFIXES) {
+            if (path.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    private Shard shard(S3Location location, String directory) {
+        String base = location.directoryKey("");
+        String key = base + DIRECTORY + directory + SHARD_NAME;
+        return shards.computeIfAbsent(
+            location.bucket() + '/' + key, k -> new Shard(location.bucket(), key, directory)
+        );
+    }
+
+    /**
+     * @return the path of the object in the repository, or null if it can't be indexed
+     */
+    private static String pathOf(S3Location location, String key) {
+        String base = location.directoryKey("");
+        if (!key.startsWith(base)) return null;
+        String path = key.substring(base.length());
+        return path.isEmpty() || path.startsWith(DIRECTORY) ? null : path;
+    }
+
+    /**
+     * @return the directory of the groupId of the path, which names its shard. It's empty, or ends with a '/'
+     */
+    static String shardDirectory(String path) {
+        int levels = S3Wagon.isMetadata(path.substring(path.lastIndexOf('/') + 1)) ? MAX_DEPTH - 1 : MAX_DEPTH;
+        int end = path.length();
+        for (int i = 0; i < levels && end >= 0; i++) {
+            end = path.lastIndexOf('/', end - 1);
+        }
+        return end < 0 ? "" : path.substring(0, end + 1);
+    }
+
+    /**
+     * List the paths which belong in a shard. They're never more than a few directories below its group's, so only that
+     * much is listed, not the groups nested in it.
+     *
+     * @return the paths, relative to the group's directory
+     */
+    private static SortedSet<String> list(S3Client s3, S3Location location, String directory) {
+        String base = location.directoryKey("");
+        SortedSet<String> names = new TreeSet<>();
+        forEachKey(s3, location.bucket(), base + directory, MAX_DEPTH, base + DIRECTORY, key -> {
+            String path = key.substring(base.length());
+            if (shardDirectory(path).equals(directory)) {
+                names.add(path.substring(directory.length()));
+            }
+        });
+        return names;
+    }
+
+    private static void forEachKey(S3Client s3, String bucket, String prefix, Consumer<String> consumer) {
+        var request = ListObjectsV2Request.builder()
+            .bucket(bucket)
+            .prefix(prefix)
+            .build();
+        for (ListObjectsV2Response page : s3.listObjectsV2Paginator(request)) {
+            for (S3Object object : page.contents()) {
+                // skip the empty "directory marker" objects created by some tools
+                if (!object.key().endsWith("/")) {
+                    consumer.accept(object.key());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param depth how many directories deep to list, where 1 is only the keys directly under the prefix
+     * @param excluded a directory not to list
+     */
+    private static void forEachKey(S3Client s3, String bucket, String prefix, int depth, String excluded,
+                                   Consumer<String> consumer) {
+        var request = ListObjectsV2Request.builder()
+            .bucket(bucket)
+            .prefix(prefix)
+            .delimiter("/")
+            .build();
+        for (ListObjectsV2Response page : s3.listObjectsV2Paginator(request)) {
+            for (S3Object object : page.contents()) {
+                if (!object.key().endsWith("/")) {
+                    consumer.accept(object.key());
+                }
+            }
+            if (depth > 1) {
+                for (CommonPrefix directory : page.commonPrefixes()) {
+                    if (!directory.prefix().equals(excluded)) {
+                        forEachKey(s3, bucket, directory.prefix(), depth - 1, excluded, consumer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The paths of the objects in a group, as far as this JVM knows.
+     */
+    private static final class Shard {
+        private final String bucket;
+        private final String key;
+        /** The group's directory, relative to the repository */
+        private final String directory;
+        /** Paths relative to the directory, or null if there's no index, or it's invalid */
+        private Set<String> names;
+        private String eTag;
+        private boolean invalid;
+        private long loadedAt;
+        private boolean loaded;
+
+        Shard(String bucket, String key, String directory) {
+            this.bucket = bucket;
+            this.key = key;
+            this.directory = directory;
+        }
+
+        boolean isLoaded() {
+            return loaded;
+        }
+
+        boolean isInvalid() {
+            return invalid;
+        }
+
+        boolean isExpired(long ttlMillis) {
+            return !loaded || System.nanoTime() - loadedAt >= TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+
+        /**
+         * Download the shard, unless it hasn't changed since it was last downloaded.
+         */
+        void load(S3Client s3) throws IOException {
+            GetObjectRequest.Builder request = GetObjectRequest.builder().bucket(bucket).key(key);
+            if (names != null) {
+                request.ifNoneMatch(eTag);
+            }
+            try {
+                ResponseBytes<GetObjectResponse> response = s3.getObjectAsBytes(request.build());
+                names = parse(response.asByteArray());
+                eTag = response.response().eTag();
+                invalid = names == null;
+                S3Metrics.getInstance().existenceIndexDownloaded();
+            }
+            catch (NoSuchKeyException e) {
+                names = null;
+                eTag = null;
+                invalid = false;
+            }
+            catch (S3Exception e) {
+                if (e.statusCode() != 304) throw e;
+            }
+            loadedAt = System.nanoTime();
+            loaded = true;
+        }
+
+        /**
+         * Act as if there's no index until it expires.
+         */
+        void forget() {
+            names = null;
+            eTag = null;
+            invalid = false;
+            loadedAt = System.nanoTime();
+            loaded = true;
+        }
+
+        /**
+         * Replace the shard, as long as no one else has changed it since it was loaded.
+         *
+         * @throws S3Exception with status 412 if someone else changed it
+         */
+        void write(S3Client s3, SortedSet<String> names, ObjectCannedACL acl) throws IOException {
+            PutObjectRequest.Builder request = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .acl(acl)
+                .cacheControl("no-cache")
+                .contentType("application/gzip");
+            if (eTag != null) {
+                request.ifMatch(eTag);
+            }
+            else {
+                request.ifNoneMatch("*");
+            }
+            String newETag = s3.putObject(request.build(), RequestBody.fromBytes(format(names))).eTag();
+            this.names = Collections.unmodifiableSet(names);
+            this.eTag = newETag;
+            this.invalid = false;
+            this.loadedAt = System.nanoTime();
+            this.loaded = true;
+            S3Metrics.getInstance().existenceIndexWritten();
+        }
+
+        /**
+         * Replace the shard, whatever it holds now, with one which says nothing is known about its paths.
+         */
+        void invalidate(S3Client s3, ObjectCannedACL acl) throws IOException {
+            PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .acl(acl)
+                .cacheControl("no-cache")
+                .contentType("application/gzip")
+                .build();
+            String newETag = s3.putObject(request, RequestBody.fromBytes(format(null))).eTag();
+            this.names = null;
+            this.eTag = newETag;
+            this.invalid = true;
+            this.loadedAt = System.nanoTime();
+            this.loaded = true;
+        }
+
+        void delete(S3Client s3) {
+            s3.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(key).build());
+            this.names = null;
+            this.eTag = null;
+            this.invalid = false;
+        }
+
+        /**
+         * @param names the paths, or null for an invalid shard
+         */
+        private static byte[] format(SortedSet<String> names) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+                out.write(HEADER);
+                out.write('\n');
+                for (String name : names != null ? names : List.of(INVALID)) {
+                    out.write(name);
+                    out.write('\n');
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return the paths, or null if the shard is invalid
+         */
+        private static Set<String> parse(byte[] content) throws IOException {
+            List<String> names = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(content)), StandardCharsets.UTF_8
+            ))) {
+                if (!HEADER.equals(in.readLine())) {
+                    throw new IOException("Unsupported index format");
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals(INVALID)) return null;
+                    if (!line.isEmpty()) names.add(line);
+                }
+            }
+            return Collections.unmodifiableSet(new TreeSet<>(names));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends GET requests which are hedged: if the response hasn't started to arrive within a threshold, the same request
+ * is sent again, and whichever responds first is used. The other is aborted. S3 latency has a long tail, and a single
+ * slow response to a small file can hold up the resolution of everything which depends on it.
+ * <p>
+ * The threshold is a percentile of the recent time-to-first-byte of GETs, so it adapts to the network. Hedging is
+ * limited by a budget: every GET earns a fraction of a hedge, and every hedge spends a whole one, so the extra
+ * requests can never be more than that fraction of all requests. The budget can be saved up, but only a little, so
+ * that a slow patch can't trigger a burst of hedges.
+ */
+final class HedgedGet {
+    private static final HedgedGet INSTANCE = new HedgedGet();
+    private static final int WINDOW_SIZE = 1024;
+    private static final int MIN_SAMPLES = 32;
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final double MAX_SAVED_HEDGES = 10;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("s3-hedged-get"));
+    private final long[] window = new long[WINDOW_SIZE];
+    private int samples;
+    private int nextSample;
+    private long[] sorted = new long[0];
+    private int samplesSinceSort;
+    private double savedHedges;
+
+    HedgedGet() {
+    }
+
+    static HedgedGet getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param percentile the percentile of the recent time-to-first-byte after which to hedge, e.g. 95
+     * @param budgetPercent the maximum number of hedges, as a percentage of requests
+     */
+    ResponseInputStream<GetObjectResponse> getObject(S3Client s3, GetObjectRequest request, double percentile,
+                                                     double budgetPercent) {
+        long thresholdNanos = thresholdNanos(percentile, budgetPercent);
+        Attempt primary = start(s3, request);
+        if (thresholdNanos < 0) {
+            return await(primary);
+        }
+        try {
+            return primary.result.get(thresholdNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e) {
+            // slow, so hedge
+        }
+        catch (InterruptedException e) {
+            primary.cancel();
+            throw interrupted();
+        }
+        catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+        if (!spendHedge()) {
+            return await(primary);
+        }
+        S3Metrics.getInstance().hedgeSent();
+        Attempt hedge = start(s3, request);
+        Attempt winner = first(primary, hedge);
+        (winner == primary ? hedge : primary).cancel();
+        if (winner == hedge) {
+            S3Metrics.getInstance().hedgeWon();
+        }
+        return await(winner);
+    }
+
+    private Attempt start(S3Client s3, GetObjectRequest request) {
+        Attempt attempt = new Attempt(s3, request);
+        executor.execute(attempt);
+        return attempt;
+    }
+
+    /**
+     * @return the attempt which completed first. A response from S3, even an error, is definitive, but a failure to
+     * get one, e.g. a dropped connection, is not if the other attempt might still succeed
+     */
+    private static Attempt first(Attempt a, Attempt b) {
+        try {
+            CompletableFuture.anyOf(a.result, b.result).get();
+        }
+        catch (ExecutionException e) {
+            // look at which one below
+        }
+        catch (InterruptedException e) {
+            a.cancel();
+            b.cancel();
+            throw interrupted();
+        }
+        Attempt done = a.result.isDone() ? a : b;
+        Attempt other = done == a ? b : a;
+        if (done.result.isCompletedExceptionally() && !isServiceResponse(done) && !other.result.isDone()) {
+            return other;
+        }
+        return done;
+    }
+
+    private static boolean isServiceResponse(Attempt attempt) {
+        try {
+            attempt.result.getNow(null);
+            return true;
+        }
+        catch (RuntimeException e) {
+            return e.getCause() instanceof SdkServiceException;
+        }
+    }
+
+    private static ResponseInputStream<GetObjectResponse> await(Attempt attempt) {
+        try {
+            return attempt.result.get();
+        }
+        catch (InterruptedException e) {
+            attempt.cancel();
+            throw interrupted();
+        }
+        catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IllegalStateException(cause);
+    }
+
+    private static AbortedException interrupted() {
+        Thread.currentThread().interrupt();
+        return AbortedException.builder().message("Interrupted while waiting for a GET").build();
+    }
+
+    /**
+     * Earn a fraction of a hedge for this request, and work out how long to wait before hedging it.
+     *
+     * @return the threshold, or -1 if there aren't enough samples yet to know what's slow
+     */
+    private synchronized long thresholdNanos(double percentile, double budgetPercent) {
+        savedHedges = Math.min(savedHedges + budgetPercent / 100, MAX_SAVED_HEDGES);
+        if (samples < MIN_SAMPLES) return -1;
+        if (samplesSinceSort >= RECOMPUTE_EVERY || sorted.length == 0) {
+            sorted = Arrays.copyOf(window, samples);
+            Arrays.sort(sorted);
+            samplesSinceSort = 0;
+        }
+        int index = (int) Math.ceil(sorted.length * Math.min(Math.max(percentile, 0), 100) / 100) - 1;
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+
+    private synchronized boolean spendHedge() {
+        if (savedHedges < 1) return false;
+        savedHedges--;
+        return true;
+    }
+
+    private synchronized void recordFirstByte(long nanos) {
+        window[nextSample] = nanos;
+        nextSample = (nextSample + 1) % WINDOW_SIZE;
+        samples = Math.min(samples + 1, WINDOW_SIZE);
+        samplesSinceSort++;
+    }
+
+    /**
+     * One request. The sync client blocks until the response headers arrive, so it's run on its own thread.
+     */
+    private final class Attempt implements Runnable {
+        private final S3Client s3;
+        private final GetObjectRequest request;
+        private final CompletableFuture<ResponseInputStream<GetObjectResponse>> result = new CompletableFuture<>();
+        private Thread thread;
+        private boolean cancelled;
+
+        Attempt(S3Client s3, GetObjectRequest request) {
+            this.s3 = s3;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) return;
+                thread = Thread.currentThread();
+            }
+            long start = System.nanoTime();
+            try {
+                ResponseInputStream<GetObjectResponse> stream = s3.getObject(request);
+                recordFirstByte(System.nanoTime() - start);
+                synchronized (this) {
+                    if (cancelled) {
+                        stream.abort();
+                    }
+                    else {
+                        result.complete(stream);
+                    }
+                }
+            }
+            catch (Throwable t) {
+                if (t instanceof SdkServiceException) {
+                    // e.g. 304 or 404, which are responses all the same
+                    recordFirstByte(System.nanoTime() - start);
+                }
+                result.completeExceptionally(t);
+            }
+            finally {
+                synchronized (this) {
+                    thread = null;
+                }
+                // don't let an interrupt from cancel() leak into the next task on this thread
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Abort the request, whether it's still waiting for a response or already has one.
+         */
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (thread != null) thread.interrupt();
+            }
+            result.thenAccept(ResponseInputStream::abort);
+        }
+    }
+}
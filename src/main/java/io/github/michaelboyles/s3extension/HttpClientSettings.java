@@ -0,0 +1,465 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.config.Lookup;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLInitializationException;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.protocol.HttpContext;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryMode;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.SystemPropertyTlsKeyManagersProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.apache.internal.conn.SdkTlsSocketFactory;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.retries.api.RetryStrategy;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * How to build the HTTP client of an {@link software.amazon.awssdk.services.s3.S3Client}, and how it retries. Part of
+ * the {@link S3ClientKey}, so clients are only shared between repositories which configure them the same way.
+ * <p>
+ * Not every implementation supports every setting. Those which an implementation doesn't support are ignored.
+ */
+final class HttpClientSettings {
+    static final HttpClientSettings DEFAULT = builder().build();
+
+    enum Implementation {
+        APACHE, URL_CONNECTION, CRT;
+
+        static Implementation parse(String name) {
+            if (name == null || name.isBlank()) return APACHE;
+            switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "apache": return APACHE;
+                case "urlconnection": case "url-connection": return URL_CONNECTION;
+                case "crt": return CRT;
+                default: throw new IllegalArgumentException(
+                    "Unknown HTTP client " + name + ". Expected apache, urlconnection or crt"
+                );
+            }
+        }
+    }
+
+    private final Implementation implementation;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final int maxConnections;
+    private final long connectionTtlMillis;
+    private final int socketSendBufferSize;
+    private final int socketReceiveBufferSize;
+    private final RetryMode retryMode;
+    private final int maxAttempts;
+    private final String proxyScheme;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final String proxyUserName;
+    private final String proxyPassword;
+    private final Set<String> nonProxyHosts;
+
+    private HttpClientSettings(Builder builder) {
+        this.implementation = builder.implementation;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.readTimeoutMillis = builder.readTimeoutMillis;
+        this.maxConnections = builder.maxConnections;
+        this.connectionTtlMillis = builder.connectionTtlMillis;
+        this.socketSendBufferSize = builder.socketSendBufferSize;
+        this.socketReceiveBufferSize = builder.socketReceiveBufferSize;
+        this.retryMode = builder.retryMode;
+        this.maxAttempts = builder.maxAttempts;
+        this.proxyScheme = builder.proxyScheme;
+        this.proxyHost = builder.proxyHost;
+        this.proxyPort = builder.proxyPort;
+        this.proxyUserName = builder.proxyUserName;
+        this.proxyPassword = builder.proxyPassword;
+        this.nonProxyHosts = builder.nonProxyHosts;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    SdkHttpClient.Builder<?> newHttpClient() {
+        switch (implementation) {
+            case URL_CONNECTION: return newUrlConnectionClient();
+            case CRT: return CrtHttpClients.newBuilder(this);
+            default: return newApacheClient();
+        }
+    }
+
+    private SdkHttpClient.Builder<?> newApacheClient() {
+        var builder = ApacheHttpClient.builder();
+        if (connectTimeoutMillis > 0) builder.connectionTimeout(Duration.ofMillis(connectTimeoutMillis));
+        if (readTimeoutMillis > 0) builder.socketTimeout(Duration.ofMillis(readTimeoutMillis));
+        if (maxConnections > 0) builder.maxConnections(maxConnections);
+        if (connectionTtlMillis > 0) builder.connectionTimeToLive(Duration.ofMillis(connectionTtlMillis));
+        if (socketSendBufferSize > 0 || socketReceiveBufferSize > 0) {
+            // the SDK won't take a route planner as well as a proxy, so through a proxy only direct HTTPS is sized
+            if (proxyHost == null) builder.httpRoutePlanner(new BufferSizingRoutePlanner(socketFactories()));
+            else builder.socketFactory(socketFactories().lookup("https"));
+        }
+        if (proxyHost != null) {
+            builder.proxyConfiguration(
+                software.amazon.awssdk.http.apache.ProxyConfiguration.builder()
+                    .endpoint(proxyEndpoint())
+                    .username(proxyUserName)
+                    .password(proxyPassword)
+                    .nonProxyHosts(nonProxyHostPatterns())
+                    .useSystemPropertyValues(false)
+                    .useEnvironmentVariableValues(false)
+                    .build()
+            );
+        }
+        return builder;
+    }
+
+    private SdkHttpClient.Builder<?> newUrlConnectionClient() {
+        var builder = UrlConnectionHttpClient.builder();
+        if (connectTimeoutMillis > 0) builder.connectionTimeout(Duration.ofMillis(connectTimeoutMillis));
+        if (readTimeoutMillis > 0) builder.socketTimeout(Duration.ofMillis(readTimeoutMillis));
+        if (proxyHost != null) {
+            builder.proxyConfiguration(proxy -> proxy
+                .endpoint(proxyEndpoint())
+                .username(proxyUserName)
+                .password(proxyPassword)
+                .nonProxyHosts(nonProxyHostPatterns())
+                .useSystemPropertyValues(false)
+                .useEnvironmentVariablesValues(false)
+            );
+        }
+        return builder;
+    }
+
+    void configure(ClientOverrideConfiguration.Builder override) {
+        if (retryMode == null && maxAttempts <= 0) return;
+        RetryStrategy strategy = retryMode != null
+            ? AwsRetryStrategy.forRetryMode(retryMode)
+            : AwsRetryStrategy.defaultRetryStrategy();
+        if (maxAttempts > 0) {
+            strategy = strategy.toBuilder().maxAttempts(maxAttempts).build();
+        }
+        override.retryStrategy(strategy);
+    }
+
+    private URI proxyEndpoint() {
+        return URI.create(proxyScheme + "://" + proxyHost + (proxyPort > 0 ? ":" + proxyPort : ""));
+    }
+
+    /**
+     * The SDK matches non-proxy hosts as regular expressions, but Maven gives them as globs like *.example.com.
+     */
+    private Set<String> nonProxyHostPatterns() {
+        return nonProxyHosts.stream()
+            .map(host -> Pattern.quote(host.toLowerCase(Locale.ROOT)).replace("*", "\\E.*\\Q"))
+            .collect(Collectors.toSet());
+    }
+
+    long connectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    long readTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    int maxConnections() {
+        return maxConnections;
+    }
+
+    String proxyScheme() {
+        return proxyScheme;
+    }
+
+    String proxyHost() {
+        return proxyHost;
+    }
+
+    int proxyPort() {
+        return proxyPort;
+    }
+
+    String proxyUserName() {
+        return proxyUserName;
+    }
+
+    String proxyPassword() {
+        return proxyPassword;
+    }
+
+    Set<String> nonProxyHosts() {
+        return nonProxyHosts;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HttpClientSettings)) return false;
+        HttpClientSettings that = (HttpClientSettings) o;
+        return implementation == that.implementation
+            && connectTimeoutMillis == that.connectTimeoutMillis
+            && readTimeoutMillis == that.readTimeoutMillis
+            && maxConnections == that.maxConnections
+            && connectionTtlMillis == that.connectionTtlMillis
+            && socketSendBufferSize == that.socketSendBufferSize
+            && socketReceiveBufferSize == that.socketReceiveBufferSize
+            && retryMode == that.retryMode
+            && maxAttempts == that.maxAttempts
+            && Objects.equals(proxyScheme, that.proxyScheme)
+            && Objects.equals(proxyHost, that.proxyHost)
+            && proxyPort == that.proxyPort
+            && Objects.equals(proxyUserName, that.proxyUserName)
+            && Objects.equals(proxyPassword, that.proxyPassword)
+            && nonProxyHosts.equals(that.nonProxyHosts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+            implementation, connectTimeoutMillis, readTimeoutMillis, maxConnections, connectionTtlMillis,
+            socketSendBufferSize, socketReceiveBufferSize, retryMode, maxAttempts, proxyScheme, proxyHost, proxyPort,
+            proxyUserName, proxyPassword, nonProxyHosts
+        );
+    }
+
+    @Override
+    public String toString() {
+        // never include the proxy password
+        return "HttpClientSettings[implementation=" + implementation + ", connectTimeoutMillis=" + connectTimeoutMillis
+            + ", readTimeoutMillis=" + readTimeoutMillis + ", maxConnections=" + maxConnections
+            + ", connectionTtlMillis=" + connectionTtlMillis + ", socketSendBufferSize=" + socketSendBufferSize
+            + ", socketReceiveBufferSize=" + socketReceiveBufferSize + ", retryMode=" + retryMode
+            + ", maxAttempts=" + maxAttempts + ", proxy=" + (proxyHost != null ? proxyEndpoint() : null)
+            + ", proxyUserName=" + proxyUserName + ", nonProxyHosts=" + nonProxyHosts + "]";
+    }
+
+    /**
+     * Socket factories for each scheme which size the buffers of their sockets. HTTPS uses the SDK's own factory,
+     * set up as the SDK would set it up, so the TLS configuration is the same whether or not the sizes are set.
+     */
+    Lookup<ConnectionSocketFactory> socketFactories() {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", new BufferSizingSocketFactory(PlainConnectionSocketFactory.getSocketFactory()))
+            .register("https", new LayeredBufferSizingSocketFactory(
+                new SdkTlsSocketFactory(sdkSslContext(), SSLConnectionSocketFactory.getDefaultHostnameVerifier())
+            ))
+            .build();
+    }
+
+    /**
+     * The context the SDK's Apache client uses when it isn't given any TLS key or trust managers.
+     */
+    private static SSLContext sdkSslContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(SystemPropertyTlsKeyManagersProvider.create().keyManagers(), null, null);
+            return context;
+        }
+        catch (GeneralSecurityException e) {
+            throw new SSLInitializationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Routes like the client does by default, but has each connection made with the given socket factories. The SDK
+     * only lets the factory for HTTPS be replaced, while the client looks for factories in the context of a request
+     * before it connects, which is after the route is planned.
+     */
+    private static final class BufferSizingRoutePlanner extends DefaultRoutePlanner {
+        /** Where the connection operator looks for them, which Apache doesn't make public */
+        private static final String SOCKET_FACTORY_REGISTRY = "http.socket-factory-registry";
+
+        private final Lookup<ConnectionSocketFactory> socketFactories;
+
+        BufferSizingRoutePlanner(Lookup<ConnectionSocketFactory> socketFactories) {
+            super(DefaultSchemePortResolver.INSTANCE);
+            this.socketFactories = socketFactories;
+        }
+
+        @Override
+        public HttpRoute determineRoute(HttpHost host, HttpRequest request, HttpContext context) throws HttpException {
+            context.setAttribute(SOCKET_FACTORY_REGISTRY, socketFactories);
+            return super.determineRoute(host, request, context);
+        }
+    }
+
+    /**
+     * Sets the socket buffer sizes before connecting, which is when they must be set for the TCP window to be scaled.
+     */
+    private class BufferSizingSocketFactory implements ConnectionSocketFactory {
+        private final ConnectionSocketFactory delegate;
+
+        BufferSizingSocketFactory(ConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            Socket socket = delegate.createSocket(context);
+            if (socketSendBufferSize > 0) socket.setSendBufferSize(socketSendBufferSize);
+            if (socketReceiveBufferSize > 0) socket.setReceiveBufferSize(socketReceiveBufferSize);
+            return socket;
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            return delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+    }
+
+    private final class LayeredBufferSizingSocketFactory extends BufferSizingSocketFactory
+        implements LayeredConnectionSocketFactory {
+        private final LayeredConnectionSocketFactory delegate;
+
+        LayeredBufferSizingSocketFactory(LayeredConnectionSocketFactory delegate) {
+            super(delegate);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+            throws IOException {
+            return delegate.createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    static final class Builder {
+        private Implementation implementation = Implementation.APACHE;
+        private long connectTimeoutMillis;
+        private long readTimeoutMillis;
+        private int maxConnections;
+        private long connectionTtlMillis;
+        private int socketSendBufferSize;
+        private int socketReceiveBufferSize;
+        private RetryMode retryMode;
+        private int maxAttempts;
+        private String proxyScheme;
+        private String proxyHost;
+        private int proxyPort;
+        private String proxyUserName;
+        private String proxyPassword;
+        private Set<String> nonProxyHosts = Collections.emptySet();
+
+        private Builder() {
+        }
+
+        Builder implementation(String name) {
+            this.implementation = Implementation.parse(name);
+            return this;
+        }
+
+        /**
+         * @param millis zero or less for the implementation's default
+         */
+        Builder connectTimeoutMillis(long millis) {
+            this.connectTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param millis how long to wait for data before giving up on a connection, zero or less for the default
+         */
+        Builder readTimeoutMillis(long millis) {
+            this.readTimeoutMillis = millis;
+            return this;
+        }
+
+        Builder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        Builder connectionTtlMillis(long millis) {
+            this.connectionTtlMillis = millis;
+            return this;
+        }
+
+        Builder socketSendBufferSize(int bytes) {
+            this.socketSendBufferSize = bytes;
+            return this;
+        }
+
+        Builder socketReceiveBufferSize(int bytes) {
+            this.socketReceiveBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * @param mode standard, adaptive or legacy, or null for the SDK's default
+         */
+        Builder retryMode(String mode) {
+            if (mode == null || mode.isBlank()) {
+                this.retryMode = null;
+                return this;
+            }
+            try {
+                this.retryMode = RetryMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                    "Unknown retry mode " + mode + ". Expected standard, adaptive or legacy", e
+                );
+            }
+            return this;
+        }
+
+        /**
+         * @param maxAttempts the maximum number of attempts at each request, including the first, or zero or less
+         *                    for the default of the retry mode
+         */
+        Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * @param nonProxyHosts hosts to connect to directly, separated by '|', which may begin or end with '*'
+         */
+        Builder proxy(String scheme, String host, int port, String userName, String password, String nonProxyHosts) {
+            String proxyScheme = scheme != null && !scheme.isBlank() ? scheme.toLowerCase(Locale.ROOT) : "http";
+            if (!proxyScheme.equals("http") && !proxyScheme.equals("https")) {
+                throw new IllegalArgumentException("Unsupported proxy protocol " + scheme + ". Expected http or https");
+            }
+            this.proxyScheme = proxyScheme;
+            this.proxyHost = host;
+            this.proxyPort = port;
+            this.proxyUserName = userName;
+            this.proxyPassword = password;
+            Set<String> hosts = new LinkedHashSet<>();
+            if (nonProxyHosts != null) {
+                for (String nonProxyHost : nonProxyHosts.split("[|,]")) {
+                    if (!nonProxyHost.isBlank()) hosts.add(nonProxyHost.trim());
+                }
+            }
+            this.nonProxyHosts = Collections.unmodifiableSet(hosts);
+            return this;
+        }
+
+        HttpClientSettings build() {
+            return new HttpClientSettings(this);
+        }
+    }
+}
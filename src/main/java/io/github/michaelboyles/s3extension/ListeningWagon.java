@@ -14,10 +14,24 @@ import java.util.function.BiConsumer;
 
 /**
  * An abstract Wagon which additionally provides all the boilerplate for listeners.
+ * <p>
+ * Transfer events may be fired from several threads at once, e.g. when transferring a directory. Listeners aren't
+ * expected to be thread-safe, so they are only ever notified of one transfer event at a time.
  */
 abstract class ListeningWagon extends AbstractWagon {
+    private static final int MIN_PENDING_BUFFER_SIZE = 8 * 1024;
+
     private final List<TransferListener> transferListeners = new CopyOnWriteArrayList<>();
     private final List<SessionListener> sessionListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Progress is reported to transfer listeners in chunks of at least this many bytes, unless
+     * {@link #progressIntervalMillis} elapses first. 1 or less reports every read.
+     */
+    private int progressGranularityBytes = 64 * 1024;
+    /**
+     * The maximum time that progress is held back while waiting for {@link #progressGranularityBytes} to accumulate.
+     */
+    private long progressIntervalMillis = 100;
 
     @Override
     public void addSessionListener(SessionListener listener) {
@@ -58,6 +72,13 @@ abstract class ListeningWagon extends AbstractWagon {
         notifySessionListeners(SessionEvent.SESSION_LOGGED_OFF, SessionListener::sessionLoggedOff);
     }
 
+    protected void fireSessionError(Exception exception) {
+        SessionEvent event = new SessionEvent(this, exception);
+        for (SessionListener listener : sessionListeners) {
+            listener.sessionError(event);
+        }
+    }
+
     private void notifySessionListeners(int eventType, BiConsumer<SessionListener, SessionEvent> handler) {
         SessionEvent event = new SessionEvent(this, eventType);
         for (SessionListener listener : sessionListeners) {
@@ -81,63 +102,63 @@ abstract class ListeningWagon extends AbstractWagon {
     }
 
     protected void fireGetTransferInitiated(Resource resource, File localFile) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_INITIATED, TransferEvent.REQUEST_GET, resource, localFile
+        notifyTransferListeners(
+            TransferEvent.TRANSFER_INITIATED, TransferEvent.REQUEST_GET, resource, localFile, TransferListener::transferInitiated
         );
-        notifyTransferListeners(event, TransferListener::transferInitiated);
     }
 
     protected void firePutTransferInitiated(Resource resource, File localFile) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_INITIATED, TransferEvent.REQUEST_PUT, resource, localFile
+        notifyTransferListeners(
+            TransferEvent.TRANSFER_INITIATED, TransferEvent.REQUEST_PUT, resource, localFile, TransferListener::transferInitiated
         );
-        notifyTransferListeners(event, TransferListener::transferInitiated);
     }
 
     protected void fireGetTransferStarted(Resource resource, File localFile) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_STARTED, TransferEvent.REQUEST_GET, resource, localFile
+        notifyTransferListeners(
+            TransferEvent.TRANSFER_STARTED, TransferEvent.REQUEST_GET, resource, localFile, TransferListener::transferStarted
         );
-        notifyTransferListeners(event, TransferListener::transferStarted);
     }
 
     protected void firePutTransferStarted(Resource resource, File localFile) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_STARTED, TransferEvent.REQUEST_PUT, resource, localFile
+        notifyTransferListeners(
+            TransferEvent.TRANSFER_STARTED, TransferEvent.REQUEST_PUT, resource, localFile, TransferListener::transferStarted
         );
-        notifyTransferListeners(event, TransferListener::transferStarted);
     }
 
-    protected void fireGetTransferProgress(Resource resource, File destination, byte[] buffer, int length) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET, resource, destination
-        );
-        for (TransferListener listener : transferListeners) {
-            listener.transferProgress(event, buffer, length);
-        }
+    /**
+     * Create the object through which progress for a single download is reported. The caller must
+     * {@link TransferProgress#flush() flush} it before the transfer is reported as completed.
+     */
+    protected TransferProgress newGetTransferProgress(Resource resource, File localFile) {
+        return new TransferProgress(TransferEvent.REQUEST_GET, resource, localFile, true);
     }
 
-    protected void firePutTransferProgress(Resource resource, File destination, byte[] buffer, int length) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_PUT, resource, destination
-        );
-        for (TransferListener listener : transferListeners) {
-            listener.transferProgress(event, buffer, length);
-        }
+    /**
+     * Create the object through which progress for a single upload is reported. The caller must
+     * {@link TransferProgress#flush() flush} it before the transfer is reported as completed.
+     */
+    protected TransferProgress newPutTransferProgress(Resource resource, File localFile) {
+        return new TransferProgress(TransferEvent.REQUEST_PUT, resource, localFile, true);
+    }
+
+    /**
+     * Create an object through which progress is not reported at all, for an upload which listeners were already told
+     * was completed when it was queued.
+     */
+    protected TransferProgress newUnreportedTransferProgress() {
+        return new TransferProgress(TransferEvent.REQUEST_PUT, null, null, false);
     }
 
     protected void fireGetTransferCompleted(Resource resource, File localFile) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_COMPLETED, TransferEvent.REQUEST_GET, resource, localFile
+        notifyTransferListeners(
+            TransferEvent.TRANSFER_COMPLETED, TransferEvent.REQUEST_GET, resource, localFile, TransferListener::transferCompleted
         );
-        notifyTransferListeners(event, TransferListener::transferCompleted);
     }
 
     protected void firePutTransferCompleted(Resource resource, File localFile) {
-        TransferEvent event = newTransferEvent(
-            TransferEvent.TRANSFER_COMPLETED, TransferEvent.REQUEST_PUT, resource, localFile
+        notifyTransferListeners(
+            TransferEvent.TRANSFER_COMPLETED, TransferEvent.REQUEST_PUT, resource, localFile, TransferListener::transferCompleted
         );
-        notifyTransferListeners(event, TransferListener::transferCompleted);
     }
 
     private TransferEvent newTransferEvent(int eventType, int requestType, Resource resource, File localFile) {
@@ -147,9 +168,92 @@ abstract class ListeningWagon extends AbstractWagon {
         return event;
     }
 
-    private void notifyTransferListeners(TransferEvent event, BiConsumer<TransferListener, TransferEvent> handler) {
-        for (TransferListener listener : transferListeners) {
-            handler.accept(listener, event);
+    private void notifyTransferListeners(int eventType, int requestType, Resource resource, File localFile,
+                                         BiConsumer<TransferListener, TransferEvent> handler)
+    {
+        if (transferListeners.isEmpty()) return;
+        TransferEvent event = newTransferEvent(eventType, requestType, resource, localFile);
+        synchronized (transferListeners) {
+            for (TransferListener listener : transferListeners) {
+                handler.accept(listener, event);
+            }
+        }
+    }
+
+    /**
+     * Reports the progress of a single transfer. One event object is reused for every notification, and the data is
+     * coalesced so that listeners are notified at most once per {@link #progressGranularityBytes} bytes, unless
+     * {@link #progressIntervalMillis} passes first. No data is dropped: listeners still see every byte, in order,
+     * which matters to those which compute checksums from it. If there are no listeners, progress is ignored.
+     * <p>
+     * Not thread-safe. Callers transferring from several threads must serialize their calls.
+     */
+    protected final class TransferProgress implements ProgressListener {
+        private final int requestType;
+        private final Resource resource;
+        private final File localFile;
+        private final boolean reported;
+        private TransferEvent event;
+        private byte[] pending;
+        private int pendingLength;
+        private long lastNotified = System.nanoTime();
+
+        private TransferProgress(int requestType, Resource resource, File localFile, boolean reported) {
+            this.requestType = requestType;
+            this.resource = resource;
+            this.localFile = localFile;
+            this.reported = reported;
+        }
+
+        @Override
+        public void progress(byte[] buffer, int offset, int length) {
+            if (length <= 0 || !reported || transferListeners.isEmpty()) return;
+            // listeners have no concept of an offset, so data which doesn't start at 0 always has to be copied
+            if (offset == 0 && pendingLength == 0 && length >= progressGranularityBytes) {
+                notifyProgress(buffer, length);
+                return;
+            }
+            int end = offset + length;
+            while (offset < end) {
+                if (pending == null) {
+                    pending = new byte[Math.max(progressGranularityBytes, MIN_PENDING_BUFFER_SIZE)];
+                }
+                int toCopy = Math.min(end - offset, pending.length - pendingLength);
+                System.arraycopy(buffer, offset, pending, pendingLength, toCopy);
+                pendingLength += toCopy;
+                offset += toCopy;
+                if (pendingLength >= progressGranularityBytes || pendingLength == pending.length) {
+                    flush();
+                }
+            }
+            if (pendingLength > 0 && System.nanoTime() - lastNotified >= progressIntervalMillis * 1_000_000L) {
+                flush();
+            }
+        }
+
+        /**
+         * Notify listeners of any progress which has not been reported yet.
+         */
+        public void flush() {
+            if (pendingLength == 0) return;
+            int length = pendingLength;
+            pendingLength = 0;
+            notifyProgress(pending, length);
+        }
+
+        private void notifyProgress(byte[] buffer, int length) {
+            lastNotified = System.nanoTime();
+            if (event == null) {
+                event = newTransferEvent(TransferEvent.TRANSFER_PROGRESS, requestType, resource, localFile);
+            }
+            else {
+                event.setTimestamp(System.currentTimeMillis());
+            }
+            synchronized (transferListeners) {
+                for (TransferListener listener : transferListeners) {
+                    listener.transferProgress(event, buffer, length);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,106 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Lists the immediate children of a "directory" in a bucket, and remembers the result for a while, since resolving
+ * version ranges tends to list the same directories repeatedly. Listings expire so that a long-lived JVM (e.g. the Maven
+ * daemon) sees versions deployed by others, and the least recently used are evicted once there are too many. Listings
+ * are forgotten when this JVM writes to a key within them.
+ */
+final class ListingCache {
+    private static final String DELIMITER = "/";
+    private static final int MAX_LISTINGS = 1_000;
+    private static final Map<String, Listing> listings = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    private ListingCache() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Get the names of the files and directories directly under the prefix, relative to the prefix. Directories end
+     * with a '/'. The result is empty if nothing exists under the prefix.
+     *
+     * @param prefix a key prefix which is either empty or ends with '/'
+     * @param ttlMillis how long to remember the listing. Zero or less disables it
+     */
+    static List<String> list(S3Client s3, String bucket, String prefix, long ttlMillis) {
+        String cacheKey = bucket + DELIMITER + prefix;
+        synchronized (listings) {
+            Listing cached = listings.get(cacheKey);
+            if (cached != null) {
+                if (System.nanoTime() - cached.expiresAt < 0) return cached.names;
+                listings.remove(cacheKey);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        forEachChild(s3, bucket, prefix, names::add);
+        List<String> result = Collections.unmodifiableList(names);
+        if (ttlMillis > 0) {
+            synchronized (listings) {
+                listings.put(cacheKey, new Listing(result, ttlMillis));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stream the children of the prefix to the consumer page by page, as each page of the listing arrives.
+     */
+    static void forEachChild(S3Client s3, String bucket, String prefix, Consumer<String> consumer) {
+        var request = ListObjectsV2Request.builder()
+            .bucket(bucket)
+            .prefix(prefix)
+            .delimiter(DELIMITER)
+            .build();
+        for (ListObjectsV2Response page : s3.listObjectsV2Paginator(request)) {
+            for (CommonPrefix directory : page.commonPrefixes()) {
+                consumer.accept(directory.prefix().substring(prefix.length()));
+            }
+            for (S3Object object : page.contents()) {
+                String name = object.key().substring(prefix.length());
+                // skip the empty "directory marker" objects created by some tools
+                if (!name.isEmpty()) {
+                    consumer.accept(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget any listing which would include the key.
+     */
+    static void invalidate(String bucket, String key) {
+        String path = bucket + DELIMITER + key;
+        synchronized (listings) {
+            listings.keySet().removeIf(path::startsWith);
+        }
+    }
+
+    private static final class Listing {
+        private final List<String> names;
+        private final long expiresAt;
+
+        private Listing(List<String> names, long ttlMillis) {
+            this.names = names;
+            this.expiresAt = System.nanoTime() + ttlMillis * 1_000_000;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tries a chain of credentials providers in order, like the SDK's chain, but remembers in the
+ * {@link ResolutionCache} which one worked. Next time, even in a later build, it goes straight to that provider. The
+ * whole chain is only tried again if the remembered provider fails.
+ */
+final class MemoizedCredentialsProvider implements AwsCredentialsProvider {
+    private final String repository;
+    private final Map<String, AwsCredentialsProvider> providers;
+    private final long cacheTtlMillis;
+    private volatile String chosen;
+
+    /**
+     * @param providers the providers in the order to try them, by a name which is stable across builds
+     */
+    MemoizedCredentialsProvider(String repository, Map<String, AwsCredentialsProvider> providers, long cacheTtlMillis) {
+        this.repository = repository;
+        this.providers = providers;
+        this.cacheTtlMillis = cacheTtlMillis;
+        String known = cacheTtlMillis > 0 ? ResolutionCache.getInstance().getProvider(repository) : null;
+        this.chosen = known != null && providers.containsKey(known) ? known : null;
+    }
+
+    @Override
+    public AwsCredentials resolveCredentials() {
+        String name = chosen;
+        if (name != null) {
+            try {
+                return providers.get(name).resolveCredentials();
+            }
+            catch (RuntimeException e) {
+                // e.g. the profile was deleted or the instance lost its role. Fall through to the whole chain
+                forget(name);
+            }
+        }
+        return resolveFromChain();
+    }
+
+    private synchronized void forget(String name) {
+        if (!name.equals(chosen)) return;
+        chosen = null;
+        ResolutionCache.getInstance().forgetProvider(repository);
+    }
+
+    private synchronized AwsCredentials resolveFromChain() {
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, AwsCredentialsProvider> provider : providers.entrySet()) {
+            try {
+                AwsCredentials credentials = provider.getValue().resolveCredentials();
+                if (!provider.getKey().equals(chosen)) {
+                    chosen = provider.getKey();
+                    ResolutionCache.getInstance().putProvider(repository, provider.getKey(), cacheTtlMillis);
+                }
+                return credentials;
+            }
+            catch (RuntimeException e) {
+                failures.add(provider.getKey() + ": " + e.getMessage());
+            }
+        }
+        throw SdkClientException.create("Unable to load credentials from any of the providers in the chain: " + failures);
+    }
+
+    @Override
+    public String toString() {
+        return "MemoizedCredentialsProvider[" + String.join(", ", providers.keySet()) + ", chosen=" + chosen + "]";
+    }
+}
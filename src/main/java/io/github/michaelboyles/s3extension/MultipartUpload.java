@@ -0,0 +1,302 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads a single file as an S3 multipart upload, sending several parts concurrently. Each part is streamed from its
+ * own region of a shared {@link FileChannel} using positional reads, so no part is ever buffered in memory in full;
+ * memory use is bounded by the concurrency, rather than by the part size or the file size.
+ * <p>
+ * Content of unknown length can be uploaded from a stream instead. A stream can only be read sequentially, so each
+ * part is read into memory while earlier parts are still uploading. At most one part per unit of concurrency is held
+ * at a time.
+ * <p>
+ * If any part fails, the outstanding parts are cancelled and the upload is aborted, so that S3 doesn't keep (and bill
+ * for) the parts which were uploaded.
+ */
+final class MultipartUpload {
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private final S3Client s3;
+    private final long partSize;
+    private final int concurrency;
+    private final ChecksumAlgorithm checksumAlgorithm;
+
+    /**
+     * @param checksumAlgorithm the algorithm S3 should use to verify each part, or null for none. This should match
+     *                          the algorithm of the request which creates the upload
+     */
+    MultipartUpload(S3Client s3, long partSize, int concurrency, ChecksumAlgorithm checksumAlgorithm) {
+        this.s3 = s3;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.concurrency = Math.max(concurrency, 1);
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * The size of each part of a file of the given length. Bigger than asked for if that would need too many parts.
+     */
+    static long partSizeFor(long length, long partSize) {
+        return Math.max(Math.max(partSize, MIN_PART_SIZE), (length + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /**
+     * Upload the source file. The bucket, key and object metadata are taken from the given request. The progress
+     * listener may be called from multiple threads, but never concurrently.
+     */
+    void upload(File source, CreateMultipartUploadRequest request, ProgressListener progress)
+        throws IOException, InterruptedException
+    {
+        long length = source.length();
+        long effectivePartSize = partSizeFor(length, partSize);
+        int partCount = (int) Math.max(1, (length + effectivePartSize - 1) / effectivePartSize);
+
+        String uploadId = s3.createMultipartUpload(request).uploadId();
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(concurrency, partCount), new DaemonThreadFactory("s3-multipart-upload")
+        );
+        List<Future<CompletedPart>> futures = new ArrayList<>(partCount);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < partCount; i++) {
+                int partNumber = i + 1;
+                long start = i * effectivePartSize;
+                long end = Math.min(start + effectivePartSize, length);
+                futures.add(executor.submit(() -> uploadPart(request, uploadId, channel, partNumber, start, end, progress)));
+            }
+            complete(request, uploadId, futures);
+        }
+        catch (ExecutionException e) {
+            abort(request, uploadId, futures, e.getCause());
+            throw rethrow(e.getCause());
+        }
+        catch (IOException | InterruptedException | RuntimeException e) {
+            abort(request, uploadId, futures, e);
+            throw e;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Upload everything that remains in the source stream. Progress is not reported; the caller should report it as
+     * the stream is read.
+     *
+     * @throws IOException if the stream fails, or is too long to fit in the maximum number of parts
+     */
+    void upload(InputStream source, CreateMultipartUploadRequest request) throws IOException, InterruptedException {
+        int streamPartSize = (int) Math.min(partSize, Integer.MAX_VALUE - 8);
+        String uploadId = s3.createMultipartUpload(request).uploadId();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("s3-multipart-upload"));
+        // bounds how many parts are in memory, including the one being read
+        Semaphore buffers = new Semaphore(concurrency);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<CompletedPart>> futures = new ArrayList<>();
+        try {
+            for (int partNumber = 1; !failed.get(); partNumber++) {
+                if (partNumber > MAX_PARTS) {
+                    throw new IOException("Stream is too long to upload in " + MAX_PARTS + " parts of " + partSize + " bytes");
+                }
+                buffers.acquire();
+                byte[] buffer = source.readNBytes(streamPartSize);
+                if (buffer.length == 0 && partNumber > 1) {
+                    buffers.release();
+                    break;
+                }
+                int thisPartNumber = partNumber;
+                futures.add(executor.submit(() -> {
+                    try {
+                        RequestBody body = RequestBody.fromContentProvider(
+                            () -> new ByteArrayInputStream(buffer), buffer.length, "application/octet-stream"
+                        );
+                        return uploadPart(request, uploadId, thisPartNumber, buffer.length, body);
+                    }
+                    catch (RuntimeException | Error e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                    finally {
+                        buffers.release();
+                    }
+                }));
+                if (buffer.length < streamPartSize) break;
+            }
+            complete(request, uploadId, futures);
+        }
+        catch (ExecutionException e) {
+            abort(request, uploadId, futures, e.getCause());
+            throw rethrow(e.getCause());
+        }
+        catch (IOException | InterruptedException | RuntimeException e) {
+            abort(request, uploadId, futures, e);
+            throw e;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void complete(CreateMultipartUploadRequest request, String uploadId, List<Future<CompletedPart>> futures)
+        throws ExecutionException, InterruptedException
+    {
+        List<CompletedPart> parts = new ArrayList<>(futures.size());
+        for (Future<CompletedPart> future : futures) {
+            parts.add(future.get());
+        }
+        s3.completeMultipartUpload(
+            CompleteMultipartUploadRequest.builder()
+                .bucket(request.bucket())
+                .key(request.key())
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build()
+        );
+    }
+
+    private CompletedPart uploadPart(CreateMultipartUploadRequest request, String uploadId, FileChannel channel,
+                                     int partNumber, long start, long end, ProgressListener progress)
+    {
+        // the SDK may open the stream more than once, if it retries. Only report progress the first time around
+        long[] reportedUpTo = { start };
+        RequestBody body = RequestBody.fromContentProvider(
+            () -> new PartInputStream(channel, start, end, reportedUpTo, progress), end - start, "application/octet-stream"
+        );
+        return uploadPart(request, uploadId, partNumber, end - start, body);
+    }
+
+    private CompletedPart uploadPart(CreateMultipartUploadRequest request, String uploadId, int partNumber,
+                                     long length, RequestBody body)
+    {
+        var partRequest = UploadPartRequest.builder()
+            .bucket(request.bucket())
+            .key(request.key())
+            .uploadId(uploadId)
+            .partNumber(partNumber)
+            .contentLength(length)
+            .checksumAlgorithm(checksumAlgorithm)
+            .build();
+        UploadPartResponse response = s3.uploadPart(partRequest, body);
+        var part = CompletedPart.builder().partNumber(partNumber).eTag(response.eTag());
+        if (checksumAlgorithm != null) {
+            // S3 requires the checksum of each part to be repeated when completing the upload
+            String checksum = StreamingChecksum.valueOf(response, checksumAlgorithm);
+            switch (checksumAlgorithm) {
+                case CRC32: part.checksumCRC32(checksum); break;
+                case CRC32_C: part.checksumCRC32C(checksum); break;
+                case SHA1: part.checksumSHA1(checksum); break;
+                case SHA256: part.checksumSHA256(checksum); break;
+                default: break;
+            }
+        }
+        return part.build();
+    }
+
+    private void abort(CreateMultipartUploadRequest request, String uploadId, List<Future<CompletedPart>> futures,
+                       Throwable cause)
+    {
+        for (Future<CompletedPart> future : futures) {
+            future.cancel(true);
+        }
+        try {
+            s3.abortMultipartUpload(
+                AbortMultipartUploadRequest.builder()
+                    .bucket(request.bucket())
+                    .key(request.key())
+                    .uploadId(uploadId)
+                    .build()
+            );
+        }
+        catch (RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    static RuntimeException rethrow(Throwable cause) throws IOException, InterruptedException {
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IOException(cause);
+    }
+
+    /**
+     * Reads a range of a file using positional reads, so that many can share one channel.
+     */
+    private static final class PartInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private final long[] reportedUpTo;
+        private final ProgressListener progress;
+        private final byte[] single = new byte[1];
+        private long position;
+
+        PartInputStream(FileChannel channel, long start, long end, long[] reportedUpTo, ProgressListener progress) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.reportedUpTo = reportedUpTo;
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int length = read(single, 0, 1);
+            return length == -1 ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= end) return -1;
+            int toRead = (int) Math.min(Math.min(length, READ_CHUNK_SIZE), end - position);
+            int bytesRead = channel.read(ByteBuffer.wrap(buffer, offset, toRead), position);
+            if (bytesRead == -1) {
+                throw new IOException("File was truncated during upload");
+            }
+            position += bytesRead;
+            reportProgress(buffer, offset, bytesRead);
+            return bytesRead;
+        }
+
+        private void reportProgress(byte[] buffer, int offset, int bytesRead) {
+            long unreported = position - reportedUpTo[0];
+            if (unreported <= 0) return;
+            int skip = bytesRead - (int) unreported;
+            synchronized (progress) {
+                progress.progress(buffer, offset + skip, (int) unreported);
+            }
+            reportedUpTo[0] = position;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
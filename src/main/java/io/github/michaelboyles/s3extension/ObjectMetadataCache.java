@@ -0,0 +1,127 @@
+package io.github.michaelboyles.s3extension;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JVM-wide cache of what is known about objects: whether they exist and, if so, their size, ETag and last-modified
+ * time. Maven probes the same keys many times over a build, across modules and across wagon instances, and most of
+ * those probes are for keys which don't exist.
+ * <p>
+ * Positive and negative results can have different time-to-lives. The cache is bounded, and evicts the least recently
+ * used entry when full. Since it's shared, it's as large as the largest size any repository has asked for. Writes made
+ * by this JVM invalidate the entry for that key.
+ */
+final class ObjectMetadataCache {
+    private static final ObjectMetadataCache INSTANCE = new ObjectMetadataCache();
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    /** The largest size asked for so far, or -1 if none has been yet */
+    private int largestRequested = -1;
+
+    ObjectMetadataCache() {
+    }
+
+    static ObjectMetadataCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Make room for at least this many entries, as a repository has been configured with. The cache only shrinks if
+     * this is the first size asked for, and it's smaller than the default.
+     */
+    synchronized void requestMaxEntries(int maxEntries) {
+        largestRequested = Math.max(largestRequested, Math.max(maxEntries, 0));
+        this.maxEntries = largestRequested;
+        var iterator = entries.entrySet().iterator();
+        while (entries.size() > this.maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return what is known about the object, or null if nothing is known or the information has expired
+     */
+    synchronized Entry get(String bucket, String key) {
+        String cacheKey = cacheKey(bucket, key);
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(cacheKey);
+            return null;
+        }
+        return entry;
+    }
+
+    void putExists(String bucket, String key, long size, String eTag, Instant lastModified, long ttlMillis) {
+        if (ttlMillis <= 0) return;
+        put(bucket, key, new Entry(true, size, eTag, lastModified, ttlMillis));
+    }
+
+    void putMissing(String bucket, String key, long ttlMillis) {
+        if (ttlMillis <= 0) return;
+        put(bucket, key, new Entry(false, -1, null, null, ttlMillis));
+    }
+
+    private synchronized void put(String bucket, String key, Entry entry) {
+        entries.put(cacheKey(bucket, key), entry);
+    }
+
+    synchronized void invalidate(String bucket, String key) {
+        entries.remove(cacheKey(bucket, key));
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + '/' + key;
+    }
+
+    static final class Entry {
+        private final boolean exists;
+        private final long size;
+        private final String eTag;
+        private final Instant lastModified;
+        private final long expiresAt;
+
+        private Entry(boolean exists, long size, String eTag, Instant lastModified, long ttlMillis) {
+            this.exists = exists;
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expiresAt = System.nanoTime() + ttlMillis * 1_000_000;
+        }
+
+        boolean exists() {
+            return exists;
+        }
+
+        /**
+         * @return the size in bytes, or -1 if unknown
+         */
+        long size() {
+            return size;
+        }
+
+        /**
+         * @return the ETag, or null if unknown
+         */
+        String eTag() {
+            return eTag;
+        }
+
+        /**
+         * @return the last-modified time, or null if unknown
+         */
+        Instant lastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The start of an object whose download failed, kept so that the next attempt can carry on from where it stopped,
+ * rather than from the beginning. Maven downloads each attempt to a new temporary file, so partial content is kept in
+ * a directory of its own, by bucket and key, along with the ETag of the version it belongs to and the checksum S3
+ * reported for the whole object. The next attempt asks for the rest with a range request conditional on that ETag, so
+ * if the object has changed in the meantime, it starts again.
+ * <p>
+ * A download claims partial content by renaming it, which only one of several concurrent downloads can do, and saves
+ * it back under its original name if it fails too. Content which is never claimed is deleted after a week.
+ */
+final class PartialDownload {
+    private static final Path DIRECTORY =
+        Paths.get(System.getProperty("user.home"), ".m2", "s3-maven-extension", "partial");
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private final String bucket;
+    private final String key;
+    private final Path file;
+    private final String eTag;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final String checksum;
+
+    private PartialDownload(String bucket, String key, Path file, String eTag, ChecksumAlgorithm checksumAlgorithm,
+                            String checksum) {
+        this.bucket = bucket;
+        this.key = key;
+        this.file = file;
+        this.eTag = eTag;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Take the partial content of the object, if there is any, so that no one else can.
+     *
+     * @return the partial content, or null if there isn't any
+     */
+    static PartialDownload claim(String bucket, String key) {
+        String id = id(bucket, key);
+        Path state = DIRECTORY.resolve(id + ".properties");
+        if (!Files.isRegularFile(state)) return null;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(state)) {
+            properties.load(in);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+        Path claimed = DIRECTORY.resolve(id + "-" + UUID.randomUUID() + ".resuming");
+        try {
+            Files.move(DIRECTORY.resolve(id + ".part"), claimed, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(state);
+            String eTag = properties.getProperty("eTag");
+            long length = Long.parseLong(properties.getProperty("length", "-1"));
+            if (eTag == null || Files.size(claimed) != length) {
+                Files.deleteIfExists(claimed);
+                return null;
+            }
+            String algorithm = properties.getProperty("checksumAlgorithm");
+            return new PartialDownload(
+                bucket, key, claimed, eTag, algorithm != null ? ChecksumAlgorithm.fromValue(algorithm) : null,
+                properties.getProperty("checksum")
+            );
+        }
+        catch (NoSuchFileException e) {
+            // someone else claimed it first
+            return null;
+        }
+        catch (IOException | NumberFormatException | UnsupportedOperationException e) {
+            deleteQuietly(claimed);
+            return null;
+        }
+    }
+
+    /**
+     * Keep the start of a failed download, so the next attempt can carry on from it.
+     *
+     * @param file the file being downloaded to, which is moved
+     * @param length how many bytes at the start of the file are known to be right
+     * @param checksum what the checksum of the whole object is expected to be, or null if unknown
+     */
+    static void save(String bucket, String key, File file, long length, String eTag, StreamingChecksum.Expected checksum) {
+        String id = id(bucket, key);
+        try {
+            Files.createDirectories(DIRECTORY);
+            deleteExpired();
+            try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+                content.setLength(length);
+            }
+            Properties properties = new Properties();
+            properties.setProperty("eTag", eTag);
+            properties.setProperty("length", Long.toString(length));
+            if (checksum != null) {
+                properties.setProperty("checksumAlgorithm", checksum.checksum().algorithm().toString());
+                properties.setProperty("checksum", checksum.expectedValue());
+            }
+            Files.move(file.toPath(), DIRECTORY.resolve(id + ".part"), StandardCopyOption.REPLACE_EXISTING);
+            Path temp = Files.createTempFile(DIRECTORY, id, ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    properties.store(out, null);
+                }
+                Files.move(temp, DIRECTORY.resolve(id + ".properties"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // it can't be resumed, that's all
+        }
+    }
+
+    private static void deleteExpired() throws IOException {
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DIRECTORY)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff) Files.deleteIfExists(file);
+                }
+                catch (IOException e) {
+                    // deleted by someone else, or in use
+                }
+            }
+        }
+    }
+
+    /**
+     * Give up the claim without having added to the content, so a later attempt can have it.
+     */
+    void release() {
+        save(bucket, key, file.toFile(), length(), eTag, checksum());
+    }
+
+    /**
+     * The file containing the partial content. Once claimed, it belongs to the caller, who must move it or delete it.
+     */
+    File file() {
+        return file.toFile();
+    }
+
+    long length() {
+        return file.toFile().length();
+    }
+
+    String eTag() {
+        return eTag;
+    }
+
+    /**
+     * @return a new checksum for the whole object, or null if S3 didn't report one
+     */
+    StreamingChecksum.Expected checksum() {
+        if (checksumAlgorithm == null || checksumAlgorithm == ChecksumAlgorithm.UNKNOWN_TO_SDK_VERSION || checksum == null) {
+            return null;
+        }
+        return StreamingChecksum.Expected.of(checksumAlgorithm, checksum);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            // deleted when it expires
+        }
+    }
+
+    /**
+     * Objects are identified by a hash, so that keys of any length or content make valid file names.
+     */
+    private static String id(String bucket, String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest((bucket + '/' + key).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches the files which Maven is about to ask for, before it asks. After a POM, Maven almost always wants its
+ * checksum, then the JAR and its checksum, each one a separate round trip. Those siblings are downloaded concurrently
+ * in the background into a staging area in memory, and later GETs for them are served from there.
+ * <p>
+ * The staging area is bounded by size, and evicts the oldest files first. Files are removed when they're used, and
+ * expire if they aren't used soon, so a stale copy is never served for long. Objects which turn out not to exist are
+ * remembered too, so a GET for them fails without a request.
+ */
+final class Prefetcher {
+    private static final Prefetcher INSTANCE = new Prefetcher();
+    private static final int THREADS = 8;
+    private static final long EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final ExecutorService executor;
+    /** In the order they were requested, so the oldest are evicted first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private long stagedBytes;
+
+    private Prefetcher() {
+        var pool = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DaemonThreadFactory("s3-prefetch")
+        );
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    static Prefetcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start fetching the siblings of a POM which was just requested.
+     *
+     * @param pomRequest the request for the POM, from which the sibling requests are copied
+     * @param suffixes what to replace ".pom" with to make the sibling keys
+     * @param maxStagedBytes the maximum total size of the staged files. No single file may be more than a quarter
+     */
+    void prefetchSiblings(S3Client s3, GetObjectRequest pomRequest, List<String> suffixes, long maxStagedBytes,
+                          long negativeTtlMillis) {
+        String pomKey = pomRequest.key();
+        if (!pomKey.endsWith(".pom") || maxStagedBytes <= 0) return;
+        String base = pomKey.substring(0, pomKey.length() - ".pom".length());
+        for (String suffix : suffixes) {
+            String key = base + suffix;
+            ObjectMetadataCache.Entry known = ObjectMetadataCache.getInstance().get(pomRequest.bucket(), key);
+            if (known != null && !known.exists()) continue;
+            GetObjectRequest request = pomRequest.toBuilder().key(key).ifModifiedSince(null).ifNoneMatch(null).build();
+            Entry entry;
+            synchronized (this) {
+                String cacheKey = cacheKey(request.bucket(), key);
+                if (entries.containsKey(cacheKey)) continue;
+                entry = new Entry();
+                entries.put(cacheKey, entry);
+            }
+            executor.execute(() -> fetch(s3, request, entry, maxStagedBytes, negativeTtlMillis));
+        }
+    }
+
+    private void fetch(S3Client s3, GetObjectRequest request, Entry entry, long maxStagedBytes, long negativeTtlMillis) {
+        try (ResponseInputStream<GetObjectResponse> stream = s3.getObject(request)) {
+            Long length = stream.response().contentLength();
+            if (length == null || length > maxStagedBytes / 4 || !reserve(request, entry, length, maxStagedBytes)) {
+                // too big to stage, or no room for it. Let the real GET fetch it
+                stream.abort();
+                drop(request, entry);
+                return;
+            }
+            byte[] content = stream.readAllBytes();
+            S3Metrics.getInstance().prefetched();
+            stage(request, entry, new Staged(stream.response(), content));
+        }
+        catch (NoSuchKeyException e) {
+            ObjectMetadataCache.getInstance().putMissing(request.bucket(), request.key(), negativeTtlMillis);
+            S3Metrics.getInstance().prefetchedMissing();
+            stage(request, entry, new Staged(e));
+        }
+        catch (IOException | RuntimeException e) {
+            // it was only speculative. The real GET will find the same problem, if there really is one
+            drop(request, entry);
+        }
+    }
+
+    /**
+     * Count a file's size against the budget before its content is read, evicting older staged files if need be, so
+     * that the concurrent fetches can't overshoot the budget between them.
+     *
+     * @return whether there was room for it
+     */
+    private synchronized boolean reserve(GetObjectRequest request, Entry entry, long size, long maxStagedBytes) {
+        if (entries.get(cacheKey(request.bucket(), request.key())) != entry) return false;
+        entry.size = size;
+        stagedBytes += size;
+        evict(maxStagedBytes);
+        if (stagedBytes <= maxStagedBytes) return true;
+        // the rest of the budget is reserved by fetches still in progress
+        remove(request.bucket(), request.key(), entry);
+        return false;
+    }
+
+    private synchronized void stage(GetObjectRequest request, Entry entry, Staged staged) {
+        if (entries.get(cacheKey(request.bucket(), request.key())) == entry) {
+            // in case the content wasn't the length that S3 said
+            stagedBytes += staged.size() - entry.size;
+            entry.size = staged.size();
+        }
+        entry.result.complete(staged);
+    }
+
+    private synchronized void drop(GetObjectRequest request, Entry entry) {
+        remove(request.bucket(), request.key(), entry);
+        entry.result.complete(null);
+    }
+
+    private void evict(long maxStagedBytes) {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.result.isDone()) continue;
+            if (stagedBytes > maxStagedBytes || now - entry.createdAt > EXPIRY_NANOS) {
+                iterator.remove();
+                stagedBytes -= entry.size;
+                S3Metrics.getInstance().prefetchUnused();
+            }
+        }
+    }
+
+    /**
+     * Take a prefetched object, waiting for it if it's still being fetched.
+     *
+     * @return the object, or null if it wasn't prefetched
+     * @throws NoSuchKeyException if the prefetch found that the object doesn't exist
+     */
+    ResponseInputStream<GetObjectResponse> take(String bucket, String key) {
+        Entry entry;
+        synchronized (this) {
+            if (entries.isEmpty()) return null;
+            entry = entries.get(cacheKey(bucket, key));
+            if (entry == null) return null;
+            if (System.nanoTime() - entry.createdAt > EXPIRY_NANOS) {
+                remove(bucket, key, entry);
+                S3Metrics.getInstance().prefetchUnused();
+                return null;
+            }
+        }
+        Staged staged;
+        try {
+            staged = entry.result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return null;
+        }
+        synchronized (this) {
+            // someone else may have taken it in the meantime
+            if (staged == null || !remove(bucket, key, entry)) return null;
+        }
+        S3Metrics.getInstance().prefetchHit();
+        return staged.toStream();
+    }
+
+    private boolean remove(String bucket, String key, Entry entry) {
+        if (!entries.remove(cacheKey(bucket, key), entry)) return false;
+        stagedBytes -= entry.size;
+        return true;
+    }
+
+    /**
+     * Forget a staged copy, because the object was just written.
+     */
+    synchronized void invalidate(String bucket, String key) {
+        Entry entry = entries.get(cacheKey(bucket, key));
+        if (entry != null) {
+            remove(bucket, key, entry);
+        }
+    }
+
+    /**
+     * @param suffixes separated by commas
+     */
+    static List<String> parseSuffixes(String suffixes) {
+        if (suffixes == null) return List.of();
+        return Arrays.stream(suffixes.split(","))
+            .map(String::trim)
+            .filter(suffix -> !suffix.isEmpty())
+            .collect(Collectors.toList());
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + '/' + key;
+    }
+
+    private static final class Entry {
+        private final CompletableFuture<Staged> result = new CompletableFuture<>();
+        private final long createdAt = System.nanoTime();
+        private long size;
+    }
+
+    /**
+     * What a prefetch found: either the response and its content, or that there's no such key.
+     */
+    private static final class Staged {
+        private final GetObjectResponse response;
+        private final byte[] content;
+        private final NoSuchKeyException missing;
+
+        Staged(GetObjectResponse response, byte[] content) {
+            this.response = response;
+            this.content = content;
+            this.missing = null;
+        }
+
+        Staged(NoSuchKeyException missing) {
+            this.response = null;
+            this.content = null;
+            this.missing = missing;
+        }
+
+        long size() {
+            return content != null ? content.length : 0;
+        }
+
+        ResponseInputStream<GetObjectResponse> toStream() {
+            if (missing != null) throw missing;
+            return new ResponseInputStream<>(response, AbortableInputStream.create(new ByteArrayInputStream(content)));
+        }
+    }
+}
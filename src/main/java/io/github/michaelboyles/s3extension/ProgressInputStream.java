@@ -0,0 +1,71 @@
+package io.github.michaelboyles.s3extension;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reports every byte read from a stream. Doesn't support mark, so no byte can be read, and reported, twice.
+ * <p>
+ * The SDK may open a request body more than once, if it retries. Streams opened over the same content can share a
+ * high-water mark, so that only the bytes beyond what any previous stream reported are reported again.
+ */
+final class ProgressInputStream extends FilterInputStream {
+    private final long[] reportedUpTo;
+    private final ProgressListener progress;
+    private final byte[] singleByte = new byte[1];
+    private long position;
+
+    ProgressInputStream(InputStream in, ProgressListener progress) {
+        this(in, new long[1], progress);
+    }
+
+    /**
+     * @param reportedUpTo the number of bytes already reported, shared by every stream over the same content
+     */
+    ProgressInputStream(InputStream in, long[] reportedUpTo, ProgressListener progress) {
+        super(in);
+        this.reportedUpTo = reportedUpTo;
+        this.progress = progress;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int length = read(singleByte, 0, 1);
+        return length == -1 ? -1 : (singleByte[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int bytesRead = in.read(buffer, offset, length);
+        if (bytesRead > 0) {
+            position += bytesRead;
+            long unreported = position - reportedUpTo[0];
+            if (unreported > 0) {
+                int skip = bytesRead - (int) Math.min(unreported, bytesRead);
+                progress.progress(buffer, offset + skip, bytesRead - skip);
+                reportedUpTo[0] = position;
+            }
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // read rather than skip, so that the bytes are still reported
+        byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+        return Math.max(read(buffer, 0, buffer.length), 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return the number of bytes read through this stream
+     */
+    long bytesRead() {
+        return position;
+    }
+}
@@ -0,0 +1,19 @@
+package io.github.michaelboyles.s3extension;
+
+/**
+ * Receives the bytes of a file as they are transferred, so that they can be passed on as transfer progress events.
+ */
+@FunctionalInterface
+interface ProgressListener {
+    void progress(byte[] buffer, int offset, int length);
+
+    /**
+     * @return a listener which passes the bytes to this listener, then to the next
+     */
+    default ProgressListener andThen(ProgressListener next) {
+        return (buffer, offset, length) -> {
+            progress(buffer, offset, length);
+            next.progress(buffer, offset, length);
+        };
+    }
+}
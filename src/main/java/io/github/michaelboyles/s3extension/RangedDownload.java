@@ -0,0 +1,148 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a large object as several byte ranges at once, writing each range directly to its offset in the
+ * destination file.
+ * <p>
+ * The first range is taken from the response to the original, non-ranged GET, which is abandoned once that range has
+ * been read. The remaining ranges are requested with the ETag of that response as a precondition, so that if the
+ * object changes mid-download, the download fails rather than producing a file stitched together from two versions.
+ * <p>
+ * Progress is always reported in order of offset, even though the ranges may arrive in any order, since some
+ * listeners (e.g. checksum calculation in Maven Resolver) rely on seeing the content sequentially. Ranges which
+ * arrive early are reported by reading them back from the file once all preceding ranges have been reported.
+ */
+final class RangedDownload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final S3Client s3;
+    private final long partSize;
+    private final int concurrency;
+
+    RangedDownload(S3Client s3, long partSize, int concurrency) {
+        this.s3 = s3;
+        this.partSize = Math.max(partSize, BUFFER_SIZE);
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * @param request the request which produced the first response
+     * @param first the response to the original GET, which this will consume and abort
+     * @param destination the file to write to, which will be resized to the length of the object
+     */
+    void download(GetObjectRequest request, ResponseInputStream<GetObjectResponse> first, File destination,
+                  ProgressListener progress)
+        throws IOException, InterruptedException
+    {
+        long length = first.response().contentLength();
+        String eTag = first.response().eTag();
+        int partCount = (int) ((length + partSize - 1) / partSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(concurrency, partCount - 1)), new DaemonThreadFactory("s3-ranged-download")
+        );
+        List<Future<?>> futures = new ArrayList<>(partCount - 1);
+        try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            for (int i = 1; i < partCount; i++) {
+                long start = i * partSize;
+                long end = Math.min(start + partSize, length);
+                futures.add(executor.submit(() -> {
+                    downloadRange(request, eTag, channel, start, end);
+                    return null;
+                }));
+            }
+            copyRange(first, channel, 0, Math.min(partSize, length), progress);
+            // we don't want the rest of the object from this connection
+            first.abort();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+                long start = (i + 1) * partSize;
+                reportRange(channel, start, Math.min(start + partSize, length), buffer, progress);
+            }
+        }
+        catch (ExecutionException e) {
+            cancel(futures);
+            throw MultipartUpload.rethrow(e.getCause());
+        }
+        catch (IOException | InterruptedException | RuntimeException e) {
+            cancel(futures);
+            throw e;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void downloadRange(GetObjectRequest request, String eTag, FileChannel channel, long start, long end)
+        throws IOException
+    {
+        var rangeRequest = request.toBuilder()
+            .range("bytes=" + start + "-" + (end - 1))
+            .ifMatch(eTag)
+            .build();
+        try (InputStream in = s3.getObject(rangeRequest)) {
+            copyRange(in, channel, start, end, null);
+        }
+    }
+
+    private static void copyRange(InputStream in, FileChannel channel, long start, long end, ProgressListener progress)
+        throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        while (position < end) {
+            int length = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (length == -1) {
+                throw new IOException("Connection closed after " + (position - start) + " of " + (end - start) + " bytes");
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+            if (progress != null) {
+                progress.progress(buffer, 0, length);
+            }
+        }
+    }
+
+    private static void reportRange(FileChannel channel, long start, long end, byte[] buffer, ProgressListener progress)
+        throws IOException
+    {
+        long position = start;
+        while (position < end) {
+            int length = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position)), position);
+            if (length == -1) {
+                throw new IOException("Downloaded file was truncated");
+            }
+            progress.progress(buffer, 0, length);
+            position += length;
+        }
+    }
+
+    private static void cancel(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.repository.Repository;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+
+import java.util.Map;
+
+/**
+ * Creates or repairs the {@link ExistenceIndex} of a repository from a listing of its bucket, e.g. before turning on
+ * {@code existenceIndex} for a repository which already has content, or after uploading to it some other way.
+ * <p>
+ * Usage: {@code java -cp <extension and its dependencies> io.github.michaelboyles.s3extension.RebuildIndex
+ * s3://bucket/path [--region REGION] [--endpoint URL] [--path-style] [--acl ACL] [--prune]}. Credentials come from the
+ * default AWS provider chain.
+ */
+public final class RebuildIndex {
+    private RebuildIndex() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        String region = null;
+        String endpoint = null;
+        boolean pathStyleAccess = false;
+        ObjectCannedACL acl = null;
+        boolean prune = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--region": region = value(args, ++i); break;
+                case "--endpoint": endpoint = value(args, ++i); break;
+                case "--path-style": pathStyleAccess = true; break;
+                case "--acl": acl = ObjectCannedACL.fromValue(value(args, ++i)); break;
+                case "--prune": prune = true; break;
+                default:
+                    if (url != null || !args[i].startsWith("s3://")) usage("Unexpected argument " + args[i]);
+                    url = args[i];
+            }
+        }
+        if (url == null) usage("No repository URL");
+
+        Repository repository = new Repository("index", url);
+        S3Location location = S3Location.of(repository);
+        S3ClientKey clientKey = new S3ClientKey(
+            location.bucket(), region, endpoint, pathStyleAccess, null, 0, HttpClientSettings.builder().build()
+        );
+        try (S3Client s3 = clientKey.newClient()) {
+            Map<String, Integer> written = ExistenceIndex.getInstance().rebuild(s3, location, prune, acl);
+            written.forEach((directory, paths) -> System.out.println(
+                (directory.isEmpty() ? "/" : directory) + ": " + paths + " paths"
+            ));
+            System.out.println("Rewrote " + written.size() + " shards of the index of " + url);
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) usage("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: RebuildIndex s3://bucket/path [--region REGION] [--endpoint URL] [--path-style] "
+            + "[--acl ACL] [--prune]");
+        System.exit(2);
+    }
+}
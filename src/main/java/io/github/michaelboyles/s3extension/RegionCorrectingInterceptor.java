@@ -0,0 +1,60 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.Optional;
+
+/**
+ * Notices when S3 rejects a request because it was sent to the wrong region, and corrects the region which the
+ * {@link ResolutionCache} remembers for the repository, so that the next client goes straight to the bucket's region.
+ * The request itself is retried in the right region by the SDK's cross-region access.
+ * <p>
+ * A remembered region can be wrong even though nothing which the region provider chain reads has changed, e.g. when
+ * {@code ~/.m2} is restored from a CI cache onto a runner in another region.
+ */
+final class RegionCorrectingInterceptor implements ExecutionInterceptor {
+    private static final String BUCKET_REGION_HEADER = "x-amz-bucket-region";
+
+    private final String repository;
+    private final String region;
+    private final long cacheTtlMillis;
+
+    /**
+     * @param region the region which the client was built with
+     */
+    RegionCorrectingInterceptor(String repository, String region, long cacheTtlMillis) {
+        this.repository = repository;
+        this.region = region;
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    @Override
+    public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+        if (!(context.exception() instanceof S3Exception)) return;
+        S3Exception exception = (S3Exception) context.exception();
+        Optional<String> bucketRegion = context.httpResponse()
+            .flatMap(response -> response.firstMatchingHeader(BUCKET_REGION_HEADER));
+        if (!isWrongRegion(exception, bucketRegion.isPresent())) return;
+        if (bucketRegion.isPresent() && !bucketRegion.get().equals(region)) {
+            ResolutionCache.getInstance().putRegion(repository, bucketRegion.get(), cacheTtlMillis);
+        }
+        else {
+            ResolutionCache.getInstance().forgetRegion(repository);
+        }
+    }
+
+    /**
+     * The same errors for which the SDK's cross-region access retries in another region.
+     */
+    private static boolean isWrongRegion(S3Exception exception, boolean hasBucketRegion) {
+        int status = exception.statusCode();
+        if (status == 301 || status == 307) return true;
+        if (status != 400) return false;
+        String code = exception.awsErrorDetails() != null ? exception.awsErrorDetails().errorCode() : null;
+        // HEAD responses have no body, so no error code, only the header
+        return "AuthorizationHeaderMalformed".equals(code) || (code == null && hasBucketRegion);
+    }
+}
@@ -0,0 +1,266 @@
+package io.github.michaelboyles.s3extension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers which credentials provider and which region worked for a repository, so that later clients, in this JVM
+ * or in later builds, can go straight to them instead of probing every source in turn. Probes of the container and
+ * instance metadata endpoints can take seconds to time out on machines which don't have them.
+ * <p>
+ * Entries are persisted to a small properties file in the user's home directory, and expire. Only the names of
+ * providers and regions are stored, never credentials. Each entry records a fingerprint of the AWS environment
+ * variables, system properties and config files, and is ignored if any of them have changed since.
+ */
+final class ResolutionCache {
+    private static final ResolutionCache INSTANCE = new ResolutionCache(
+        Paths.get(System.getProperty("user.home"), ".m2", "s3-maven-extension", "resolution.properties")
+    );
+    private static final String[] SYSTEM_PROPERTIES = {
+        "aws.accessKeyId", "aws.region", "aws.profile", "aws.webIdentityTokenFile", "aws.roleArn",
+        "aws.configFile", "aws.sharedCredentialsFile", "aws.disableEc2Metadata"
+    };
+    private static final String[] ENVIRONMENT_VARIABLES = {
+        "AWS_ACCESS_KEY_ID", "AWS_REGION", "AWS_PROFILE", "AWS_WEB_IDENTITY_TOKEN_FILE", "AWS_ROLE_ARN",
+        "AWS_CONFIG_FILE", "AWS_SHARED_CREDENTIALS_FILE", "AWS_CONTAINER_CREDENTIALS_RELATIVE_URI",
+        "AWS_CONTAINER_CREDENTIALS_FULL_URI", "AWS_EC2_METADATA_DISABLED"
+    };
+
+    private final Path stateFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private String fingerprint;
+    private boolean loaded;
+
+    private ResolutionCache(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    static ResolutionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the name of the credentials provider which last worked for the repository, or null if not known
+     */
+    synchronized String getProvider(String repository) {
+        Entry entry = get(repository);
+        return entry != null ? entry.provider : null;
+    }
+
+    /**
+     * @return the region which was last resolved for the repository, or null if not known
+     */
+    synchronized String getRegion(String repository) {
+        Entry entry = get(repository);
+        return entry != null ? entry.region : null;
+    }
+
+    synchronized void putProvider(String repository, String provider, long ttlMillis) {
+        if (ttlMillis <= 0) return;
+        Entry entry = getOrCreate(repository, ttlMillis);
+        entry.provider = provider;
+        save(repository, entry);
+    }
+
+    synchronized void putRegion(String repository, String region, long ttlMillis) {
+        if (ttlMillis <= 0) return;
+        Entry entry = getOrCreate(repository, ttlMillis);
+        entry.region = region;
+        save(repository, entry);
+    }
+
+    /**
+     * Forget the provider for the repository, because it stopped working.
+     */
+    synchronized void forgetProvider(String repository) {
+        Entry entry = get(repository);
+        if (entry == null || entry.provider == null) return;
+        entry.provider = null;
+        save(repository, entry);
+    }
+
+    /**
+     * Forget the region for the repository, because S3 said the bucket isn't in it.
+     */
+    synchronized void forgetRegion(String repository) {
+        Entry entry = get(repository);
+        if (entry == null || entry.region == null) return;
+        entry.region = null;
+        save(repository, entry);
+    }
+
+    private Entry get(String repository) {
+        load();
+        String id = id(repository);
+        Entry entry = entries.get(id);
+        if (entry == null) return null;
+        if (entry.expiresAt <= System.currentTimeMillis() || !entry.fingerprint.equals(fingerprint)) {
+            entries.remove(id);
+            return null;
+        }
+        return entry;
+    }
+
+    private Entry getOrCreate(String repository, long ttlMillis) {
+        Entry entry = get(repository);
+        if (entry == null) {
+            entry = new Entry(fingerprint, System.currentTimeMillis() + ttlMillis);
+            entries.put(id(repository), entry);
+        }
+        return entry;
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        fingerprint = fingerprint();
+        Properties properties = read();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(".expires")) continue;
+            String id = name.substring(0, name.length() - ".expires".length());
+            try {
+                Entry entry = new Entry(
+                    properties.getProperty(id + ".fingerprint", ""),
+                    Long.parseLong(properties.getProperty(name))
+                );
+                entry.provider = properties.getProperty(id + ".provider");
+                entry.region = properties.getProperty(id + ".region");
+                entries.put(id, entry);
+            }
+            catch (NumberFormatException e) {
+                // ignore the entry, it will be overwritten
+            }
+        }
+    }
+
+    /**
+     * Write the entry to the state file. The file is read again first, so that entries which another build wrote in
+     * the meantime are kept. It's only a cache, so failures to write are ignored.
+     */
+    private void save(String repository, Entry entry) {
+        Properties properties = read();
+        String id = id(repository);
+        long now = System.currentTimeMillis();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.endsWith(".expires") && parseLong(properties.getProperty(name)) <= now) {
+                String expiredId = name.substring(0, name.length() - ".expires".length());
+                properties.keySet().removeIf(key -> key.toString().startsWith(expiredId + '.'));
+            }
+        }
+        properties.keySet().removeIf(key -> key.toString().startsWith(id + '.'));
+        properties.setProperty(id + ".fingerprint", entry.fingerprint);
+        properties.setProperty(id + ".expires", Long.toString(entry.expiresAt));
+        if (entry.provider != null) properties.setProperty(id + ".provider", entry.provider);
+        if (entry.region != null) properties.setProperty(id + ".region", entry.region);
+        try {
+            Files.createDirectories(stateFile.getParent());
+            Path temp = Files.createTempFile(stateFile.getParent(), "resolution", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    properties.store(out, "Credentials providers and regions which worked for S3 repositories");
+                }
+                Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // try again next time
+        }
+    }
+
+    private Properties read() {
+        Properties properties = new Properties();
+        if (!Files.isRegularFile(stateFile)) return properties;
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            properties.load(in);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            // a corrupt file is treated as empty, and replaced on the next write
+            properties.clear();
+        }
+        return properties;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Repositories are identified by a hash, so that bucket names and access keys aren't written to the file.
+     */
+    private static String id(String repository) {
+        return sha256(repository).substring(0, 32);
+    }
+
+    /**
+     * A hash of everything which the credentials and region provider chains read which is cheap to check. If a
+     * variable is set, or a config file is edited, then what worked before might no longer be the right choice.
+     */
+    private static String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : SYSTEM_PROPERTIES) {
+            sb.append(name).append('=').append(System.getProperty(name)).append('\n');
+        }
+        for (String name : ENVIRONMENT_VARIABLES) {
+            sb.append(name).append('=').append(System.getenv(name)).append('\n');
+        }
+        Path awsDirectory = Paths.get(System.getProperty("user.home"), ".aws");
+        for (Path file : new Path[] { awsDirectory.resolve("config"), awsDirectory.resolve("credentials") }) {
+            sb.append(file).append('=').append(lastModified(file)).append('\n');
+        }
+        return sha256(sb.toString());
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+        catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final long expiresAt;
+        private String provider;
+        private String region;
+
+        Entry(String fingerprint, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package io.github.michaelboyles.s3extension;
 
 import org.apache.maven.wagon.authentication.AuthenticationInfo;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProviderChain;
 import software.amazon.awssdk.auth.credentials.ContainerCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
@@ -9,7 +10,11 @@ import software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvide
 import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.SystemPropertyCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.WebIdentityTokenFileCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 
 final class S3Auth {
@@ -18,22 +23,63 @@ final class S3Auth {
     }
 
     public static AwsCredentialsProviderChain getAuthChain(AuthenticationInfo auth) {
+        if (auth == null) {
+            return getAuthChain(null, null);
+        }
+        return getAuthChain(Objects.requireNonNull(auth.getUserName()), Objects.requireNonNull(auth.getPassword()));
+    }
+
+    /**
+     * @param accessKey the access key from the Maven config, or null if there isn't one
+     */
+    public static AwsCredentialsProviderChain getAuthChain(String accessKey, String secretKey) {
+        return AwsCredentialsProviderChain.builder()
+            .credentialsProviders(getProviders(accessKey, secretKey).values())
+            .build();
+    }
+
+    /**
+     * Get a provider which tries the same providers as {@link #getAuthChain(String, String)}, but which goes straight
+     * to the one that worked last time for this repository, if that is known.
+     *
+     * @param repository identifies the repository in the {@link ResolutionCache}
+     * @param cacheTtlMillis how long to remember the provider which worked. Zero or less disables it
+     */
+    public static AwsCredentialsProvider getCredentialsProvider(String repository, String accessKey, String secretKey,
+                                                                long cacheTtlMillis) {
+        return new MemoizedCredentialsProvider(repository, getProviders(accessKey, secretKey), cacheTtlMillis);
+    }
+
+    /**
+     * Get the region from the default region provider chain, or the region which it found last time for this
+     * repository, if that is known.
+     */
+    public static Region getRegion(String repository, long cacheTtlMillis) {
+        ResolutionCache cache = ResolutionCache.getInstance();
+        String known = cacheTtlMillis > 0 ? cache.getRegion(repository) : null;
+        if (known != null) {
+            return Region.of(known);
+        }
+        Region region = new DefaultAwsRegionProviderChain().getRegion();
+        cache.putRegion(repository, region.id(), cacheTtlMillis);
+        return region;
+    }
+
+    private static Map<String, AwsCredentialsProvider> getProviders(String accessKey, String secretKey) {
         // This is basically the default order from software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider,
         // with the exceptions that system properties "-D" come before environment variables, and that values from the
         // Maven config is inserted 4th
-        var builder = AwsCredentialsProviderChain.builder()
-            .addCredentialsProvider(SystemPropertyCredentialsProvider.create())
-            .addCredentialsProvider(EnvironmentVariableCredentialsProvider.create())
-            .addCredentialsProvider(WebIdentityTokenFileCredentialsProvider.create());
-        if (auth != null) {
-            String accessKey = Objects.requireNonNull(auth.getUserName());
-            String secretKey = Objects.requireNonNull(auth.getPassword());
-            builder.addCredentialsProvider(() -> AwsBasicCredentials.create(accessKey, secretKey));
+        Map<String, AwsCredentialsProvider> providers = new LinkedHashMap<>();
+        providers.put("systemProperties", SystemPropertyCredentialsProvider.create());
+        providers.put("environment", EnvironmentVariableCredentialsProvider.create());
+        providers.put("webIdentityToken", WebIdentityTokenFileCredentialsProvider.create());
+        if (accessKey != null) {
+            Objects.requireNonNull(secretKey);
+            providers.put("settings", () -> AwsBasicCredentials.create(accessKey, secretKey));
         }
-        return builder
-            .addCredentialsProvider(ProfileCredentialsProvider.create())
-            .addCredentialsProvider(ContainerCredentialsProvider.builder().build())
-            .addCredentialsProvider(InstanceProfileCredentialsProvider.builder().build())
-            .build();
+        providers.put("profile", ProfileCredentialsProvider.create());
+        providers.put("container", ContainerCredentialsProvider.builder().build());
+        providers.put("instanceProfile", InstanceProfileCredentialsProvider.builder().build());
+        return providers;
     }
 }
@@ -0,0 +1,107 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * Identifies an {@link S3Client} in the {@link S3ClientRegistry}, and holds everything needed to build it. Two wagons
+ * (or transporters) which produce equal keys may safely share a client.
+ */
+final class S3ClientKey {
+    private final String bucket;
+    private final String region;
+    private final String endpoint;
+    private final boolean pathStyleAccess;
+    private final String accessKey;
+    private final String secretKey;
+    private final long resolutionCacheTtlMillis;
+    private final HttpClientSettings httpClientSettings;
+
+    /**
+     * @param resolutionCacheTtlMillis how long to remember which credentials provider and region worked for this
+     *                                 repository. Zero or less disables it
+     */
+    S3ClientKey(String bucket, String region, String endpoint, boolean pathStyleAccess, AuthenticationInfo auth,
+                long resolutionCacheTtlMillis, HttpClientSettings httpClientSettings) {
+        this.bucket = Objects.requireNonNull(bucket);
+        this.region = region;
+        this.endpoint = endpoint;
+        this.pathStyleAccess = pathStyleAccess;
+        this.accessKey = auth != null ? auth.getUserName() : null;
+        this.secretKey = auth != null ? auth.getPassword() : null;
+        this.resolutionCacheTtlMillis = resolutionCacheTtlMillis;
+        this.httpClientSettings = Objects.requireNonNull(httpClientSettings);
+    }
+
+    S3Client newClient() {
+        var builder = S3Client.builder()
+            .credentialsProvider(
+                S3Auth.getCredentialsProvider(repository(), accessKey, secretKey, resolutionCacheTtlMillis)
+            )
+            .httpClientBuilder(httpClientSettings.newHttpClient())
+            .forcePathStyle(pathStyleAccess);
+        if (region != null) {
+            builder.region(Region.of(region.trim()))
+                .overrideConfiguration(httpClientSettings::configure);
+        }
+        else {
+            Region resolved = S3Auth.getRegion(repository(), resolutionCacheTtlMillis);
+            builder.region(resolved);
+            if (resolutionCacheTtlMillis > 0) {
+                // the region may have been remembered from a build where it was right, so fall back to the bucket's
+                builder.crossRegionAccessEnabled(true)
+                    .overrideConfiguration(override -> {
+                        httpClientSettings.configure(override);
+                        override.addExecutionInterceptor(
+                            new RegionCorrectingInterceptor(repository(), resolved.id(), resolutionCacheTtlMillis)
+                        );
+                    });
+            }
+            else {
+                builder.overrideConfiguration(httpClientSettings::configure);
+            }
+        }
+        if (endpoint != null) {
+            builder.endpointOverride(URI.create(endpoint.trim()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Identifies the repository in the {@link ResolutionCache}. Different access keys may resolve differently.
+     */
+    private String repository() {
+        return bucket + '|' + endpoint + '|' + accessKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof S3ClientKey)) return false;
+        S3ClientKey that = (S3ClientKey) o;
+        return bucket.equals(that.bucket)
+            && Objects.equals(region, that.region)
+            && Objects.equals(endpoint, that.endpoint)
+            && pathStyleAccess == that.pathStyleAccess
+            && Objects.equals(accessKey, that.accessKey)
+            && Objects.equals(secretKey, that.secretKey)
+            && resolutionCacheTtlMillis == that.resolutionCacheTtlMillis
+            && httpClientSettings.equals(that.httpClientSettings);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bucket, region, endpoint, pathStyleAccess, accessKey, secretKey, resolutionCacheTtlMillis, httpClientSettings);
+    }
+
+    @Override
+    public String toString() {
+        // never include the secret
+        return "S3ClientKey[bucket=" + bucket + ", region=" + region + ", endpoint=" + endpoint
+            + ", pathStyleAccess=" + pathStyleAccess + ", accessKey=" + accessKey + ", http=" + httpClientSettings + "]";
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A JVM-wide registry of {@link S3Client}s. Wagons are instantiated per-lookup, so without this, every connect would
+ * build a new client (and its connection pool) and every disconnect would throw away its warm connections.
+ * <p>
+ * Clients are reference-counted. When the last lease on a client is released, it is closed after an idle timeout,
+ * unless it is acquired again in the meantime. Any clients still open are closed when the JVM exits.
+ */
+final class S3ClientRegistry {
+    private static final S3ClientRegistry INSTANCE = new S3ClientRegistry();
+
+    private final Map<S3ClientKey, Entry> entries = new HashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    private S3ClientRegistry() {
+        var executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("s3-client-reaper"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.reaper = executor;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeAll, "s3-client-shutdown"));
+    }
+
+    static S3ClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a lease on the client for the given key, creating the client if there isn't one already. Building a client
+     * can be slow, so it's done without holding the registry's lock. If another thread built one for the same key in
+     * the meantime, that one is used and this one is closed.
+     */
+    Lease acquire(S3ClientKey key, Supplier<S3Client> factory) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) return lease(entry);
+        }
+        S3Client client = factory.get();
+        Lease lease;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, client);
+                entries.put(key, entry);
+                return lease(entry);
+            }
+            lease = lease(entry);
+        }
+        client.close();
+        return lease;
+    }
+
+    private Lease lease(Entry entry) {
+        entry.references++;
+        if (entry.pendingClose != null) {
+            entry.pendingClose.cancel(false);
+            entry.pendingClose = null;
+        }
+        return new Lease(entry);
+    }
+
+    private synchronized void release(Entry entry, long idleTimeoutMillis) {
+        entry.references--;
+        if (entry.references > 0) return;
+        if (idleTimeoutMillis <= 0) {
+            closeIfIdle(entry);
+        }
+        else {
+            entry.pendingClose = reaper.schedule(() -> closeIfIdle(entry), idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void closeIfIdle(Entry entry) {
+        // may have been re-acquired, or replaced, since the close was scheduled
+        if (entry.references > 0 || entries.get(entry.key) != entry) return;
+        entries.remove(entry.key);
+        entry.client.close();
+    }
+
+    private void closeAll() {
+        List<Entry> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        reaper.shutdownNow();
+        for (Entry entry : toClose) {
+            try {
+                entry.client.close();
+            }
+            catch (RuntimeException e) {
+                // JVM is going down, nothing useful we can do
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final S3ClientKey key;
+        private final S3Client client;
+        private int references;
+        private ScheduledFuture<?> pendingClose;
+
+        private Entry(S3ClientKey key, S3Client client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    /**
+     * A reference to a shared client. Must be released exactly once, after which the client must not be used.
+     */
+    final class Lease {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        S3Client client() {
+            return entry.client;
+        }
+
+        void release(long idleTimeoutMillis) {
+            synchronized (S3ClientRegistry.this) {
+                if (released) return;
+                released = true;
+                S3ClientRegistry.this.release(entry, idleTimeoutMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.repository.Repository;
+
+import java.nio.file.Paths;
+
+/**
+ * Maps the locations of resources in a repository to keys in its bucket. A repository URL of
+ * {@code s3://my-bucket/some/path} means that {@code com/example/foo.jar} is stored at
+ * {@code some/path/com/example/foo.jar} in {@code my-bucket}.
+ */
+final class S3Location {
+    private final String bucket;
+    private final String baseDir;
+
+    private S3Location(String bucket, String baseDir) {
+        this.bucket = bucket;
+        this.baseDir = baseDir;
+    }
+
+    static S3Location of(Repository repository) {
+        return new S3Location(repository.getHost(), normalizeBaseDir(repository.getBasedir()));
+    }
+
+    private static String normalizeBaseDir(String basedir) {
+        StringBuilder sb = new StringBuilder(basedir);
+        sb.deleteCharAt(0);
+        if (sb.length() == 0) return "";
+        if (sb.charAt(sb.length() - 1) != '/') {
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+
+    String bucket() {
+        return bucket;
+    }
+
+    String key(String location) {
+        String path = Paths.get(baseDir + location).normalize().toString();
+        return path.replace("\\", "/"); // for Windows OS
+    }
+
+    String directoryKey(String directory) {
+        String key = key(directory == null ? "" : directory);
+        return key.isEmpty() || key.endsWith("/") ? key : key + "/";
+    }
+}
@@ -0,0 +1,479 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counts operations, failures and bytes, and records latency histograms, for every wagon in the JVM. Recording is
+ * lock-free, so it's cheap enough to always be on.
+ * <p>
+ * The metrics are available over JMX (see {@link S3MetricsMXBean}), and can optionally be written as a report when
+ * the JVM exits, i.e. at the end of the build.
+ */
+final class S3Metrics implements S3MetricsMXBean {
+    private static final S3Metrics INSTANCE = new S3Metrics();
+    private static final String OBJECT_NAME = "io.github.michaelboyles.s3extension:type=S3Metrics";
+
+    enum Operation {
+        GET, PUT, GET_IF_NEWER, RESOURCE_EXISTS, HEAD, LIST
+    }
+
+    private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+    private final LongAdder forbidden = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder hedgesSent = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder prefetchedMissing = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder prefetchUnused = new LongAdder();
+    private final LongAdder sharedCacheRevalidated = new LongAdder();
+    private final LongAdder sharedCacheChanged = new LongAdder();
+    private final LongAdder sharedCacheMissed = new LongAdder();
+    private final LongAdder uploadsSkipped = new LongAdder();
+    private final LongAdder uploadBytesSkipped = new LongAdder();
+    private final LongAdder indexAbsent = new LongAdder();
+    private final LongAdder indexDownloaded = new LongAdder();
+    private final LongAdder indexWritten = new LongAdder();
+    private final AtomicReference<String> reportDestination = new AtomicReference<>();
+
+    private S3Metrics() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationMetrics());
+        }
+    }
+
+    static S3Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException | RuntimeException e) {
+            // e.g. already registered by a copy of this class in another class realm. Metrics still work without JMX
+        }
+    }
+
+    /**
+     * Start timing an operation. The sample must be completed with either success or failure.
+     */
+    Sample start(Operation operation) {
+        return new Sample(operations.get(operation), System.nanoTime());
+    }
+
+    /**
+     * Write a report when the JVM exits. Only the first destination configured is used.
+     *
+     * @param destination a file path, or "stderr"
+     */
+    void reportAtExit(String destination) {
+        if (destination == null || destination.isBlank()) return;
+        if (reportDestination.compareAndSet(null, destination.trim())) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::writeReport, "s3-metrics-report"));
+        }
+    }
+
+    private void writeReport() {
+        String destination = reportDestination.get();
+        String report = getReport();
+        if (destination.equalsIgnoreCase("stderr")) {
+            PrintStream err = System.err;
+            err.print(report);
+            err.flush();
+            return;
+        }
+        try {
+            Path path = Paths.get(destination);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.write(path, report.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write S3 metrics report to " + destination + ": " + e);
+        }
+    }
+
+    /**
+     * Record that a GET was slow, so the same request was sent again.
+     */
+    void hedgeSent() {
+        hedgesSent.increment();
+    }
+
+    /**
+     * Record that the second of two hedged GETs responded first.
+     */
+    void hedgeWon() {
+        hedgesWon.increment();
+    }
+
+    /**
+     * Record that a file was fetched before it was asked for.
+     */
+    void prefetched() {
+        prefetched.increment();
+    }
+
+    /**
+     * Record that a file which was going to be fetched before it was asked for was found not to exist.
+     */
+    void prefetchedMissing() {
+        prefetchedMissing.increment();
+    }
+
+    /**
+     * Record that a prefetched file was used.
+     */
+    void prefetchHit() {
+        prefetchHits.increment();
+    }
+
+    /**
+     * Record that a prefetched file was evicted or expired before it was used.
+     */
+    void prefetchUnused() {
+        prefetchUnused.increment();
+    }
+
+    /**
+     * Record that a copy in the shared metadata cache was still current, so S3 didn't send the content.
+     */
+    void sharedCacheRevalidated() {
+        sharedCacheRevalidated.increment();
+    }
+
+    /**
+     * Record that a copy in the shared metadata cache was out of date, so S3 sent a newer one.
+     */
+    void sharedCacheChanged() {
+        sharedCacheChanged.increment();
+    }
+
+    /**
+     * Record that the shared metadata cache had no copy of a file, so it was fetched in full.
+     */
+    void sharedCacheMissed() {
+        sharedCacheMissed.increment();
+    }
+
+    /**
+     * Record that a file wasn't uploaded, because S3 already had the same content.
+     */
+    void uploadSkipped(long bytes) {
+        uploadsSkipped.increment();
+        uploadBytesSkipped.add(bytes);
+    }
+
+    /**
+     * Record that the existence index said an object doesn't exist, so S3 wasn't asked.
+     */
+    void existenceIndexAbsent() {
+        indexAbsent.increment();
+    }
+
+    /**
+     * Record that a shard of the existence index was downloaded, rather than found to be unchanged.
+     */
+    void existenceIndexDownloaded() {
+        indexDownloaded.increment();
+    }
+
+    /**
+     * Record that a shard of the existence index was written.
+     */
+    void existenceIndexWritten() {
+        indexWritten.increment();
+    }
+
+    private void recordFailureCause(Throwable failure) {
+        int status = statusOf(failure);
+        if (status == 403) forbidden.increment();
+        else if (status == 404) notFound.increment();
+        else if (status == 503 || status == 429 || isThrottling(failure)) throttled.increment();
+        else if (status >= 500) serverErrors.increment();
+    }
+
+    private static int statusOf(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof SdkServiceException) return ((SdkServiceException) t).statusCode();
+            if (t instanceof ResourceDoesNotExistException) return 404;
+            if (t instanceof AuthorizationException) return 403;
+        }
+        return 0;
+    }
+
+    private static boolean isThrottling(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof SdkServiceException && ((SdkServiceException) t).isThrottlingException()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        return longs(metrics -> metrics.count.sum());
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return longs(metrics -> metrics.errors.sum());
+    }
+
+    @Override
+    public Map<String, Long> getBytesTransferred() {
+        return longs(metrics -> metrics.bytes.sum());
+    }
+
+    @Override
+    public Map<String, double[]> getLatencyPercentilesMillis() {
+        Map<String, double[]> result = new LinkedHashMap<>();
+        operations.forEach((operation, metrics) -> result.put(operation.name(), new double[] {
+            metrics.percentileMillis(0.5), metrics.percentileMillis(0.9), metrics.percentileMillis(0.99)
+        }));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getBytesPerSecond() {
+        return doubles(OperationMetrics::bytesPerSecond);
+    }
+
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("403", forbidden.sum());
+        result.put("404", notFound.sum());
+        result.put("5xx", serverErrors.sum());
+        result.put("throttled", throttled.sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getHedgeCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("sent", hedgesSent.sum());
+        result.put("won", hedgesWon.sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPrefetchCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("prefetched", prefetched.sum());
+        result.put("missing", prefetchedMissing.sum());
+        result.put("hits", prefetchHits.sum());
+        result.put("unused", prefetchUnused.sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getSharedCacheCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("revalidated", sharedCacheRevalidated.sum());
+        result.put("changed", sharedCacheChanged.sum());
+        result.put("missed", sharedCacheMissed.sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getSkippedUploadCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("skipped", uploadsSkipped.sum());
+        result.put("bytes", uploadBytesSkipped.sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getExistenceIndexCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("absent", indexAbsent.sum());
+        result.put("downloaded", indexDownloaded.sum());
+        result.put("written", indexWritten.sum());
+        return result;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("S3 wagon metrics\n");
+        sb.append(String.format(Locale.ROOT, "%-16s %8s %7s %12s %10s %9s %9s %9s %9s%n",
+            "operation", "count", "errors", "bytes", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        operations.forEach((operation, metrics) -> {
+            long count = metrics.count.sum();
+            if (count == 0) return;
+            sb.append(String.format(Locale.ROOT, "%-16s %8d %7d %12d %10.2f %9.1f %9.1f %9.1f %9.1f%n",
+                operation, count, metrics.errors.sum(), metrics.bytes.sum(), metrics.bytesPerSecond() / 1_000_000,
+                metrics.percentileMillis(0.5), metrics.percentileMillis(0.9), metrics.percentileMillis(0.99),
+                metrics.maxNanos.get(0) / 1_000_000.0));
+        });
+        sb.append("failures: ").append(getFailureCounts()).append('\n');
+        if (hedgesSent.sum() > 0) {
+            sb.append("hedged GETs: ").append(getHedgeCounts()).append('\n');
+        }
+        long prefetchedTotal = prefetched.sum() + prefetchedMissing.sum();
+        if (prefetchedTotal > 0) {
+            sb.append(String.format(Locale.ROOT, "prefetch: %s, hit rate %.1f%%%n",
+                getPrefetchCounts(), prefetchHits.sum() * 100.0 / prefetchedTotal));
+        }
+        if (sharedCacheRevalidated.sum() + sharedCacheChanged.sum() + sharedCacheMissed.sum() > 0) {
+            sb.append("shared metadata cache: ").append(getSharedCacheCounts()).append('\n');
+        }
+        if (uploadsSkipped.sum() > 0) {
+            sb.append("unchanged uploads: ").append(getSkippedUploadCounts()).append('\n');
+        }
+        if (indexAbsent.sum() + indexDownloaded.sum() + indexWritten.sum() > 0) {
+            sb.append("existence index: ").append(getExistenceIndexCounts()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        operations.values().forEach(OperationMetrics::reset);
+        forbidden.reset();
+        notFound.reset();
+        serverErrors.reset();
+        throttled.reset();
+        hedgesSent.reset();
+        hedgesWon.reset();
+        prefetched.reset();
+        prefetchedMissing.reset();
+        prefetchHits.reset();
+        prefetchUnused.reset();
+        sharedCacheRevalidated.reset();
+        sharedCacheChanged.reset();
+        sharedCacheMissed.reset();
+        uploadsSkipped.reset();
+        uploadBytesSkipped.reset();
+        indexAbsent.reset();
+        indexDownloaded.reset();
+        indexWritten.reset();
+    }
+
+    private Map<String, Long> longs(ToLongFunction<OperationMetrics> getter) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        operations.forEach((operation, metrics) -> result.put(operation.name(), getter.applyAsLong(metrics)));
+        return result;
+    }
+
+    private Map<String, Double> doubles(ToDoubleFunction<OperationMetrics> getter) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        operations.forEach((operation, metrics) -> result.put(operation.name(), getter.applyAsDouble(metrics)));
+        return result;
+    }
+
+    /**
+     * A latency histogram with power-of-two buckets of microseconds, plus counters.
+     */
+    private static final class OperationMetrics {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray maxNanos = new AtomicLongArray(1);
+
+        void record(long nanos, long byteCount, boolean error) {
+            count.increment();
+            if (error) errors.increment();
+            if (byteCount > 0) bytes.add(byteCount);
+            totalNanos.add(nanos);
+            histogram.incrementAndGet(bucketOf(nanos));
+            long max;
+            while (nanos > (max = maxNanos.get(0)) && !maxNanos.compareAndSet(0, max, nanos)) {
+                // retry
+            }
+        }
+
+        private static int bucketOf(long nanos) {
+            long micros = Math.max(nanos / 1000, 1);
+            return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        }
+
+        /**
+         * @return an estimate of the percentile: the upper bound of the bucket it falls in
+         */
+        double percentileMillis(double percentile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min((1L << (i + 1)) / 1000.0, maxNanos.get(0) / 1_000_000.0);
+                }
+            }
+            return maxNanos.get(0) / 1_000_000.0;
+        }
+
+        double bytesPerSecond() {
+            long nanos = totalNanos.sum();
+            return nanos == 0 ? 0 : bytes.sum() * 1_000_000_000.0 / nanos;
+        }
+
+        void reset() {
+            count.reset();
+            errors.reset();
+            bytes.reset();
+            totalNanos.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+            maxNanos.set(0, 0);
+        }
+    }
+
+    /**
+     * A single timed operation.
+     */
+    final class Sample {
+        private final OperationMetrics metrics;
+        private final long startNanos;
+
+        private Sample(OperationMetrics metrics, long startNanos) {
+            this.metrics = metrics;
+            this.startNanos = startNanos;
+        }
+
+        void success(long bytes) {
+            metrics.record(System.nanoTime() - startNanos, bytes, false);
+        }
+
+        void failure(Throwable cause) {
+            metrics.record(System.nanoTime() - startNanos, 0, true);
+            recordFailureCause(cause);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.michaelboyles.s3extension;
+
+import java.util.Map;
+
+/**
+ * Exposes the operation metrics of all S3 wagons in this JVM over JMX, under the name
+ * {@code io.github.michaelboyles.s3extension:type=S3Metrics}.
+ */
+public interface S3MetricsMXBean {
+    /**
+     * @return the number of each type of operation, keyed by operation
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * @return the number of each type of operation which failed, keyed by operation
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * @return the number of bytes transferred by each type of operation, keyed by operation
+     */
+    Map<String, Long> getBytesTransferred();
+
+    /**
+     * @return the estimated 50th, 90th and 99th percentile latency of each type of operation in milliseconds, keyed by
+     * operation
+     */
+    Map<String, double[]> getLatencyPercentilesMillis();
+
+    /**
+     * @return the average throughput of each type of operation in bytes per second, keyed by operation
+     */
+    Map<String, Double> getBytesPerSecond();
+
+    /**
+     * @return the number of failed requests, keyed by cause: 403, 404, 5xx or throttled
+     */
+    Map<String, Long> getFailureCounts();
+
+    /**
+     * @return the number of GETs which were slow enough to be sent again, and how many of those the second request won
+     */
+    Map<String, Long> getHedgeCounts();
+
+    /**
+     * @return the number of files which were prefetched, the number which were found not to exist when they were going
+     * to be, how many of either were used, and how many were evicted or expired before they could be
+     */
+    Map<String, Long> getPrefetchCounts();
+
+    /**
+     * @return the number of GETs for metadata which the shared cache served after S3 said it was unchanged, the number
+     * for which S3 sent a newer copy than the cached one, and the number which weren't cached at all
+     */
+    Map<String, Long> getSharedCacheCounts();
+
+    /**
+     * @return the number of files which weren't uploaded because S3 already had the same content, and their total size
+     */
+    Map<String, Long> getSkippedUploadCounts();
+
+    /**
+     * @return the number of lookups which the existence index answered without asking S3, and the number of shards of
+     * it which were downloaded and written
+     */
+    Map<String, Long> getExistenceIndexCounts();
+
+    /**
+     * @return a human-readable summary of everything
+     */
+    String getReport();
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset();
+}
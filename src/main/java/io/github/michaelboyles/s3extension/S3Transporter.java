@@ -0,0 +1,385 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.eclipse.aether.spi.connector.transport.AbstractTransporter;
+import org.eclipse.aether.spi.connector.transport.GetTask;
+import org.eclipse.aether.spi.connector.transport.PeekTask;
+import org.eclipse.aether.spi.connector.transport.PutTask;
+import org.eclipse.aether.spi.connector.transport.TransportListener;
+import org.eclipse.aether.spi.connector.transport.TransportTask;
+import org.eclipse.aether.transfer.TransferCancelledException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * A native Maven Resolver transporter for S3. Resolver runs several transfers from a repository at the same time, on
+ * its own threads, through a single transporter. Unlike wagons, which Maven instantiates per lookup and connects and
+ * disconnects around every transfer, all of those transfers share one client and its connection pool.
+ * <p>
+ * Buckets, keys and credentials are worked out the same way as {@link S3Wagon} does, and the caches of object
+ * metadata and listings are shared with it.
+ */
+final class S3Transporter extends AbstractTransporter {
+    private static final String CHECKSUM_MODE_HEADER = "x-amz-checksum-mode";
+
+    private final S3Location location;
+    private final S3TransporterOptions options;
+    private final S3ClientRegistry.Lease clientLease;
+    private final S3Client s3;
+
+    S3Transporter(S3Location location, S3ClientKey clientKey, S3TransporterOptions options) {
+        this.location = location;
+        this.options = options;
+        this.clientLease = S3ClientRegistry.getInstance().acquire(clientKey, clientKey::newClient);
+        this.s3 = clientLease.client();
+    }
+
+    @Override
+    public int classify(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ResourceDoesNotExistException || t instanceof NoSuchKeyException) return ERROR_NOT_FOUND;
+            if (t instanceof S3Exception && ((S3Exception) t).statusCode() == 404) return ERROR_NOT_FOUND;
+        }
+        return ERROR_OTHER;
+    }
+
+    @Override
+    protected void implPeek(PeekTask task) throws Exception {
+        String key = keyOf(task);
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.RESOURCE_EXISTS);
+        try {
+            ObjectMetadataCache.Entry known = ObjectMetadataCache.getInstance().get(location.bucket(), key);
+            if (known == null) {
+                if (!mayExist(key)) {
+                    throw notFound(task);
+                }
+                head(key);
+            }
+            else if (!known.exists()) {
+                throw notFound(task);
+            }
+            sample.success(0);
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return false if the existence index is enabled, and says the object doesn't exist
+     */
+    private boolean mayExist(String key) {
+        return !options.existenceIndex()
+            || ExistenceIndex.getInstance().mayExist(s3, location, key, options.existenceIndexTtlMillis());
+    }
+
+    private void head(String key) {
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.HEAD);
+        try {
+            HeadObjectResponse response = s3.headObject(
+                HeadObjectRequest.builder()
+                    .bucket(location.bucket())
+                    .key(key)
+                    .build()
+            );
+            sample.success(0);
+            ObjectMetadataCache.getInstance().putExists(
+                location.bucket(), key, response.contentLength(), response.eTag(), response.lastModified(),
+                options.metadataCacheTtlMillis()
+            );
+        }
+        catch (NoSuchKeyException e) {
+            sample.failure(e);
+            ObjectMetadataCache.getInstance().putMissing(location.bucket(), key, options.negativeMetadataCacheTtlMillis());
+            throw e;
+        }
+        catch (RuntimeException e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void implGet(GetTask task) throws Exception {
+        String key = keyOf(task);
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.GET);
+        try {
+            ObjectMetadataCache.Entry known = ObjectMetadataCache.getInstance().get(location.bucket(), key);
+            if ((known != null && !known.exists()) || (known == null && !mayExist(key))) {
+                throw notFound(task);
+            }
+            GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(location.bucket())
+                .key(key)
+                // Set the header directly, rather than using checksumMode, so the SDK doesn't also verify it
+                .overrideConfiguration(config -> {
+                    if (options.verifyChecksums()) config.putHeader(CHECKSUM_MODE_HEADER, "ENABLED");
+                })
+                .build();
+            long length;
+            ResponseInputStream<GetObjectResponse> resumed = resume(task, request);
+            boolean resuming = resumed != null;
+            try (ResponseInputStream<GetObjectResponse> stream = resuming ? resumed : getObject(request)) {
+                GetObjectResponse response = stream.response();
+                long offset = resuming ? task.getResumeOffset() : 0;
+                length = response.contentLength() != null ? offset + response.contentLength() : -1;
+                if (!resuming) {
+                    ObjectMetadataCache.getInstance().putExists(
+                        location.bucket(), key, length, response.eTag(), response.lastModified(), options.metadataCacheTtlMillis()
+                    );
+                }
+                // S3 doesn't send the checksum of the whole object with part of it. Resolver verifies its own anyway
+                StreamingChecksum.Expected checksum = options.verifyChecksums() && !resuming
+                    ? StreamingChecksum.forResponse(response)
+                    : null;
+                InputStream in = checksum != null ? new ProgressInputStream(stream, checksum.checksum()) : stream;
+                utilGet(task, in, true, length, resuming);
+                if (checksum != null) {
+                    checksum.verify();
+                }
+            }
+            sample.success(length);
+        }
+        catch (NoSuchKeyException e) {
+            sample.failure(e);
+            ObjectMetadataCache.getInstance().putMissing(location.bucket(), key, options.negativeMetadataCacheTtlMillis());
+            throw e;
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Resolver keeps the start of a download which failed, and asks for the rest next time. The rest is only sent if
+     * the object wasn't modified since the partial file was last written to, so that the two halves are the same
+     * version.
+     *
+     * @return the rest of the object, or null if it has to be downloaded from the start
+     */
+    private ResponseInputStream<GetObjectResponse> resume(GetTask task, GetObjectRequest request) {
+        File partial = task.getDataFile();
+        if (task.getResumeOffset() <= 0 || partial == null) return null;
+        try {
+            return send(request.toBuilder()
+                .range("bytes=" + task.getResumeOffset() + "-")
+                .ifUnmodifiedSince(Instant.ofEpochMilli(partial.lastModified()))
+                .build());
+        }
+        catch (S3Exception e) {
+            // 412 means it has changed, and 416 that the partial file is already complete, or too long
+            if (e.statusCode() != 412 && e.statusCode() != 416) throw e;
+            return null;
+        }
+    }
+
+    private ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) throws IOException {
+        ResponseInputStream<GetObjectResponse> stream = options.prefetch()
+            ? Prefetcher.getInstance().take(request.bucket(), request.key())
+            : null;
+        if (stream == null) {
+            SharedMetadataCache cache = options.sharedMetadataCache() && SharedMetadataCache.isCacheable(request.key())
+                ? openSharedMetadataCache()
+                : null;
+            stream = cache != null ? cache.getObject(request, this::send) : send(request);
+        }
+        if (options.prefetch()) {
+            Prefetcher.getInstance().prefetchSiblings(
+                s3, request, options.prefetchSuffixes(), options.prefetchCacheBytes(),
+                options.negativeMetadataCacheTtlMillis()
+            );
+        }
+        return stream;
+    }
+
+    /**
+     * @return the shared metadata cache, or null if it can't be used. Downloads work without it, just less efficiently
+     */
+    private SharedMetadataCache openSharedMetadataCache() {
+        try {
+            return SharedMetadataCache.open(options.sharedMetadataCacheDirectory(), options.sharedMetadataCacheBytes());
+        }
+        catch (IOException e) {
+            System.err.println("Not using the shared metadata cache, which failed to open: " + e);
+            return null;
+        }
+    }
+
+    private ResponseInputStream<GetObjectResponse> send(GetObjectRequest request) {
+        return options.hedgeGets()
+            ? HedgedGet.getInstance().getObject(s3, request, options.hedgePercentile(), options.hedgeBudgetPercent())
+            : s3.getObject(request);
+    }
+
+    @Override
+    protected void implPut(PutTask task) throws Exception {
+        String key = keyOf(task);
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.PUT);
+        try {
+            long length = task.getDataLength();
+            task.getListener().transportStarted(0, length);
+            ProgressListener progress = progressListener(task.getListener());
+            ChecksumAlgorithm checksumAlgorithm = options.checksumAlgorithm();
+            ObjectCannedACL acl = options.acl();
+            String cacheControl = S3Wagon.cacheControlFor(task.getLocation().getPath());
+            File dataFile = task.getDataFile();
+            try {
+                if (options.existenceIndex()) {
+                    // before the upload, so the index never says that an object which exists doesn't
+                    ExistenceIndex.getInstance().add(s3, location, key, acl);
+                }
+                boolean unchanged = dataFile != null && options.skipUnchangedUploadThreshold() > 0
+                    && length >= options.skipUnchangedUploadThreshold()
+                    && UnchangedUpload.skipIfUnchanged(
+                        s3, location.bucket(), key, dataFile, options.multipartPartSize(), cacheControl, acl
+                    );
+                if (!unchanged) {
+                    if (options.multipartThreshold() > 0 && length >= options.multipartThreshold()) {
+                        var createRequest = CreateMultipartUploadRequest.builder()
+                            .bucket(location.bucket())
+                            .key(key)
+                            .acl(acl)
+                            .cacheControl(cacheControl)
+                            .checksumAlgorithm(checksumAlgorithm)
+                            .build();
+                        var upload = new MultipartUpload(
+                            s3, options.multipartPartSize(), options.multipartConcurrency(), checksumAlgorithm
+                        );
+                        if (dataFile != null) {
+                            upload.upload(dataFile, createRequest, progress);
+                        }
+                        else {
+                            try (InputStream in = new ProgressInputStream(task.newInputStream(), progress)) {
+                                upload.upload(in, createRequest);
+                            }
+                        }
+                    }
+                    else {
+                        putObject(task, key, acl, cacheControl, progress);
+                    }
+                }
+            }
+            catch (Exception e) {
+                throw unwrapCancellation(e);
+            }
+            ListingCache.invalidate(location.bucket(), key);
+            ObjectMetadataCache.getInstance().invalidate(location.bucket(), key);
+            Prefetcher.getInstance().invalidate(location.bucket(), key);
+            sample.success(length);
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    private void putObject(PutTask task, String key, ObjectCannedACL acl, String cacheControl, ProgressListener progress)
+        throws IOException
+    {
+        ChecksumAlgorithm checksumAlgorithm = options.checksumAlgorithm();
+        StreamingChecksum checksum = checksumAlgorithm != null ? StreamingChecksum.of(checksumAlgorithm) : null;
+        ProgressListener listener = checksum != null ? checksum.andThen(progress) : progress;
+        // the SDK may open the stream more than once, if it retries. Only report progress the first time around
+        long[] reportedUpTo = { 0 };
+        RequestBody body = RequestBody.fromContentProvider(
+            () -> {
+                try {
+                    return new ProgressInputStream(task.newInputStream(), reportedUpTo, listener);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            },
+            task.getDataLength(),
+            "application/octet-stream"
+        );
+        PutObjectResponse response = s3.putObject(
+            PutObjectRequest.builder()
+                .bucket(location.bucket())
+                .key(key)
+                .acl(acl)
+                .cacheControl(cacheControl)
+                // the SDK computes it as it sends the content, and sends it as a trailer
+                .checksumAlgorithm(checksumAlgorithm)
+                .build(),
+            body
+        );
+        String stored = checksum != null ? StreamingChecksum.valueOf(response, checksumAlgorithm) : null;
+        if (stored != null && !stored.equals(checksum.value())) {
+            // what S3 stored is not what we read, so it's corrupt
+            s3.deleteObject(DeleteObjectRequest.builder().bucket(location.bucket()).key(key).build());
+            throw new IOException(
+                "Uploaded " + checksumAlgorithm + " checksum " + stored + " does not match local " + checksum.value()
+            );
+        }
+    }
+
+    @Override
+    protected void implClose() {
+        clientLease.release(options.clientIdleTimeoutMillis());
+    }
+
+    private String keyOf(TransportTask task) {
+        return location.key(task.getLocation().getPath());
+    }
+
+    private static ResourceDoesNotExistException notFound(TransportTask task) {
+        return new ResourceDoesNotExistException("Resource " + task.getLocation() + " does not exist in the repository");
+    }
+
+    /**
+     * Adapt a Resolver listener to be called from within the SDK, which only allows unchecked exceptions to escape.
+     */
+    private static ProgressListener progressListener(TransportListener listener) {
+        return (buffer, offset, length) -> {
+            try {
+                listener.transportProgressed(ByteBuffer.wrap(buffer, offset, length).asReadOnlyBuffer());
+            }
+            catch (TransferCancelledException e) {
+                throw new CancelledException(e);
+            }
+        };
+    }
+
+    /**
+     * @return the cancellation which caused the failure, if it was one, otherwise the failure itself
+     */
+    private static Exception unwrapCancellation(Exception failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof CancelledException) {
+                return (TransferCancelledException) t.getCause();
+            }
+        }
+        return failure;
+    }
+
+    private static final class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(TransferCancelledException cause) {
+            super(cause);
+        }
+    }
+}
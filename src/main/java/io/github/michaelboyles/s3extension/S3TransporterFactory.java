@@ -0,0 +1,157 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.configuration.PlexusConfiguration;
+import org.eclipse.aether.ConfigurationProperties;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.repository.AuthenticationContext;
+import org.eclipse.aether.repository.Proxy;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.spi.connector.transport.Transporter;
+import org.eclipse.aether.spi.connector.transport.TransporterFactory;
+import org.eclipse.aether.transfer.NoTransporterException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates {@link S3Transporter}s for repositories with s3:// URLs. It has a higher priority than the transporter which
+ * adapts wagons, so Maven uses it in preference to {@link S3Wagon}. Set {@code aether.priority.S3TransporterFactory}
+ * to a negative number to go back to the wagon.
+ */
+public final class S3TransporterFactory implements TransporterFactory {
+    private static final String WAGON_CONFIG_PREFIX = "aether.connector.wagon.config.";
+    private static final String FILE_MODE_PREFIX = "aether.connector.perms.fileMode.";
+
+    private float priority = 10;
+
+    @Override
+    public Transporter newInstance(RepositorySystemSession session, RemoteRepository repository) throws NoTransporterException {
+        if (!"s3".equals(repository.getProtocol())) {
+            throw new NoTransporterException(repository);
+        }
+        try {
+            Object fileMode = session.getConfigProperties().get(FILE_MODE_PREFIX + repository.getId());
+            var options = new S3TransporterOptions(
+                serverConfiguration(session, repository), fileMode != null ? fileMode.toString() : null
+            );
+            S3Location location = S3Location.of(new Repository(repository.getId(), repository.getUrl()));
+            var clientKey = new S3ClientKey(
+                location.bucket(), options.region(), options.endpoint(), options.pathStyleAccess(),
+                authenticationInfo(session, repository), options.resolutionCacheTtlMillis(),
+                httpClientSettings(session, repository, options)
+            );
+            ObjectMetadataCache.getInstance().requestMaxEntries(options.metadataCacheMaxEntries());
+            S3Metrics.getInstance().reportAtExit(options.metricsReport());
+            return new S3Transporter(location, clientKey, options);
+        }
+        catch (RuntimeException e) {
+            throw new NoTransporterException(repository, e);
+        }
+    }
+
+    /**
+     * The contents of the {@code <configuration>} of the server in settings.xml, which Maven passes on as a
+     * {@link PlexusConfiguration}.
+     */
+    private static Map<String, String> serverConfiguration(RepositorySystemSession session, RemoteRepository repository) {
+        Map<String, String> values = new HashMap<>();
+        Object configuration = session.getConfigProperties().get(WAGON_CONFIG_PREFIX + repository.getId());
+        if (configuration instanceof PlexusConfiguration) {
+            for (PlexusConfiguration child : ((PlexusConfiguration) configuration).getChildren()) {
+                values.put(child.getName(), child.getValue(null));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Timeouts come from Resolver's own settings, and the proxy from the one which Maven selected for the repository,
+     * as they do for the wagon.
+     */
+    private static HttpClientSettings httpClientSettings(RepositorySystemSession session, RemoteRepository repository,
+                                                         S3TransporterOptions options) {
+        var settings = HttpClientSettings.builder()
+            .implementation(options.httpClient())
+            .connectTimeoutMillis(timeout(
+                session, repository, ConfigurationProperties.CONNECT_TIMEOUT, ConfigurationProperties.DEFAULT_CONNECT_TIMEOUT
+            ))
+            .readTimeoutMillis(timeout(
+                session, repository, ConfigurationProperties.REQUEST_TIMEOUT, ConfigurationProperties.DEFAULT_REQUEST_TIMEOUT
+            ))
+            .maxConnections(options.maxConnections())
+            .connectionTtlMillis(options.connectionTtlMillis())
+            .socketSendBufferSize(options.socketSendBufferSize())
+            .socketReceiveBufferSize(options.socketReceiveBufferSize())
+            .retryMode(options.retryMode())
+            .maxAttempts(options.maxAttempts());
+        Proxy proxy = repository.getProxy();
+        if (proxy != null) {
+            String userName = null;
+            String password = null;
+            AuthenticationContext context = AuthenticationContext.forProxy(session, repository);
+            if (context != null) {
+                try {
+                    userName = context.get(AuthenticationContext.USERNAME);
+                    password = context.get(AuthenticationContext.PASSWORD);
+                }
+                finally {
+                    AuthenticationContext.close(context);
+                }
+            }
+            // Resolver has already applied the non-proxy hosts when it chose the proxy
+            settings.proxy(proxy.getType(), proxy.getHost(), proxy.getPort(), userName, password, null);
+        }
+        return settings.build();
+    }
+
+    /**
+     * @return the timeout for the repository, else the timeout for all repositories, else the default
+     */
+    private static long timeout(RepositorySystemSession session, RemoteRepository repository, String key,
+                                int defaultValue) {
+        for (String name : new String[] { key + '.' + repository.getId(), key }) {
+            Object value = session.getConfigProperties().get(name);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            if (value instanceof String && !((String) value).isBlank()) {
+                try {
+                    return Long.parseLong(((String) value).trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    private static AuthenticationInfo authenticationInfo(RepositorySystemSession session, RemoteRepository repository) {
+        AuthenticationContext context = AuthenticationContext.forRepository(session, repository);
+        if (context == null) return null;
+        try {
+            String userName = context.get(AuthenticationContext.USERNAME);
+            String password = context.get(AuthenticationContext.PASSWORD);
+            if (userName == null || password == null) return null;
+            AuthenticationInfo info = new AuthenticationInfo();
+            info.setUserName(userName);
+            info.setPassword(password);
+            return info;
+        }
+        finally {
+            AuthenticationContext.close(context);
+        }
+    }
+
+    @Override
+    public float getPriority() {
+        return priority;
+    }
+
+    public S3TransporterFactory setPriority(float priority) {
+        this.priority = priority;
+        return this;
+    }
+}
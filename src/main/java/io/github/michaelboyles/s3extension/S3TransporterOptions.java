@@ -0,0 +1,182 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The options of {@link S3Transporter}. They come from the same settings.xml server configuration as the options of
+ * {@link S3Wagon}, have the same names, and default to the same values. Options which only apply to the wagon, such
+ * as those for directories, are ignored.
+ */
+final class S3TransporterOptions {
+    private final Map<String, String> values;
+    private final ObjectCannedACL acl;
+
+    /**
+     * @param values the server configuration, by element name
+     * @param fileMode the server's file permissions, which are used as the canned ACL, or null
+     */
+    S3TransporterOptions(Map<String, String> values, String fileMode) {
+        this.values = values;
+        this.acl = fileMode != null && !fileMode.isBlank() ? ObjectCannedACL.fromValue(fileMode.trim()) : null;
+    }
+
+    String region() {
+        return string("region", null);
+    }
+
+    String endpoint() {
+        return string("endpoint", null);
+    }
+
+    boolean pathStyleAccess() {
+        return Boolean.parseBoolean(string("pathStyleAccess", "false"));
+    }
+
+    long clientIdleTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(number("clientIdleTimeoutSeconds", 60));
+    }
+
+    long multipartThreshold() {
+        return number("multipartThreshold", 64L * 1024 * 1024);
+    }
+
+    long multipartPartSize() {
+        return number("multipartPartSize", 16L * 1024 * 1024);
+    }
+
+    int multipartConcurrency() {
+        return (int) number("multipartConcurrency", 4);
+    }
+
+    long metadataCacheTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(number("metadataCacheTtlSeconds", 60));
+    }
+
+    long negativeMetadataCacheTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(number("negativeMetadataCacheTtlSeconds", 60));
+    }
+
+    int metadataCacheMaxEntries() {
+        return (int) number("metadataCacheMaxEntries", 10_000);
+    }
+
+    /**
+     * @return the algorithm, or null if checksums are disabled
+     */
+    ChecksumAlgorithm checksumAlgorithm() {
+        return StreamingChecksum.parseAlgorithm(string("checksumAlgorithm", "CRC32C"));
+    }
+
+    boolean verifyChecksums() {
+        return Boolean.parseBoolean(string("verifyChecksums", "true"));
+    }
+
+    String metricsReport() {
+        return string("metricsReport", null);
+    }
+
+    long resolutionCacheTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(number("resolutionCacheTtlSeconds", 24 * 60 * 60));
+    }
+
+    String httpClient() {
+        return string("httpClient", "apache");
+    }
+
+    int maxConnections() {
+        return (int) number("maxConnections", 0);
+    }
+
+    long connectionTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(number("connectionTtlSeconds", 0));
+    }
+
+    int socketSendBufferSize() {
+        return (int) number("socketSendBufferSize", 0);
+    }
+
+    int socketReceiveBufferSize() {
+        return (int) number("socketReceiveBufferSize", 0);
+    }
+
+    String retryMode() {
+        return string("retryMode", null);
+    }
+
+    int maxAttempts() {
+        return (int) number("maxAttempts", 0);
+    }
+
+    boolean hedgeGets() {
+        return Boolean.parseBoolean(string("hedgeGets", "false"));
+    }
+
+    int hedgePercentile() {
+        return (int) number("hedgePercentile", 95);
+    }
+
+    int hedgeBudgetPercent() {
+        return (int) number("hedgeBudgetPercent", 5);
+    }
+
+    boolean prefetch() {
+        return Boolean.parseBoolean(string("prefetch", "false"));
+    }
+
+    List<String> prefetchSuffixes() {
+        return Prefetcher.parseSuffixes(string("prefetchSuffixes", ".pom.sha1,.jar,.jar.sha1"));
+    }
+
+    long prefetchCacheBytes() {
+        return number("prefetchCacheBytes", 64L * 1024 * 1024);
+    }
+
+    boolean sharedMetadataCache() {
+        return Boolean.parseBoolean(string("sharedMetadataCache", "false"));
+    }
+
+    String sharedMetadataCacheDirectory() {
+        return string("sharedMetadataCacheDirectory", null);
+    }
+
+    long sharedMetadataCacheBytes() {
+        return number("sharedMetadataCacheBytes", 64L * 1024 * 1024);
+    }
+
+    long skipUnchangedUploadThreshold() {
+        return number("skipUnchangedUploadThreshold", 0);
+    }
+
+    boolean existenceIndex() {
+        return Boolean.parseBoolean(string("existenceIndex", "false"));
+    }
+
+    long existenceIndexTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(number("existenceIndexTtlSeconds", 60));
+    }
+
+    ObjectCannedACL acl() {
+        return acl;
+    }
+
+    private String string(String name, String defaultValue) {
+        String value = values.get(name);
+        return value != null && !value.isBlank() ? value.trim() : defaultValue;
+    }
+
+    private long number(String name, long defaultValue) {
+        String value = string(name, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+}
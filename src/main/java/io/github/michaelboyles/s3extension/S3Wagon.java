@@ -1,44 +1,245 @@
 package io.github.michaelboyles.s3extension;
 
+import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.StreamingWagon;
 import org.apache.maven.wagon.TransferFailedException;
 import org.apache.maven.wagon.Wagon;
 import org.apache.maven.wagon.authentication.AuthenticationInfo;
 import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.proxy.ProxyInfo;
 import org.apache.maven.wagon.proxy.ProxyInfoProvider;
 import org.apache.maven.wagon.repository.Repository;
 import org.apache.maven.wagon.repository.RepositoryPermissions;
 import org.apache.maven.wagon.resource.Resource;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A Maven {@link Wagon} which lets you use Amazon S3 as an artifact repository.
+ * A Maven {@link Wagon} which lets you use Amazon S3 as an artifact repository. As a {@link StreamingWagon}, content
+ * can also be streamed to and from S3 directly, without being staged in a file.
  */
-public final class S3Wagon extends ListeningWagon {
+public final class S3Wagon extends ListeningWagon implements StreamingWagon {
     private static final String NO_CACHE = "no-cache";
     private static final String CACHE_FOREVER = "public,max-age=31536000,immutable";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CHECKSUM_MODE_HEADER = "x-amz-checksum-mode";
 
+    /**
+     * The AWS region of the bucket. If unset, the default AWS region provider chain is used. Configurable in
+     * settings.xml server configuration.
+     */
+    private String region;
+    /**
+     * Overrides the S3 endpoint, e.g. for S3-compatible stores. Configurable in settings.xml server configuration.
+     */
+    private String endpoint;
+    /**
+     * Whether to address buckets by path rather than by virtual host. Usually needed alongside {@link #endpoint}.
+     */
+    private boolean pathStyleAccess;
+    /**
+     * How long a shared client is kept open after the last wagon using it disconnects.
+     */
+    private long clientIdleTimeoutSeconds = 60;
+    /**
+     * Files at least this many bytes are uploaded using a multipart upload. Zero or less disables multipart uploads.
+     */
+    private long multipartThreshold = 64L * 1024 * 1024;
+    /**
+     * The size of each part of a multipart upload. S3 requires at least 5 MiB.
+     */
+    private long multipartPartSize = 16L * 1024 * 1024;
+    /**
+     * The maximum number of parts of a single file to upload at the same time.
+     */
+    private int multipartConcurrency = 4;
+    /**
+     * Objects at least this many bytes are downloaded as several concurrent byte ranges. Zero or less disables it.
+     */
+    private long parallelDownloadThreshold = 64L * 1024 * 1024;
+    /**
+     * The size of each byte range of a parallel download.
+     */
+    private long downloadPartSize = 16L * 1024 * 1024;
+    /**
+     * The maximum number of byte ranges of a single object to download at the same time. 1 disables parallel downloads.
+     */
+    private int downloadConcurrency = 4;
+    /**
+     * The maximum number of files to upload at the same time when putting a directory.
+     */
+    private int directoryUploadConcurrency = 8;
+    /**
+     * The maximum total size of the files being uploaded at the same time when putting a directory.
+     */
+    private long directoryUploadMaxInFlightBytes = 256L * 1024 * 1024;
+    /**
+     * How long to remember that an object exists, along with its size, ETag and last-modified time. Zero disables it.
+     */
+    private long metadataCacheTtlSeconds = 60;
+    /**
+     * How long to remember that an object does not exist. Zero disables it.
+     */
+    private long negativeMetadataCacheTtlSeconds = 60;
+    /**
+     * The maximum number of objects to remember metadata for. The cache is shared by all repositories, so it's as large
+     * as the largest any of them is configured with.
+     */
+    private int metadataCacheMaxEntries = 10_000;
+    /**
+     * The algorithm S3 uses to verify uploads: CRC32, CRC32C, SHA1, SHA256 or NONE.
+     */
+    private String checksumAlgorithm = "CRC32C";
+    /**
+     * Whether to verify downloads against the checksum S3 stored for the object, if there is one.
+     */
+    private boolean verifyChecksums = true;
+    /**
+     * Where to write a summary of the metrics of all S3 operations at the end of the build: a file path, or "stderr".
+     * Unset means no report. Metrics are always available over JMX.
+     */
+    private String metricsReport;
+    /**
+     * How long to remember which credentials provider and region worked for the repository, across builds. Zero
+     * disables it.
+     */
+    private long resolutionCacheTtlSeconds = 24 * 60 * 60;
+    /**
+     * The HTTP implementation: apache, urlconnection or crt. The CRT must be added to the classpath separately.
+     */
+    private String httpClient = "apache";
+    /**
+     * The maximum number of open connections to S3, shared by all transfers using the same client. Zero means the
+     * HTTP implementation's default.
+     */
+    private int maxConnections;
+    /**
+     * How long a pooled connection may be reused for before it's closed. Zero means forever.
+     */
+    private long connectionTtlSeconds;
+    /**
+     * The socket send buffer size in bytes. Zero means the OS default.
+     */
+    private int socketSendBufferSize;
+    /**
+     * The socket receive buffer size in bytes. Zero means the OS default.
+     */
+    private int socketReceiveBufferSize;
+    /**
+     * The SDK retry mode: standard, adaptive or legacy. Unset means the SDK's default.
+     */
+    private String retryMode;
+    /**
+     * The maximum number of attempts at each request, including the first. Zero means the retry mode's default.
+     */
+    private int maxAttempts;
+    /**
+     * Whether to send a GET again if it's slow to respond, and use whichever response comes first.
+     */
+    private boolean hedgeGets;
+    /**
+     * A GET is hedged if it has waited longer than this percentile of recent GETs for its response.
+     */
+    private int hedgePercentile = 95;
+    /**
+     * The maximum number of hedged GETs, as a percentage of all GETs.
+     */
+    private int hedgeBudgetPercent = 5;
+    /**
+     * Whether to fetch the files which usually follow a POM, in the background, as soon as the POM is fetched.
+     */
+    private boolean prefetch;
+    /**
+     * What to replace ".pom" with to make the names of the files to prefetch, separated by commas.
+     */
+    private String prefetchSuffixes = ".pom.sha1,.jar,.jar.sha1";
+    /**
+     * The maximum total size of prefetched files waiting to be used, shared by all repositories. Files bigger than a
+     * quarter of this aren't prefetched.
+     */
+    private long prefetchCacheBytes = 64L * 1024 * 1024;
+    /**
+     * Whether put returns as soon as the upload is queued, rather than once it's finished. Metadata is uploaded
+     * straight away, but only once everything queued before it has been uploaded.
+     */
+    private boolean deferredPuts;
+    /**
+     * The maximum number of queued uploads to run at the same time, shared by all repositories.
+     */
+    private int deferredPutConcurrency = 8;
+    /**
+     * The maximum total size of queued uploads. Streams bigger than this are uploaded straight away.
+     */
+    private long deferredPutQueueBytes = 256L * 1024 * 1024;
+    /**
+     * If a download fails after at least this many bytes, they are kept, and the next attempt carries on from there.
+     * Zero disables it.
+     */
+    private long resumeDownloadThreshold = 1024 * 1024;
+    /**
+     * Whether to keep metadata in a cache shared by every build on this host, and revalidate it by ETag rather than
+     * download it again.
+     */
+    private boolean sharedMetadataCache;
+    /**
+     * Where to keep the shared metadata cache. Unset means ~/.m2/s3-maven-extension/shared-metadata.
+     */
+    private String sharedMetadataCacheDirectory;
+    /**
+     * The maximum total size of the shared metadata cache. The least recently used files are evicted first.
+     */
+    private long sharedMetadataCacheBytes = 64L * 1024 * 1024;
+    /**
+     * Before uploading a file of at least this many bytes, check whether S3 already has the same content, and if so,
+     * don't upload it again. Zero disables it.
+     */
+    private long skipUnchangedUploadThreshold;
+    /**
+     * Whether to keep an index of the repository's paths, and use it to answer lookups for objects which don't exist
+     * without asking S3.
+     */
+    private boolean existenceIndex;
+    /**
+     * How long to use a downloaded part of the existence index for before revalidating it. Zero revalidates it every
+     * time.
+     */
+    private long existenceIndexTtlSeconds = 60;
+
+    private S3Location location;
+    private S3ClientRegistry.Lease clientLease;
     private S3Client s3;
 
     @Override
@@ -50,35 +251,147 @@ public final class S3Wagon extends ListeningWagon {
     public void connect(Repository source, AuthenticationInfo authenticationInfo, ProxyInfoProvider proxyInfoProvider) {
         fireSessionOpening();
         setRepository(source);
-        var credentials = S3Auth.getAuthChain(authenticationInfo);
-        this.s3 = S3Client.builder().credentialsProvider(credentials).build();
+        this.location = S3Location.of(source);
+        S3ClientKey key = clientKey(source, authenticationInfo, proxyInfoProvider);
+        this.clientLease = S3ClientRegistry.getInstance().acquire(key, key::newClient);
+        this.s3 = clientLease.client();
+        ObjectMetadataCache.getInstance().requestMaxEntries(metadataCacheMaxEntries);
+        if (deferredPuts) {
+            DeferredPuts.getInstance().setConcurrency(deferredPutConcurrency);
+        }
+        S3Metrics.getInstance().reportAtExit(metricsReport);
         fireSessionOpened();
         fireSessionLoggedIn();
     }
 
+    /**
+     * The key of the client which {@link #connect} leases for the repository, with the current configuration.
+     */
+    S3ClientKey clientKey(Repository source, AuthenticationInfo authenticationInfo, ProxyInfoProvider proxyInfoProvider) {
+        return new S3ClientKey(
+            S3Location.of(source).bucket(), region, endpoint, pathStyleAccess, authenticationInfo,
+            TimeUnit.SECONDS.toMillis(resolutionCacheTtlSeconds), httpClientSettings(proxyInfoProvider)
+        );
+    }
+
+    private HttpClientSettings httpClientSettings(ProxyInfoProvider proxyInfoProvider) {
+        var settings = HttpClientSettings.builder()
+            .implementation(httpClient)
+            .connectTimeoutMillis(getTimeout())
+            .readTimeoutMillis(getReadTimeout())
+            .maxConnections(maxConnections)
+            .connectionTtlMillis(TimeUnit.SECONDS.toMillis(connectionTtlSeconds))
+            .socketSendBufferSize(socketSendBufferSize)
+            .socketReceiveBufferSize(socketReceiveBufferSize)
+            .retryMode(retryMode)
+            .maxAttempts(maxAttempts);
+        String protocol = endpoint != null ? URI.create(endpoint.trim()).getScheme() : "https";
+        ProxyInfo proxy = proxyInfoProvider != null ? proxyInfoProvider.getProxyInfo(protocol) : null;
+        if (proxy != null && proxy.getHost() != null) {
+            settings.proxy(
+                proxy.getType(), proxy.getHost(), proxy.getPort(), proxy.getUserName(), proxy.getPassword(),
+                proxy.getNonProxyHosts()
+            );
+        }
+        return settings.build();
+    }
+
     @Override
     public void get(String resourceName, File destination) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        Resource resource = new Resource(resourceName);
-        fireGetTransferInitiated(resource, destination);
-        fireGetTransferStarted(resource, destination);
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.GET);
+        try {
+            Resource resource = new Resource(resourceName);
+            fireGetTransferInitiated(resource, destination);
+            fireGetTransferStarted(resource, destination);
 
-        _get(resource, destination);
-        fireGetTransferCompleted(resource, destination);
+            _get(resource, destination, null);
+            fireGetTransferCompleted(resource, destination);
+            sample.success(destination.length());
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
     }
 
-    private void _get(Resource resource, File destination) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+    /**
+     * @param ifModifiedSince if not null, only download the object if it was modified after this time
+     * @return true if the object was downloaded, or false if it was not modified
+     */
+    private boolean _get(Resource resource, File destination, Instant ifModifiedSince) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        String key = getKey(resource.getName());
+        awaitDeferredPut(key);
+        if (!mayHaveChanged(resource, key, ifModifiedSince)) {
+            return false;
+        }
         try {
-            GetObjectRequest request = GetObjectRequest.builder()
-                .bucket(getBucketName())
-                .key(getKey(resource.getName()))
-                .build();
-            InputStream stream = s3.getObject(request);
-            writeStreamToFile(stream, resource, destination);
+            GetObjectRequest request = newGetRequest(key, ifModifiedSince, ifModifiedSince != null ? ETagCache.get(destination) : null);
+            PartialDownload partial = ifModifiedSince == null && resumeDownloadThreshold > 0
+                ? PartialDownload.claim(getBucketName(), key)
+                : null;
+            File temp = partial != null ? partial.file() : File.createTempFile(destination.getName(), ".tmp", destination.getParentFile());
+            // how much of the temp file is known to be right, in case it has to be kept for next time
+            long[] verifiedLength = new long[1];
+            String eTag = null;
+            StreamingChecksum.Expected checksum = null;
+            try {
+                TransferProgress progress = newGetTransferProgress(resource, destination);
+                ResponseInputStream<GetObjectResponse> stream = partial != null ? resume(request, partial) : null;
+                if (stream != null) {
+                    eTag = partial.eTag();
+                    checksum = verifyChecksums ? partial.checksum() : null;
+                    ProgressListener sink = withLength(checksum != null ? checksum.checksum().andThen(progress) : progress, verifiedLength);
+                    // report what was downloaded last time too, so listeners and checksums see the whole file
+                    try (InputStream in = new FileInputStream(temp)) {
+                        copy(in, OutputStream.nullOutputStream(), sink);
+                    }
+                    try (InputStream in = stream; OutputStream out = new FileOutputStream(temp, true)) {
+                        copy(in, out, sink);
+                    }
+                }
+                else {
+                    stream = getObject(key, request);
+                    GetObjectResponse response = stream.response();
+                    eTag = response.eTag();
+                    checksum = verifyChecksums ? StreamingChecksum.forResponse(response) : null;
+                    ProgressListener sink = withLength(checksum != null ? checksum.checksum().andThen(progress) : progress, verifiedLength);
+                    if (response.contentLength() != null && isRangedDownload(response.contentLength())) {
+                        new RangedDownload(s3, downloadPartSize, downloadConcurrency).download(request, stream, temp, sink);
+                    }
+                    else {
+                        writeStreamToFile(stream, temp, sink);
+                    }
+                }
+                progress.flush();
+                if (checksum != null) {
+                    checksum.verify();
+                }
+                // finally, move the temp file. Means that if it fails halfway, we aren't left with half a file
+                Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (ifModifiedSince != null) {
+                    ETagCache.put(destination, eTag);
+                }
+                return true;
+            }
+            catch (IOException | SdkException e) {
+                // the connection probably failed. Keep what we've got, so the next attempt doesn't start from nothing
+                if (eTag != null && resumeDownloadThreshold > 0 && verifiedLength[0] >= resumeDownloadThreshold) {
+                    PartialDownload.save(getBucketName(), key, temp, verifiedLength[0], eTag, checksum);
+                }
+                throw e;
+            }
+            finally {
+                Files.deleteIfExists(temp.toPath());
+            }
         }
         catch (NoSuchKeyException e) {
+            ObjectMetadataCache.getInstance().putMissing(getBucketName(), key, negativeMetadataCacheTtlMillis());
             throw new ResourceDoesNotExistException("Resource " + resource + " does not exist in the repository", e);
         }
         catch (S3Exception e) {
+            if (e.statusCode() == 304) {
+                return false;
+            }
             if (e.statusCode() == 403) {
                 throw new AuthorizationException("Bad S3 credentials", e);
             }
@@ -89,77 +402,412 @@ public final class S3Wagon extends ListeningWagon {
         }
     }
 
+    /**
+     * Download straight into the stream. Unlike downloading to a file, the content is always fetched sequentially,
+     * and if the download fails partway then the stream will already have been written to.
+     *
+     * @return the number of bytes written, or -1 if the object was not modified
+     */
+    private long _getToStream(Resource resource, OutputStream destination, Instant ifModifiedSince) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        String key = getKey(resource.getName());
+        awaitDeferredPut(key);
+        if (!mayHaveChanged(resource, key, ifModifiedSince)) {
+            return -1;
+        }
+        try (ResponseInputStream<GetObjectResponse> stream = getObject(key, newGetRequest(key, ifModifiedSince, null))) {
+            GetObjectResponse response = stream.response();
+            TransferProgress progress = newGetTransferProgress(resource, null);
+            StreamingChecksum.Expected checksum = verifyChecksums ? StreamingChecksum.forResponse(response) : null;
+            long length = copy(stream, destination, checksum != null ? checksum.checksum().andThen(progress) : progress);
+            destination.flush();
+            progress.flush();
+            if (checksum != null) {
+                checksum.verify();
+            }
+            return length;
+        }
+        catch (NoSuchKeyException e) {
+            ObjectMetadataCache.getInstance().putMissing(getBucketName(), key, negativeMetadataCacheTtlMillis());
+            throw new ResourceDoesNotExistException("Resource " + resource + " does not exist in the repository", e);
+        }
+        catch (S3Exception e) {
+            if (e.statusCode() == 304) {
+                return -1;
+            }
+            if (e.statusCode() == 403) {
+                throw new AuthorizationException("Bad S3 credentials", e);
+            }
+            throw new TransferFailedException("S3 transfer failed", e);
+        }
+        catch (Exception e) {
+            throw new TransferFailedException("S3 transfer failed", e);
+        }
+    }
+
+    /**
+     * Use what's cached about the object to avoid a request, if possible.
+     *
+     * @return false if the object is known not to have been modified since the given time
+     * @throws ResourceDoesNotExistException if the object is known not to exist
+     */
+    private boolean mayHaveChanged(Resource resource, String key, Instant ifModifiedSince) throws ResourceDoesNotExistException {
+        ObjectMetadataCache.Entry known = ObjectMetadataCache.getInstance().get(getBucketName(), key);
+        if (known != null && !known.exists()) {
+            throw new ResourceDoesNotExistException("Resource " + resource + " does not exist in the repository");
+        }
+        if (known == null && existenceIndex
+            && !ExistenceIndex.getInstance().mayExist(s3, location, key, existenceIndexTtlMillis())) {
+            throw new ResourceDoesNotExistException("Resource " + resource + " is not in the repository's index");
+        }
+        return known == null || ifModifiedSince == null || known.lastModified() == null
+            || known.lastModified().isAfter(ifModifiedSince);
+    }
+
+    private GetObjectRequest newGetRequest(String key, Instant ifModifiedSince, String ifNoneMatch) {
+        return GetObjectRequest.builder()
+            .bucket(getBucketName())
+            .key(key)
+            .ifModifiedSince(ifModifiedSince)
+            .ifNoneMatch(ifNoneMatch)
+            // Set the header directly, rather than using checksumMode, so the SDK doesn't also verify it
+            .overrideConfiguration(config -> {
+                if (verifyChecksums) config.putHeader(CHECKSUM_MODE_HEADER, "ENABLED");
+            })
+            .build();
+    }
+
+    private ResponseInputStream<GetObjectResponse> getObject(String key, GetObjectRequest request) throws IOException {
+        boolean unconditional = request.ifModifiedSince() == null && request.ifNoneMatch() == null;
+        ResponseInputStream<GetObjectResponse> stream = prefetch && unconditional
+            ? Prefetcher.getInstance().take(getBucketName(), key)
+            : null;
+        if (stream == null) {
+            SharedMetadataCache cache = sharedMetadataCache && unconditional && SharedMetadataCache.isCacheable(key)
+                ? openSharedMetadataCache()
+                : null;
+            stream = cache != null ? cache.getObject(request, this::send) : send(request);
+        }
+        GetObjectResponse response = stream.response();
+        long length = response.contentLength() != null ? response.contentLength() : -1;
+        ObjectMetadataCache.getInstance().putExists(
+            getBucketName(), key, length, response.eTag(), response.lastModified(), metadataCacheTtlMillis()
+        );
+        if (prefetch) {
+            Prefetcher.getInstance().prefetchSiblings(
+                s3, request, Prefetcher.parseSuffixes(prefetchSuffixes), prefetchCacheBytes, negativeMetadataCacheTtlMillis()
+            );
+        }
+        return stream;
+    }
+
+    /**
+     * @return the shared metadata cache, or null if it can't be used. Downloads work without it, just less efficiently
+     */
+    private SharedMetadataCache openSharedMetadataCache() {
+        try {
+            return SharedMetadataCache.open(sharedMetadataCacheDirectory, sharedMetadataCacheBytes);
+        }
+        catch (IOException e) {
+            System.err.println("Not using the shared metadata cache, which failed to open: " + e);
+            return null;
+        }
+    }
+
+    private ResponseInputStream<GetObjectResponse> send(GetObjectRequest request) {
+        return hedgeGets
+            ? HedgedGet.getInstance().getObject(s3, request, hedgePercentile, hedgeBudgetPercent)
+            : s3.getObject(request);
+    }
+
     private String getBucketName() {
-        return getRepository().getHost();
+        return location.bucket();
+    }
+
+    private String getKey(String resourceName) {
+        return location.key(resourceName);
     }
 
-    private String getKey(String location) {
-        String baseDir = getBaseDir();
-        String path = Paths.get(baseDir + location).normalize().toString();
-        return path.replace("\\", "/"); // for Windows OS
+    private String getDirectoryKey(String directory) {
+        return location.directoryKey(directory);
     }
 
-    private String getBaseDir() {
-        StringBuilder sb = new StringBuilder(getRepository().getBasedir());
-        sb.deleteCharAt(0);
-        if (sb.length() == 0) return "";
-        if (sb.charAt(sb.length() - 1) != '/') {
-            sb.append('/');
+    /**
+     * Ask for the rest of an object which was partially downloaded before, as long as it hasn't changed since.
+     *
+     * @return the rest of the object, or null if it has to be downloaded from the start
+     */
+    private ResponseInputStream<GetObjectResponse> resume(GetObjectRequest request, PartialDownload partial) throws IOException {
+        try {
+            return send(request.toBuilder().range("bytes=" + partial.length() + "-").ifMatch(partial.eTag()).build());
+        }
+        catch (S3Exception e) {
+            // 412 means it has changed, 416 that we already had all of it, and 404 that it's gone
+            if (e.statusCode() == 412 || e.statusCode() == 416 || e.statusCode() == 404) {
+                Files.deleteIfExists(partial.file().toPath());
+                if (e.statusCode() == 404) throw e;
+                return null;
+            }
+            partial.release();
+            throw e;
+        }
+        catch (SdkException e) {
+            partial.release();
+            throw e;
         }
-        return sb.toString();
     }
 
-    private void writeStreamToFile(InputStream objectInputStream, Resource resource, File destination) throws IOException {
-        File temp = File.createTempFile(destination.getName() , ".tmp", destination.getParentFile());
+    /**
+     * @return a listener which also counts how many bytes it has seen, in the first element of the array
+     */
+    private static ProgressListener withLength(ProgressListener listener, long[] length) {
+        return listener.andThen((buffer, offset, count) -> length[0] += count);
+    }
+
+    private boolean isRangedDownload(long contentLength) {
+        return downloadConcurrency > 1 && parallelDownloadThreshold > 0
+            && contentLength >= parallelDownloadThreshold && contentLength > downloadPartSize;
+    }
+
+    private void writeStreamToFile(InputStream objectInputStream, File temp, ProgressListener progress) throws IOException {
         try (InputStream in = objectInputStream; OutputStream out = new FileOutputStream(temp)) {
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = in.read(buffer)) != -1) {
-                out.write(buffer, 0, length);
-                fireGetTransferProgress(resource, destination, buffer, length);
-            }
+            copy(in, out, progress);
         }
-        // finally, move the temp file. Means that if it fails halfway, we aren't left with half a file
-        Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long copy(InputStream in, OutputStream out, ProgressListener progress) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+            progress.progress(buffer, 0, length);
+            total += length;
+        }
+        return total;
     }
 
     @Override
     public boolean getIfNewer(String resourceName, File destination, long timestamp) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        HeadObjectResponse response = s3.headObject(
-            HeadObjectRequest.builder()
-                .bucket(getBucketName())
-                .key(getKey(resourceName))
-                .build()
-        );
-        if (response.lastModified().isAfter(Instant.ofEpochMilli(timestamp))) {
-            _get(new Resource(resourceName), destination);
-            return true;
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.GET_IF_NEWER);
+        try {
+            // a single conditional GET: S3 responds 304 Not Modified, rather than with the content, if it's not newer
+            boolean isNewer = _get(new Resource(resourceName), destination, Instant.ofEpochMilli(timestamp));
+            sample.success(isNewer ? destination.length() : 0);
+            return isNewer;
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void getToStream(String resourceName, OutputStream stream) throws ResourceDoesNotExistException, TransferFailedException, AuthorizationException {
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.GET);
+        try {
+            Resource resource = new Resource(resourceName);
+            fireGetTransferInitiated(resource, null);
+            fireGetTransferStarted(resource, null);
+            long length = _getToStream(resource, stream, null);
+            fireGetTransferCompleted(resource, null);
+            sample.success(length);
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean getIfNewerToStream(String resourceName, OutputStream stream, long timestamp) throws ResourceDoesNotExistException, TransferFailedException, AuthorizationException {
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.GET_IF_NEWER);
+        try {
+            long length = _getToStream(new Resource(resourceName), stream, Instant.ofEpochMilli(timestamp));
+            sample.success(Math.max(length, 0));
+            return length >= 0;
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
         }
-        return false;
     }
 
     @Override
     public void put(File source, String destination) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (deferredPuts && !isMetadata(destination)) {
+            deferPut(source, new Resource(destination));
+            return;
+        }
+        if (deferredPuts) {
+            awaitDeferredPuts();
+        }
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.PUT);
+        try {
+            Resource resource = new Resource(destination);
+            firePutTransferInitiated(resource, source);
+            firePutTransferStarted(resource, source);
+            _put(source, resource, newPutTransferProgress(resource, source));
+            firePutTransferCompleted(resource, source);
+            sample.success(source.length());
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void putFromStream(InputStream stream, String destination) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        putFromStream(stream, destination, -1, -1);
+    }
+
+    /**
+     * Upload from a stream. If the content length is unknown, or is at least {@link #multipartThreshold}, the
+     * content is sent as a multipart upload, one part at a time as it is read from the stream. S3 stores its own
+     * last-modified time, so the one given is ignored.
+     *
+     * @param contentLength the number of bytes in the stream, or -1 if unknown
+     */
+    @Override
+    public void putFromStream(InputStream stream, String destination, long contentLength, long lastModified) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
         Resource resource = new Resource(destination);
-        firePutTransferInitiated(resource, source);
-        firePutTransferStarted(resource, source);
-        _put(source, resource);
-        firePutTransferCompleted(resource, source);
+        resource.setContentLength(contentLength);
+        resource.setLastModified(lastModified);
+        if (deferredPuts && !isMetadata(destination) && contentLength >= 0 && contentLength <= deferredPutQueueBytes) {
+            deferPutFromStream(stream, resource, (int) contentLength);
+            return;
+        }
+        if (deferredPuts && isMetadata(destination)) {
+            awaitDeferredPuts();
+        }
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.PUT);
+        try {
+            firePutTransferInitiated(resource, null);
+            firePutTransferStarted(resource, null);
+            long length = _putFromStream(stream, resource, contentLength, newPutTransferProgress(resource, null));
+            firePutTransferCompleted(resource, null);
+            sample.success(length);
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw e;
+        }
     }
 
-    private void _put(File source, Resource destination) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        if (!source.exists()) {
-            throw new ResourceDoesNotExistException("Source does not exist");
+    /**
+     * @return the number of bytes uploaded
+     */
+    private long _putFromStream(InputStream source, Resource destination, long contentLength, TransferProgress progress) throws TransferFailedException, AuthorizationException {
+        String key = getKey(destination.getName());
+        ObjectCannedACL acl = getAccessControlList().orElse(null);
+        String cacheControl = cacheControlFor(destination.getName());
+        ChecksumAlgorithm checksumAlgorithm = StreamingChecksum.parseAlgorithm(this.checksumAlgorithm);
+        StreamingChecksum checksum = checksumAlgorithm != null ? StreamingChecksum.of(checksumAlgorithm) : null;
+        // progress is reported as the stream is read, which happens exactly once however the content is sent
+        ProgressInputStream in = new ProgressInputStream(source, checksum != null ? checksum.andThen(progress) : progress);
+        try {
+            addToIndex(key, acl);
+            boolean isMultipart = contentLength < 0 || (multipartThreshold > 0 && contentLength >= multipartThreshold);
+            if (isMultipart) {
+                // if the length is unknown, read one part first. Anything smaller is sent as a normal upload
+                int partSize = (int) Math.min(Math.max(multipartPartSize, MultipartUpload.MIN_PART_SIZE), Integer.MAX_VALUE - 8);
+                byte[] firstPart = contentLength < 0 ? in.readNBytes(partSize) : new byte[0];
+                if (contentLength < 0 && firstPart.length < partSize) {
+                    RequestBody body = RequestBody.fromContentProvider(
+                        () -> new ByteArrayInputStream(firstPart), firstPart.length, "application/octet-stream"
+                    );
+                    putObject(key, acl, cacheControl, checksumAlgorithm, checksum, body);
+                }
+                else {
+                    var createRequest = CreateMultipartUploadRequest.builder()
+                        .bucket(getBucketName())
+                        .key(key)
+                        .acl(acl)
+                        .cacheControl(cacheControl)
+                        .checksumAlgorithm(checksumAlgorithm)
+                        .build();
+                    new MultipartUpload(s3, multipartPartSize, multipartConcurrency, checksumAlgorithm)
+                        .upload(new SequenceInputStream(new ByteArrayInputStream(firstPart), in), createRequest);
+                }
+            }
+            else {
+                // buffered, so the SDK can rewind it if it retries
+                RequestBody body = RequestBody.fromInputStream(new BufferedInputStream(in, BUFFER_SIZE), contentLength);
+                putObject(key, acl, cacheControl, checksumAlgorithm, checksum, body);
+            }
+            progress.flush();
+            ListingCache.invalidate(getBucketName(), key);
+            ObjectMetadataCache.getInstance().invalidate(getBucketName(), key);
+            Prefetcher.getInstance().invalidate(getBucketName(), key);
+            return in.bytesRead();
         }
+        catch (S3Exception e) {
+            if (e.statusCode() == 403) {
+                throw new AuthorizationException("Bad S3 credentials", e);
+            }
+            throw new TransferFailedException("S3 transfer failed", e);
+        }
+        catch (Exception e) {
+            throw new TransferFailedException("S3 transfer failed", e);
+        }
+    }
+
+    private void putObject(String key, ObjectCannedACL acl, String cacheControl, ChecksumAlgorithm checksumAlgorithm,
+                           StreamingChecksum checksum, RequestBody body) throws TransferFailedException
+    {
         var putObjectRequest = PutObjectRequest.builder()
             .bucket(getBucketName())
-            .key(getKey(destination.getName()))
-            .acl(getAccessControlList().orElse(null))
-            .cacheControl(destination.getName().contains("maven-metadata.xml") ? NO_CACHE : CACHE_FOREVER)
+            .key(key)
+            .acl(acl)
+            .cacheControl(cacheControl)
+            // the SDK computes it as it sends the content, and sends it as a trailer
+            .checksumAlgorithm(checksumAlgorithm)
             .build();
-        try (InputStream inputStream = newUploadStream(source, destination)) {
-            RequestBody body = RequestBody.fromInputStream(inputStream, source.length());
-            s3.putObject(putObjectRequest, body);
+        PutObjectResponse response = s3.putObject(putObjectRequest, body);
+        if (checksum != null) {
+            verifyUpload(key, checksum, StreamingChecksum.valueOf(response, checksumAlgorithm));
+        }
+    }
+
+    private void _put(File source, Resource destination, TransferProgress progress) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (!source.exists()) {
+            throw new ResourceDoesNotExistException("Source does not exist");
+        }
+        String key = getKey(destination.getName());
+        ObjectCannedACL acl = getAccessControlList().orElse(null);
+        String cacheControl = cacheControlFor(destination.getName());
+        ChecksumAlgorithm checksumAlgorithm = StreamingChecksum.parseAlgorithm(this.checksumAlgorithm);
+        try {
+            addToIndex(key, acl);
+            boolean unchanged = skipUnchangedUploadThreshold > 0 && source.length() >= skipUnchangedUploadThreshold
+                && UnchangedUpload.skipIfUnchanged(s3, getBucketName(), key, source, multipartPartSize, cacheControl, acl);
+            if (!unchanged) {
+                if (multipartThreshold > 0 && source.length() >= multipartThreshold) {
+                    var createRequest = CreateMultipartUploadRequest.builder()
+                        .bucket(getBucketName())
+                        .key(key)
+                        .acl(acl)
+                        .cacheControl(cacheControl)
+                        .checksumAlgorithm(checksumAlgorithm)
+                        .build();
+                    new MultipartUpload(s3, multipartPartSize, multipartConcurrency, checksumAlgorithm)
+                        .upload(source, createRequest, progress);
+                }
+                else {
+                    StreamingChecksum checksum = checksumAlgorithm != null ? StreamingChecksum.of(checksumAlgorithm) : null;
+                    ProgressListener listener = checksum != null ? checksum.andThen(progress) : progress;
+                    // the SDK may open the stream more than once, if it retries. Only report progress the first time
+                    long[] reportedUpTo = { 0 };
+                    RequestBody body = RequestBody.fromContentProvider(
+                        () -> newUploadStream(source, reportedUpTo, listener), source.length(), "application/octet-stream"
+                    );
+                    putObject(key, acl, cacheControl, checksumAlgorithm, checksum, body);
+                }
+            }
+            progress.flush();
+            ListingCache.invalidate(getBucketName(), key);
+            ObjectMetadataCache.getInstance().invalidate(getBucketName(), key);
+            Prefetcher.getInstance().invalidate(getBucketName(), key);
         }
         catch (S3Exception e) {
             if (e.statusCode() == 403) {
@@ -172,6 +820,171 @@ public final class S3Wagon extends ListeningWagon {
         }
     }
 
+    /**
+     * Add the object to the existence index, if it's enabled. It must come before the upload, so the index never says
+     * that an object which exists doesn't.
+     */
+    private void addToIndex(String key, ObjectCannedACL acl) throws IOException {
+        if (existenceIndex) {
+            ExistenceIndex.getInstance().add(s3, location, key, acl);
+        }
+    }
+
+    /**
+     * Queue the upload of a file, and report it as completed. Progress isn't reported, since by the time there is any,
+     * listeners have been told that the transfer is over.
+     */
+    private void deferPut(File source, Resource destination) throws TransferFailedException, ResourceDoesNotExistException {
+        if (!source.exists()) {
+            throw new ResourceDoesNotExistException("Source does not exist");
+        }
+        firePutTransferInitiated(destination, source);
+        firePutTransferStarted(destination, source);
+        defer(destination, source.length(), () -> _put(source, destination, newUnreportedTransferProgress()));
+        firePutTransferCompleted(destination, source);
+    }
+
+    /**
+     * Queue the upload of a stream. The caller may close the stream as soon as this returns, so it's read into memory
+     * first.
+     */
+    private void deferPutFromStream(InputStream stream, Resource destination, int contentLength) throws TransferFailedException {
+        firePutTransferInitiated(destination, null);
+        firePutTransferStarted(destination, null);
+        byte[] content;
+        try {
+            content = stream.readNBytes(contentLength);
+        }
+        catch (IOException e) {
+            throw new TransferFailedException("Failed to read " + destination, e);
+        }
+        defer(destination, content.length, () -> _putFromStream(
+            new ByteArrayInputStream(content), destination, content.length, newUnreportedTransferProgress()
+        ));
+        firePutTransferCompleted(destination, null);
+    }
+
+    private void defer(Resource destination, long length, DeferredPuts.Upload upload) throws TransferFailedException {
+        try {
+            DeferredPuts.getInstance().submit(this, getBucketName(), getKey(destination.getName()), length, deferredPutQueueBytes, () -> {
+                S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.PUT);
+                try {
+                    upload.upload();
+                    sample.success(length);
+                }
+                catch (Exception e) {
+                    sample.failure(e);
+                    throw e;
+                }
+            });
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while queueing the upload of " + destination, e);
+        }
+    }
+
+    /**
+     * Wait for every queued upload to the bucket, e.g. before uploading metadata which may refer to them.
+     *
+     * @throws TransferFailedException if any of them failed
+     */
+    private void awaitDeferredPuts() throws TransferFailedException {
+        try {
+            DeferredPuts.getInstance().awaitBucket(this, getBucketName());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while waiting for queued uploads", e);
+        }
+    }
+
+    /**
+     * If the object is queued to be uploaded, wait for it, so that what's read is what was written.
+     */
+    private void awaitDeferredPut(String key) {
+        if (!deferredPuts) return;
+        try {
+            DeferredPuts.getInstance().awaitObject(getBucketName(), key);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public List<String> getFileList(String destinationDirectory) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.LIST);
+        List<String> files;
+        try {
+            files = ListingCache.list(
+                s3, getBucketName(), getDirectoryKey(destinationDirectory), metadataCacheTtlMillis()
+            );
+            sample.success(0);
+        }
+        catch (S3Exception e) {
+            sample.failure(e);
+            if (e.statusCode() == 403) {
+                throw new AuthorizationException("Bad S3 credentials", e);
+            }
+            throw new TransferFailedException("S3 transfer failed", e);
+        }
+        catch (Exception e) {
+            sample.failure(e);
+            throw new TransferFailedException("S3 transfer failed", e);
+        }
+        if (files.isEmpty()) {
+            throw new ResourceDoesNotExistException("Directory " + destinationDirectory + " does not exist in the repository");
+        }
+        return files;
+    }
+
+    @Override
+    public void putDirectory(File sourceDirectory, String destinationDirectory) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        if (!sourceDirectory.isDirectory()) {
+            throw new ResourceDoesNotExistException("Source directory does not exist: " + sourceDirectory);
+        }
+        String prefix = destinationDirectory == null || destinationDirectory.isEmpty() || destinationDirectory.equals(".")
+            ? "" : (destinationDirectory.endsWith("/") ? destinationDirectory : destinationDirectory + "/");
+        try {
+            new DirectoryUpload(directoryUploadConcurrency, directoryUploadMaxInFlightBytes).upload(
+                sourceDirectory, (file, relativePath) -> put(file, prefix + relativePath)
+            );
+            if (deferredPuts) {
+                DeferredPuts.getInstance().awaitOwner(this);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while uploading " + sourceDirectory, e);
+        }
+    }
+
+    /**
+     * Check that what S3 stored is what we read from the file. If not, the object is deleted, since it's corrupt.
+     */
+    private void verifyUpload(String key, StreamingChecksum checksum, String stored) throws TransferFailedException {
+        if (stored == null || stored.equals(checksum.value())) return;
+        s3.deleteObject(DeleteObjectRequest.builder().bucket(getBucketName()).key(key).build());
+        throw new TransferFailedException(
+            "Uploaded " + checksum.algorithm() + " checksum " + stored + " does not match local " + checksum.value()
+        );
+    }
+
+    /**
+     * Metadata changes, but a released artifact never does.
+     */
+    static String cacheControlFor(String resourceName) {
+        return isMetadata(resourceName) ? NO_CACHE : CACHE_FOREVER;
+    }
+
+    /**
+     * Whether the resource is metadata, or a checksum of it, which unlike everything else is changed in place.
+     */
+    static boolean isMetadata(String resourceName) {
+        return resourceName.contains("maven-metadata.xml");
+    }
+
     private Optional<ObjectCannedACL> getAccessControlList() {
         return Optional.ofNullable(getRepository())
             .map(Repository::getPermissions)
@@ -182,66 +995,104 @@ public final class S3Wagon extends ListeningWagon {
 
     @Override
     public boolean resourceExists(String resourceName) {
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.RESOURCE_EXISTS);
+        try {
+            boolean exists = _resourceExists(resourceName);
+            sample.success(0);
+            return exists;
+        }
+        catch (RuntimeException e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    private boolean _resourceExists(String resourceName) {
+        String key = getKey(resourceName);
+        awaitDeferredPut(key);
+        ObjectMetadataCache cache = ObjectMetadataCache.getInstance();
+        ObjectMetadataCache.Entry known = cache.get(getBucketName(), key);
+        if (known != null) {
+            return known.exists();
+        }
+        if (existenceIndex && !ExistenceIndex.getInstance().mayExist(s3, location, key, existenceIndexTtlMillis())) {
+            return false;
+        }
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.HEAD);
         try {
-            s3.headObject(
+            HeadObjectResponse response = s3.headObject(
                 HeadObjectRequest.builder()
                     .bucket(getBucketName())
-                    .key(getKey(resourceName))
+                    .key(key)
                     .build()
             );
+            sample.success(0);
+            cache.putExists(
+                getBucketName(), key, response.contentLength(), response.eTag(), response.lastModified(), metadataCacheTtlMillis()
+            );
             return true;
         }
         catch (NoSuchKeyException e) {
+            // an expected outcome, but still worth counting as a 404
+            sample.failure(e);
+            cache.putMissing(getBucketName(), key, negativeMetadataCacheTtlMillis());
             return false;
         }
+        catch (RuntimeException e) {
+            sample.failure(e);
+            throw e;
+        }
+    }
+
+    private long metadataCacheTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(metadataCacheTtlSeconds);
+    }
+
+    private long negativeMetadataCacheTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(negativeMetadataCacheTtlSeconds);
+    }
+
+    private long existenceIndexTtlMillis() {
+        return TimeUnit.SECONDS.toMillis(existenceIndexTtlSeconds);
     }
 
     @Override
-    public void disconnect() {
+    public void disconnect() throws ConnectionException {
         fireSessionDisconnecting();
+        ConnectionException failure = null;
+        if (deferredPuts && clientLease != null) {
+            try {
+                DeferredPuts.getInstance().awaitOwner(this);
+            }
+            catch (TransferFailedException e) {
+                // Maven Resolver only logs a failed disconnect at debug level, so tell the session listeners too
+                fireSessionError(e);
+                failure = new ConnectionException("Queued uploads failed: " + e.getMessage(), e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new ConnectionException("Interrupted while waiting for queued uploads", e);
+            }
+        }
         fireSessionLoggedOff();
-        S3Client s3 = this.s3;
-        if (s3 != null) {
-            s3.close();
+        S3ClientRegistry.Lease lease = this.clientLease;
+        if (lease != null) {
+            lease.release(TimeUnit.SECONDS.toMillis(clientIdleTimeoutSeconds));
+            this.clientLease = null;
             this.s3 = null;
         }
         fireSessionDisconnected();
+        if (failure != null) {
+            throw failure;
+        }
     }
 
-    private InputStream newUploadStream(File source, Resource resource) throws ResourceDoesNotExistException, TransferFailedException {
+    private static InputStream newUploadStream(File source, long[] reportedUpTo, ProgressListener progress) {
         try {
-            return new PutInputStream(source, resource);
-        }
-        catch (FileNotFoundException e) {
-            throw new ResourceDoesNotExistException("Does not exist", e);
+            return new ProgressInputStream(new FileInputStream(source), reportedUpTo, progress);
         }
         catch (IOException e) {
-            throw new TransferFailedException("Transfer failed", e);
-        }
-    }
-
-    private class PutInputStream extends FileInputStream {
-        private final File source;
-        private final Resource resource;
-
-        PutInputStream(File source, Resource resource) throws IOException {
-            super(source);
-            this.source = source;
-            this.resource = resource;
-        }
-
-        @Override
-        public int read() throws IOException {
-            int theByte = super.read();
-            firePutTransferProgress(resource, source, new byte[] { (byte) theByte },  1);
-            return theByte;
-        }
-
-        @Override
-        public int read(byte[] buffer, int offset, int length) throws IOException {
-            int bytesRead = super.read(buffer, offset, length);
-            firePutTransferProgress(resource, source, buffer,  bytesRead);
-            return bytesRead;
+            throw new UncheckedIOException(e);
         }
     }
 }
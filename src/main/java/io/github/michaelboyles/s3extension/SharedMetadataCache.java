@@ -0,0 +1,426 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A cache of repository metadata files, shared by every build on the host. Metadata is uploaded with
+ * {@code Cache-Control: no-cache}, so every build downloads it again, even when many builds on one CI agent are
+ * asking for the same files at the same time. With this cache, a build sends the ETag of the copy on disk, and if it
+ * hasn't changed then S3 answers with a body-less 304.
+ * <p>
+ * The index is a fixed-size file of slots, memory-mapped by every JVM using it, and guarded by a lock on the file.
+ * Each slot holds the hash of a bucket and key, the ETag, the size, when it was fetched and when it was last used. A
+ * key can only be in one of a small window of slots, so lookups are quick. The content of each entry is a separate
+ * file, named after both the key and the ETag, so a file is never changed once written; a new version is a new file.
+ * When the cache is over its size limit, the least recently used entries are evicted.
+ */
+final class SharedMetadataCache {
+    private static final Path DEFAULT_DIRECTORY =
+        Paths.get(System.getProperty("user.home"), ".m2", "s3-maven-extension", "shared-metadata");
+    private static final Map<Path, SharedMetadataCache> INSTANCES = new HashMap<>();
+    /** Directories which couldn't be opened. They aren't tried again, since every metadata GET would fail the same */
+    private static final Set<Path> UNUSABLE = new HashSet<>();
+
+    private static final int MAGIC = 0x53334d43; // "S3MC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOTS = 4096;
+    private static final int PROBE_WINDOW = 16;
+    private static final int SLOT_SIZE = 256;
+    private static final int HASH_SIZE = 32;
+    private static final int MAX_ETAG_LENGTH = SLOT_SIZE - 1 - HASH_SIZE - 3 * Long.BYTES - Short.BYTES;
+
+    // the layout of a slot
+    private static final int USED = 0;
+    private static final int HASH = 1;
+    private static final int FETCHED_AT = HASH + HASH_SIZE;
+    private static final int LAST_USED_AT = FETCHED_AT + Long.BYTES;
+    private static final int SIZE = LAST_USED_AT + Long.BYTES;
+    private static final int ETAG_LENGTH = SIZE + Long.BYTES;
+    private static final int ETAG = ETAG_LENGTH + Short.BYTES;
+
+    private final Path objectsDirectory;
+    private final FileChannel channel;
+    private final MappedByteBuffer index;
+    /** File locks are held by the JVM, not by a thread, so threads of this JVM must take turns some other way. */
+    private final ReentrantLock threadLock = new ReentrantLock();
+    private volatile long maxBytes;
+
+    private SharedMetadataCache(Path directory) throws IOException {
+        this.objectsDirectory = directory.resolve("objects");
+        Files.createDirectories(objectsDirectory);
+        this.channel = FileChannel.open(
+            directory.resolve("index"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        this.index = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) SLOTS * SLOT_SIZE);
+        locked(() -> {
+            if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+                // new, or written by an incompatible version. Start again
+                for (int i = 0; i < HEADER_SIZE + SLOTS * SLOT_SIZE; i++) {
+                    index.put(i, (byte) 0);
+                }
+                index.putInt(0, MAGIC);
+                index.putInt(4, VERSION);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @param directory where to keep the cache, or null for the default
+     * @return the cache in the directory, shared with every other user of the same directory in this JVM, or null if
+     * the directory couldn't be opened before
+     * @throws IOException if the directory can't be opened. It's remembered, and this is only thrown the first time
+     */
+    static synchronized SharedMetadataCache open(String directory, long maxBytes) throws IOException {
+        Path normalized = (directory != null ? Paths.get(directory) : DEFAULT_DIRECTORY).toAbsolutePath().normalize();
+        SharedMetadataCache cache = INSTANCES.get(normalized);
+        if (cache == null) {
+            if (UNUSABLE.contains(normalized)) return null;
+            try {
+                cache = new SharedMetadataCache(normalized);
+            }
+            catch (IOException e) {
+                UNUSABLE.add(normalized);
+                throw e;
+            }
+            INSTANCES.put(normalized, cache);
+        }
+        cache.maxBytes = maxBytes;
+        return cache;
+    }
+
+    /**
+     * Whether objects with this name belong in the cache. It only holds metadata, which changes in place; everything
+     * else is immutable once uploaded, and is cached by Maven itself.
+     */
+    static boolean isCacheable(String resourceName) {
+        return S3Wagon.isMetadata(resourceName);
+    }
+
+    /**
+     * @return the cached copy of the object, or null if there isn't one
+     */
+    private Entry get(String bucket, String key) throws IOException {
+        byte[] hash = hash(bucket, key);
+        return locked(() -> {
+            int slot = find(hash);
+            if (slot < 0) return null;
+            int offset = offset(slot);
+            String eTag = readETag(offset);
+            Path content = contentFile(hash, eTag);
+            if (!Files.exists(content)) {
+                index.put(offset + USED, (byte) 0);
+                return null;
+            }
+            index.putLong(offset + LAST_USED_AT, System.currentTimeMillis());
+            return new Entry(eTag, index.getLong(offset + SIZE), content);
+        });
+    }
+
+    /**
+     * Send a GET for metadata. If there's a cached copy, the GET is conditional on its ETag, and if S3 responds that
+     * it's unchanged, the cached copy is returned. Otherwise, the new content is cached.
+     *
+     * @param send sends the request to S3, however the caller usually does
+     */
+    ResponseInputStream<GetObjectResponse> getObject(
+        GetObjectRequest request, Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>> send
+    ) throws IOException {
+        Entry cached;
+        try {
+            cached = get(request.bucket(), request.key());
+        }
+        catch (IOException e) {
+            // it's only a cache. Fetch it as if it weren't there
+            cached = null;
+        }
+        if (cached != null) {
+            try {
+                var stream = send.apply(request.toBuilder().ifNoneMatch(cached.eTag).build());
+                S3Metrics.getInstance().sharedCacheChanged();
+                return store(request, stream);
+            }
+            catch (S3Exception e) {
+                if (e.statusCode() != 304) throw e;
+            }
+            try {
+                InputStream content = Files.newInputStream(cached.content);
+                S3Metrics.getInstance().sharedCacheRevalidated();
+                GetObjectResponse response = GetObjectResponse.builder()
+                    .eTag(cached.eTag)
+                    .contentLength(cached.size)
+                    .build();
+                return new ResponseInputStream<>(response, AbortableInputStream.create(content));
+            }
+            catch (NoSuchFileException e) {
+                // evicted by another build since it was looked up. Fetch it again
+            }
+        }
+        var stream = send.apply(request);
+        S3Metrics.getInstance().sharedCacheMissed();
+        return store(request, stream);
+    }
+
+    /**
+     * Cache the content of a response, if it's small enough, and its checksum matches. Failing to write it to the
+     * cache doesn't fail the download.
+     *
+     * @return a stream of the same content
+     */
+    private ResponseInputStream<GetObjectResponse> store(
+        GetObjectRequest request, ResponseInputStream<GetObjectResponse> stream
+    ) throws IOException {
+        GetObjectResponse response = stream.response();
+        Long length = response.contentLength();
+        if (response.eTag() == null || length == null || length > maxBytes / 4) {
+            return stream;
+        }
+        byte[] content;
+        try (stream) {
+            content = stream.readAllBytes();
+        }
+        StreamingChecksum.Expected checksum = StreamingChecksum.forResponse(response);
+        boolean valid = true;
+        if (checksum != null) {
+            checksum.checksum().progress(content, 0, content.length);
+            try {
+                checksum.verify();
+            }
+            catch (StreamingChecksum.ChecksumMismatchException e) {
+                // don't cache it. The caller verifies it again, and will report the mismatch
+                valid = false;
+            }
+        }
+        if (valid) {
+            try {
+                put(request.bucket(), request.key(), response.eTag(), content);
+            }
+            catch (IOException e) {
+                // e.g. the disk is full. It's only a cache, and the content is already in memory
+            }
+        }
+        return new ResponseInputStream<>(response, AbortableInputStream.create(new ByteArrayInputStream(content)));
+    }
+
+    private void put(String bucket, String key, String eTag, byte[] bytes) throws IOException {
+        if (eTag.getBytes(StandardCharsets.UTF_8).length > MAX_ETAG_LENGTH) return;
+        byte[] hash = hash(bucket, key);
+        Path content = contentFile(hash, eTag);
+        if (!Files.exists(content)) {
+            // write outside the lock. The name depends on the ETag, so whoever gets there first writes the same bytes
+            Path temp = Files.createTempFile(objectsDirectory, "download", ".tmp");
+            try {
+                Files.write(temp, bytes);
+                Files.move(temp, content, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        long now = System.currentTimeMillis();
+        locked(() -> {
+            int slot = find(hash);
+            if (slot >= 0) {
+                String oldETag = readETag(offset(slot));
+                if (!oldETag.equals(eTag)) {
+                    Files.deleteIfExists(contentFile(hash, oldETag));
+                }
+            }
+            else {
+                slot = freeSlot(hash);
+            }
+            int offset = offset(slot);
+            byte[] eTagBytes = eTag.getBytes(StandardCharsets.UTF_8);
+            index.put(offset + USED, (byte) 1);
+            for (int i = 0; i < HASH_SIZE; i++) {
+                index.put(offset + HASH + i, hash[i]);
+            }
+            index.putLong(offset + FETCHED_AT, now);
+            index.putLong(offset + LAST_USED_AT, now);
+            index.putLong(offset + SIZE, bytes.length);
+            index.putShort(offset + ETAG_LENGTH, (short) eTagBytes.length);
+            for (int i = 0; i < eTagBytes.length; i++) {
+                index.put(offset + ETAG + i, eTagBytes[i]);
+            }
+            evictToSize();
+            return null;
+        });
+    }
+
+    /**
+     * Run an operation on the index while holding both the lock between threads and the lock between JVMs.
+     */
+    private <T> T locked(IndexOperation<T> operation) throws IOException {
+        try {
+            threadLock.lockInterruptibly();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the shared metadata cache", e);
+        }
+        try {
+            FileLock fileLock = channel.lock();
+            try {
+                return operation.run();
+            }
+            finally {
+                fileLock.release();
+            }
+        }
+        finally {
+            threadLock.unlock();
+        }
+    }
+
+    private int find(byte[] hash) {
+        int start = start(hash);
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (start + i) % SLOTS;
+            if (index.get(offset(slot) + USED) != 0 && hashEquals(offset(slot), hash)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return an empty slot in the window for the hash, or else the least recently used one, which is evicted
+     */
+    private int freeSlot(byte[] hash) throws IOException {
+        int start = start(hash);
+        int oldest = start;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (start + i) % SLOTS;
+            if (index.get(offset(slot) + USED) == 0) return slot;
+            if (index.getLong(offset(slot) + LAST_USED_AT) < index.getLong(offset(oldest) + LAST_USED_AT)) {
+                oldest = slot;
+            }
+        }
+        evict(oldest);
+        return oldest;
+    }
+
+    private void evictToSize() throws IOException {
+        long total = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (index.get(offset(slot) + USED) != 0) total += index.getLong(offset(slot) + SIZE);
+        }
+        while (total > maxBytes) {
+            int oldest = -1;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                int offset = offset(slot);
+                if (index.get(offset + USED) == 0) continue;
+                if (oldest < 0 || index.getLong(offset + LAST_USED_AT) < index.getLong(offset(oldest) + LAST_USED_AT)) {
+                    oldest = slot;
+                }
+            }
+            if (oldest < 0) return;
+            total -= index.getLong(offset(oldest) + SIZE);
+            evict(oldest);
+        }
+    }
+
+    private void evict(int slot) throws IOException {
+        int offset = offset(slot);
+        byte[] hash = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            hash[i] = index.get(offset + HASH + i);
+        }
+        Files.deleteIfExists(contentFile(hash, readETag(offset)));
+        index.put(offset + USED, (byte) 0);
+    }
+
+    private boolean hashEquals(int offset, byte[] hash) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (index.get(offset + HASH + i) != hash[i]) return false;
+        }
+        return true;
+    }
+
+    private String readETag(int offset) {
+        int length = Math.min(index.getShort(offset + ETAG_LENGTH), MAX_ETAG_LENGTH);
+        byte[] bytes = new byte[Math.max(length, 0)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = index.get(offset + ETAG + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path contentFile(byte[] hash, String eTag) {
+        return objectsDirectory.resolve(hex(hash) + "-" + hex(sha256(eTag)).substring(0, 16));
+    }
+
+    private static int start(byte[] hash) {
+        return Math.floorMod(ByteBuffer.wrap(hash).getInt(), SLOTS);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static byte[] hash(String bucket, String key) {
+        return sha256(bucket + '/' + key);
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @FunctionalInterface
+    private interface IndexOperation<T> {
+        T run() throws IOException;
+    }
+
+    private static final class Entry {
+        private final String eTag;
+        private final long size;
+        private final Path content;
+
+        Entry(String eTag, long size, Path content) {
+            this.eTag = eTag;
+            this.size = size;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Computes one of S3's additional checksums incrementally, from the same bytes that are being transferred, so that
+ * verifying the integrity of a file never requires reading it a second time.
+ * <p>
+ * Values are in the same base64 form that S3 uses in its {@code x-amz-checksum-*} headers.
+ */
+final class StreamingChecksum implements ProgressListener {
+    private final ChecksumAlgorithm algorithm;
+    private final Checksum crc;
+    private final MessageDigest digest;
+
+    private StreamingChecksum(ChecksumAlgorithm algorithm, Checksum crc, MessageDigest digest) {
+        this.algorithm = algorithm;
+        this.crc = crc;
+        this.digest = digest;
+    }
+
+    static StreamingChecksum of(ChecksumAlgorithm algorithm) {
+        switch (algorithm) {
+            case CRC32: return new StreamingChecksum(algorithm, new CRC32(), null);
+            case CRC32_C: return new StreamingChecksum(algorithm, new CRC32C(), null);
+            case SHA1: return new StreamingChecksum(algorithm, null, newDigest("SHA-1"));
+            case SHA256: return new StreamingChecksum(algorithm, null, newDigest("SHA-256"));
+            default: throw new IllegalArgumentException("Unsupported checksum algorithm " + algorithm);
+        }
+    }
+
+    /**
+     * Parse the algorithm from configuration.
+     *
+     * @return the algorithm, or null if checksums are disabled
+     */
+    static ChecksumAlgorithm parseAlgorithm(String value) {
+        if (value == null || value.isBlank() || value.trim().equalsIgnoreCase("none")) return null;
+        ChecksumAlgorithm algorithm = ChecksumAlgorithm.fromValue(value.trim().toUpperCase(Locale.ROOT));
+        if (algorithm == ChecksumAlgorithm.UNKNOWN_TO_SDK_VERSION) {
+            throw new IllegalArgumentException("Unknown checksum algorithm " + value);
+        }
+        return algorithm;
+    }
+
+    private static MessageDigest newDigest(String name) {
+        try {
+            return MessageDigest.getInstance(name);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(name + " is always supported", e);
+        }
+    }
+
+    ChecksumAlgorithm algorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public void progress(byte[] buffer, int offset, int length) {
+        if (length <= 0) return;
+        if (crc != null) {
+            crc.update(buffer, offset, length);
+        }
+        else {
+            digest.update(buffer, offset, length);
+        }
+    }
+
+    /**
+     * @return the base64 checksum of everything seen so far
+     */
+    String value() {
+        byte[] bytes = crc != null
+            ? ByteBuffer.allocate(4).putInt((int) crc.getValue()).array()
+            : digest.digest();
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * A checksum which S3 computed over a whole object, or null if it isn't one. S3 reports checksums of multipart
+     * uploads as a checksum of the checksums of the parts, suffixed with the number of parts, and those can't be
+     * compared against a checksum of the content.
+     */
+    private static String fullObjectChecksum(String value) {
+        return value == null || value.contains("-") ? null : value;
+    }
+
+    /**
+     * Create a checksum for whichever full-object checksum S3 returned with the object, if any.
+     *
+     * @return the checksum, or null if the response didn't include a full-object checksum
+     */
+    static Expected forResponse(GetObjectResponse response) {
+        if (fullObjectChecksum(response.checksumCRC32C()) != null) {
+            return new Expected(of(ChecksumAlgorithm.CRC32_C), response.checksumCRC32C());
+        }
+        if (fullObjectChecksum(response.checksumCRC32()) != null) {
+            return new Expected(of(ChecksumAlgorithm.CRC32), response.checksumCRC32());
+        }
+        if (fullObjectChecksum(response.checksumSHA256()) != null) {
+            return new Expected(of(ChecksumAlgorithm.SHA256), response.checksumSHA256());
+        }
+        if (fullObjectChecksum(response.checksumSHA1()) != null) {
+            return new Expected(of(ChecksumAlgorithm.SHA1), response.checksumSHA1());
+        }
+        return null;
+    }
+
+    static String valueOf(PutObjectResponse response, ChecksumAlgorithm algorithm) {
+        switch (algorithm) {
+            case CRC32: return response.checksumCRC32();
+            case CRC32_C: return response.checksumCRC32C();
+            case SHA1: return response.checksumSHA1();
+            case SHA256: return response.checksumSHA256();
+            default: return null;
+        }
+    }
+
+    static String valueOf(HeadObjectResponse response, ChecksumAlgorithm algorithm) {
+        switch (algorithm) {
+            case CRC32: return response.checksumCRC32();
+            case CRC32_C: return response.checksumCRC32C();
+            case SHA1: return response.checksumSHA1();
+            case SHA256: return response.checksumSHA256();
+            default: return null;
+        }
+    }
+
+    static String valueOf(UploadPartResponse response, ChecksumAlgorithm algorithm) {
+        switch (algorithm) {
+            case CRC32: return response.checksumCRC32();
+            case CRC32_C: return response.checksumCRC32C();
+            case SHA1: return response.checksumSHA1();
+            case SHA256: return response.checksumSHA256();
+            default: return null;
+        }
+    }
+
+    /**
+     * A checksum being computed, and the value it is expected to have once all the content has been seen.
+     */
+    static final class Expected {
+        private final StreamingChecksum checksum;
+        private final String expectedValue;
+
+        private Expected(StreamingChecksum checksum, String expectedValue) {
+            this.checksum = checksum;
+            this.expectedValue = expectedValue;
+        }
+
+        /**
+         * @return a new checksum, expected to match a value which was recorded from an earlier response
+         */
+        static Expected of(ChecksumAlgorithm algorithm, String expectedValue) {
+            return new Expected(StreamingChecksum.of(algorithm), expectedValue);
+        }
+
+        String expectedValue() {
+            return expectedValue;
+        }
+
+        StreamingChecksum checksum() {
+            return checksum;
+        }
+
+        /**
+         * @throws ChecksumMismatchException if the content didn't match
+         */
+        void verify() throws ChecksumMismatchException {
+            String actual = checksum.value();
+            if (!expectedValue.equals(actual)) {
+                throw new ChecksumMismatchException(checksum.algorithm(), expectedValue, actual);
+            }
+        }
+    }
+
+    static final class ChecksumMismatchException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumMismatchException(ChecksumAlgorithm algorithm, String expected, String actual) {
+            super(algorithm + " checksum mismatch: expected " + expected + " but was " + actual);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package io.github.michaelboyles.s3extension;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.PutObjectAclRequest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decides whether a file needs uploading at all, because S3 may already have the same content under the same key, e.g.
+ * when a deploy is run again after it failed partway. A single HEAD gets what S3 knows about the stored content: the
+ * SHA-256 or SHA-1 it stored when the object was uploaded, if there is one, or otherwise its ETag, which is the MD5 of
+ * the content unless it was encrypted with KMS or uploaded in parts. The file is read once to compute the same value.
+ * <p>
+ * A CRC is never enough to skip an upload. It's meant to catch accidents in transit, and it's easy to find different
+ * content with the same CRC, so an object with only a CRC is compared by its ETag instead.
+ * <p>
+ * S3 reports a SHA of a multipart upload as a hash of the hashes of its parts, which can only be compared if the parts
+ * were the same size as they would be now. Anything which can't be compared is uploaded as usual.
+ */
+final class UnchangedUpload {
+    /** The largest object S3 can copy in a single request */
+    private static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The checksums S3 may have stored which are strong enough to trust, strongest first */
+    private static final List<ChecksumAlgorithm> ALGORITHMS = List.of(ChecksumAlgorithm.SHA256, ChecksumAlgorithm.SHA1);
+
+    private UnchangedUpload() {
+    }
+
+    /**
+     * Check whether S3 already has the file's content. If it does, but with a different Cache-Control, the object is
+     * copied onto itself with the right one, which S3 does without the content being sent again. The copy keeps the
+     * object's other headers, user metadata, storage class and encryption. If anything goes wrong, it's left to be
+     * uploaded as usual.
+     *
+     * @param partSize the configured part size of multipart uploads
+     * @param cacheControl the Cache-Control the object should have
+     * @param acl the canned ACL the object should have, or null
+     * @return true if the file doesn't need uploading
+     */
+    static boolean skipIfUnchanged(S3Client s3, String bucket, String key, File file, long partSize,
+                                   String cacheControl, ObjectCannedACL acl) throws IOException
+    {
+        HeadObjectResponse stored;
+        S3Metrics.Sample sample = S3Metrics.getInstance().start(S3Metrics.Operation.HEAD);
+        try {
+            stored = s3.headObject(
+                HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .checksumMode(ChecksumMode.ENABLED)
+                    .build()
+            );
+            sample.success(0);
+        }
+        catch (SdkException e) {
+            // usually because it doesn't exist, but perhaps the credentials can put and not get, or the request failed.
+            // Either way, upload it
+            sample.failure(e);
+            return false;
+        }
+        if (stored.contentLength() == null || stored.contentLength() != file.length() || !hasSameContent(file, stored, partSize)) {
+            return false;
+        }
+        try {
+            if (!Objects.equals(stored.cacheControl(), cacheControl)) {
+                // a copy can't be encrypted with a customer's key without the key, which only the upload has
+                if (stored.contentLength() > MAX_COPY_SIZE || stored.sseCustomerAlgorithm() != null) return false;
+                s3.copyObject(
+                    CopyObjectRequest.builder()
+                        .sourceBucket(bucket)
+                        .sourceKey(key)
+                        .destinationBucket(bucket)
+                        .destinationKey(key)
+                        // in case it changed since the HEAD
+                        .copySourceIfMatch(stored.eTag())
+                        // everything else which a copy doesn't keep has to be given again
+                        .metadataDirective(MetadataDirective.REPLACE)
+                        .cacheControl(cacheControl)
+                        .contentType(stored.contentType())
+                        .contentEncoding(stored.contentEncoding())
+                        .contentDisposition(stored.contentDisposition())
+                        .contentLanguage(stored.contentLanguage())
+                        .websiteRedirectLocation(stored.websiteRedirectLocation())
+                        .metadata(stored.metadata())
+                        .storageClass(stored.storageClassAsString())
+                        .serverSideEncryption(stored.serverSideEncryptionAsString())
+                        .ssekmsKeyId(stored.ssekmsKeyId())
+                        .bucketKeyEnabled(stored.bucketKeyEnabled())
+                        // without one, the copy is private, the same as an upload would be
+                        .acl(acl)
+                        .build()
+                );
+            }
+            else if (acl != null) {
+                // there's no telling whether the object already has it without another request, so just set it
+                s3.putObjectAcl(PutObjectAclRequest.builder().bucket(bucket).key(key).acl(acl).build());
+            }
+        }
+        catch (SdkException e) {
+            // e.g. it changed since the HEAD, or it's archived, or the credentials can put and not copy. Upload it
+            return false;
+        }
+        S3Metrics.getInstance().uploadSkipped(file.length());
+        return true;
+    }
+
+    private static boolean hasSameContent(File file, HeadObjectResponse stored, long partSize) throws IOException {
+        ChecksumAlgorithm algorithm = null;
+        String expected = null;
+        for (ChecksumAlgorithm candidate : ALGORITHMS) {
+            expected = StreamingChecksum.valueOf(stored, candidate);
+            if (expected != null) {
+                algorithm = candidate;
+                break;
+            }
+        }
+        if (expected == null) {
+            expected = stored.eTag() != null ? stored.eTag().replace("\"", "") : null;
+            if (expected == null) return false;
+        }
+
+        int dash = expected.lastIndexOf('-');
+        String value = dash < 0 ? expected : expected.substring(0, dash);
+        int partCount;
+        try {
+            partCount = dash < 0 ? 1 : Integer.parseInt(expected.substring(dash + 1));
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        if (algorithm == null && (dash >= 0 || !value.matches("[0-9a-fA-F]{32}"))) {
+            // not the MD5 of the content, e.g. because it's encrypted with KMS, or it's an MD5 of the MD5s of its parts
+            return false;
+        }
+        long length = file.length();
+        long size = dash < 0 ? Math.max(length, 1) : MultipartUpload.partSizeFor(length, partSize);
+        if (dash >= 0 && (length + size - 1) / size != partCount) {
+            // uploaded in parts of a different size
+            return false;
+        }
+
+        List<byte[]> parts = hashParts(file, length, size, algorithm);
+        if (parts == null) return false;
+        byte[] actual;
+        if (dash < 0) {
+            actual = parts.get(0);
+        }
+        else {
+            Hash hash = new Hash(algorithm);
+            for (byte[] part : parts) {
+                hash.update(part, 0, part.length);
+            }
+            actual = hash.value();
+        }
+        return algorithm != null
+            ? value.equals(Base64.getEncoder().encodeToString(actual))
+            : value.equalsIgnoreCase(hex(actual));
+    }
+
+    /**
+     * @return the hash of each part of the file, or null if it isn't as long as it was
+     */
+    private static List<byte[]> hashParts(File file, long length, long partSize, ChecksumAlgorithm algorithm)
+        throws IOException
+    {
+        List<byte[]> parts = new ArrayList<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            long remaining = length;
+            do {
+                Hash hash = new Hash(algorithm);
+                long partRemaining = Math.min(partSize, remaining);
+                while (partRemaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, partRemaining));
+                    if (read < 0) return null;
+                    hash.update(buffer, 0, read);
+                    partRemaining -= read;
+                    remaining -= read;
+                }
+                parts.add(hash.value());
+            }
+            while (remaining > 0);
+        }
+        return parts;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One of S3's checksums, or an MD5 like in an ETag if there's no algorithm.
+     */
+    private static final class Hash {
+        private final StreamingChecksum checksum;
+        private final MessageDigest md5;
+
+        Hash(ChecksumAlgorithm algorithm) {
+            this.checksum = algorithm != null ? StreamingChecksum.of(algorithm) : null;
+            try {
+                this.md5 = algorithm == null ? MessageDigest.getInstance("MD5") : null;
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is always supported", e);
+            }
+        }
+
+        void update(byte[] buffer, int offset, int length) {
+            if (checksum != null) {
+                checksum.progress(buffer, offset, length);
+            }
+            else {
+                md5.update(buffer, offset, length);
+            }
+        }
+
+        byte[] value() {
+            return checksum != null ? Base64.getDecoder().decode(checksum.value()) : md5.digest();
+        }
+    }
+}
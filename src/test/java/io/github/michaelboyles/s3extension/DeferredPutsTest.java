@@ -0,0 +1,92 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeferredPutsTest {
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final DeferredPuts puts = DeferredPuts.getInstance();
+
+    @Test
+    void uploadsOfTheSameObjectDontOverlap() throws Exception {
+        Object owner = new Object();
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        DeferredPuts.Upload upload = () -> {
+            if (running.incrementAndGet() > 1) overlapped.set(true);
+            Thread.sleep(20);
+            running.decrementAndGet();
+        };
+
+        // queued from several threads at once, as a parallel deploy would
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < 3; j++) {
+                        puts.submit(owner, "same-key", "com/example/example-1.0.jar", 1, MAX_QUEUED_BYTES, upload);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        puts.awaitOwner(owner);
+
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    void ownerReportsItsOwnFailures() throws Exception {
+        Object owner = new Object();
+        puts.submit(owner, "own", "a.jar", 1, MAX_QUEUED_BYTES, () -> {
+            throw new TransferFailedException("denied");
+        });
+
+        TransferFailedException e = assertThrows(TransferFailedException.class, () -> puts.awaitBucket(owner, "own"));
+        assertTrue(e.getMessage().startsWith("Failed to upload 1 file(s):"), e.getMessage());
+        assertTrue(e.getMessage().contains("a.jar: denied"), e.getMessage());
+        // reported once only
+        assertDoesNotThrow(() -> puts.awaitOwner(owner));
+    }
+
+    @Test
+    void othersFailuresStopTheBucketButAreLeftForTheirOwner() throws Exception {
+        Object owner = new Object();
+        Object other = new Object();
+        puts.submit(other, "shared", "b.jar", 1, MAX_QUEUED_BYTES, () -> {
+            throw new TransferFailedException("denied");
+        });
+
+        TransferFailedException e = assertThrows(
+            TransferFailedException.class, () -> puts.awaitBucket(owner, "shared")
+        );
+        assertTrue(e.getMessage().startsWith("Uploads queued by another connection"), e.getMessage());
+        assertTrue(e.getMessage().contains("b.jar: denied"), e.getMessage());
+        assertDoesNotThrow(() -> puts.awaitOwner(owner));
+
+        e = assertThrows(TransferFailedException.class, () -> puts.awaitOwner(other));
+        assertTrue(e.getMessage().startsWith("Failed to upload 1 file(s):"), e.getMessage());
+        assertDoesNotThrow(() -> puts.awaitBucket(owner, "shared"));
+    }
+}
@@ -0,0 +1,139 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectoryUploadTest {
+    private static final int FILE_SIZE = 1000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void uploadsEveryFileWithinTheLimits() throws Exception {
+        Set<String> expected = createFiles(12);
+        Bucket s3 = new Bucket(null);
+
+        // the byte limit only leaves room for two files at once, fewer than the concurrency
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "put-directory", configuration(4, 2 * FILE_SIZE + 500))) {
+            stubbed.wagon.putDirectory(directory.toFile(), "site");
+        }
+
+        assertEquals(expected, s3.objects.keySet());
+        for (Map.Entry<String, byte[]> object : s3.objects.entrySet()) {
+            String name = object.getKey().substring("repo/site/".length());
+            assertArrayEquals(Files.readAllBytes(directory.resolve(name)), object.getValue());
+        }
+        assertTrue(s3.maxInFlightBytes.get() <= 2 * FILE_SIZE, "in flight: " + s3.maxInFlightBytes);
+    }
+
+    @Test
+    void reportsAFailureOnceEverythingHasStopped() throws Exception {
+        createFiles(12);
+        Bucket s3 = new Bucket("repo/site/b/3.bin");
+
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "put-directory-failure", configuration(4, 100 * FILE_SIZE))) {
+            TransferFailedException e = assertThrows(
+                TransferFailedException.class, () -> stubbed.wagon.putDirectory(directory.toFile(), "site")
+            );
+            assertTrue(e.getMessage().startsWith("Failed to upload 1 file(s):\n  b/3.bin: "), e.getMessage());
+            assertEquals(0, s3.running.get());
+        }
+    }
+
+    private static Map<String, Object> configuration(int concurrency, long maxInFlightBytes) {
+        return Map.of(
+            "directoryUploadConcurrency", concurrency,
+            "directoryUploadMaxInFlightBytes", maxInFlightBytes
+        );
+    }
+
+    /**
+     * @return the keys the files should be uploaded to
+     */
+    private Set<String> createFiles(int count) throws IOException {
+        Set<String> keys = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            String name = (i % 2 == 0 ? "a/" : "b/") + i + ".bin";
+            Path file = directory.resolve(name);
+            Files.createDirectories(file.getParent());
+            byte[] content = new byte[FILE_SIZE];
+            content[0] = (byte) i;
+            Files.write(file, content);
+            keys.add("repo/site/" + name);
+        }
+        return keys;
+    }
+
+    private static final class Bucket implements S3Client {
+        private final String failingKey;
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final AtomicLong inFlightBytes = new AtomicLong();
+        private final AtomicLong maxInFlightBytes = new AtomicLong();
+        private final AtomicInteger running = new AtomicInteger();
+
+        Bucket(String failingKey) {
+            this.failingKey = failingKey;
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            long length = body.optionalContentLength().orElse(0L);
+            running.incrementAndGet();
+            maxInFlightBytes.accumulateAndGet(inFlightBytes.addAndGet(length), Math::max);
+            try {
+                Thread.sleep(20);
+                if (request.key().equals(failingKey)) {
+                    throw S3Exception.builder().statusCode(500).message("We encountered an internal error").build();
+                }
+                try (InputStream in = body.contentStreamProvider().newStream()) {
+                    objects.put(request.key(), in.readAllBytes());
+                }
+                return PutObjectResponse.builder().build();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            finally {
+                inFlightBytes.addAndGet(-length);
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
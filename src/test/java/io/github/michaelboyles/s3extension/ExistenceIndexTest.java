@@ -0,0 +1,274 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.repository.Repository;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExistenceIndexTest {
+    private final ExistenceIndex index = new ExistenceIndex();
+
+    @Test
+    void shardsByGroupId() {
+        assertEquals("com/example/", ExistenceIndex.shardDirectory("com/example/example/1.0/example-1.0.jar"));
+        assertEquals("com/example/", ExistenceIndex.shardDirectory("com/example/example/maven-metadata.xml"));
+        assertEquals("com/example/", ExistenceIndex.shardDirectory("com/example/example/maven-metadata.xml.sha1"));
+        assertEquals("", ExistenceIndex.shardDirectory("example/1.0/example-1.0.jar"));
+        assertEquals("", ExistenceIndex.shardDirectory("example-1.0.jar"));
+    }
+
+    @Test
+    void indexesChecksumsAlongWithEachPath() throws IOException {
+        Bucket s3 = new Bucket();
+        S3Location location = location("checksums");
+
+        index.add(s3, location, "repo/com/example/example/1.0/example-1.0.jar", null);
+
+        assertEquals(
+            List.of(
+                "example/1.0/example-1.0.jar", "example/1.0/example-1.0.jar.asc", "example/1.0/example-1.0.jar.md5",
+                "example/1.0/example-1.0.jar.sha1", "example/1.0/example-1.0.jar.sha256",
+                "example/1.0/example-1.0.jar.sha512"
+            ),
+            s3.shard("repo/.s3-index/com/example/index")
+        );
+    }
+
+    @Test
+    void checksumsHaveNoChecksumsOfTheirOwn() throws IOException {
+        Bucket s3 = new Bucket();
+        S3Location location = location("signatures");
+
+        index.add(s3, location, "repo/com/example/example/1.0/example-1.0.jar.asc", null);
+        index.add(s3, location, "repo/com/example/example/1.0/example-1.0.pom.sha1", null);
+
+        assertEquals(
+            List.of("example/1.0/example-1.0.jar.asc", "example/1.0/example-1.0.pom.sha1"),
+            s3.shard("repo/.s3-index/com/example/index")
+        );
+    }
+
+    @Test
+    void answersFromTheIndexUntilItExpires() throws IOException {
+        Bucket s3 = new Bucket();
+        S3Location location = location("expiry");
+        index.add(s3, location, "repo/com/example/example/1.0/example-1.0.jar", null);
+        s3.gets = 0;
+
+        assertTrue(index.mayExist(s3, location, "repo/com/example/example/1.0/example-1.0.jar.sha1", 60_000));
+        assertFalse(index.mayExist(s3, location, "repo/com/example/example/2.0/example-2.0.jar", 60_000));
+        assertEquals(0, s3.gets);
+
+        assertFalse(index.mayExist(s3, location, "repo/com/example/example/2.0/example-2.0.jar", 0));
+        assertEquals(1, s3.gets);
+    }
+
+    @Test
+    void knowsNothingWithoutAnIndex() {
+        Bucket s3 = new Bucket();
+
+        assertTrue(index.mayExist(s3, location("missing"), "repo/com/example/example/1.0/example-1.0.jar", 60_000));
+    }
+
+    @Test
+    void newShardStartsWithTheGroupsExistingPaths() throws IOException {
+        Bucket s3 = new Bucket();
+        s3.objects.put("repo/com/example/example/0.9/example-0.9.jar", new byte[0]);
+        s3.objects.put("repo/com/example/example/maven-metadata.xml", new byte[0]);
+        // a group of its own, nested in this one
+        s3.objects.put("repo/com/example/nested/nested/1.0/nested-1.0.jar", new byte[0]);
+        s3.objects.put("repo/com/example/nested/nested/maven-metadata.xml", new byte[0]);
+
+        index.add(s3, location("seeded"), "repo/com/example/example/1.0/example-1.0.pom.sha1", null);
+
+        assertEquals(
+            List.of(
+                "example/0.9/example-0.9.jar", "example/1.0/example-1.0.pom.sha1", "example/maven-metadata.xml"
+            ),
+            s3.shard("repo/.s3-index/com/example/index")
+        );
+    }
+
+    @Test
+    void concurrentUploadsToOneGroupAreAllIndexed() throws Exception {
+        Bucket s3 = new Bucket();
+        S3Location location = location("concurrent");
+        int uploads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(uploads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < uploads; i++) {
+                String key = "repo/com/example/example/1." + i + "/example-1." + i + ".pom.sha1";
+                // an index of its own, like another build deploying at the same time
+                ExistenceIndex other = new ExistenceIndex();
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    other.add(s3, location, key, null);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        List<String> shard = s3.shard("repo/.s3-index/com/example/index");
+        assertEquals(uploads, shard.size(), shard.toString());
+        for (int i = 0; i < uploads; i++) {
+            String key = "repo/com/example/example/1." + i + "/example-1." + i + ".pom.sha1";
+            assertTrue(index.mayExist(s3, location, key, 60_000), key);
+        }
+        assertFalse(index.mayExist(s3, location, "repo/com/example/example/2.0/example-2.0.pom.sha1", 60_000));
+    }
+
+    @Test
+    void givesUpOnAShardWhichKeepsChanging() throws IOException {
+        Bucket s3 = new Bucket();
+        S3Location location = location("conflicts");
+        index.add(s3, location, "repo/com/example/example/1.0/example-1.0.pom.sha1", null);
+        s3.conflicting = true;
+
+        // doesn't fail the upload
+        index.add(s3, location, "repo/com/example/example/2.0/example-2.0.pom.sha1", null);
+
+        assertEquals(List.of("# invalid"), s3.shard("repo/.s3-index/com/example/index"));
+        assertTrue(index.mayExist(s3, location, "repo/com/example/example/2.0/example-2.0.pom.sha1", 60_000));
+        assertTrue(new ExistenceIndex().mayExist(s3, location, "repo/com/example/example/3.0/example-3.0.jar", 0));
+
+        s3.conflicting = false;
+        s3.objects.put("repo/com/example/example/2.0/example-2.0.pom.sha1", new byte[0]);
+        new ExistenceIndex().rebuild(s3, location, false, null);
+
+        assertEquals(List.of("example/2.0/example-2.0.pom.sha1"), s3.shard("repo/.s3-index/com/example/index"));
+        assertFalse(index.mayExist(s3, location, "repo/com/example/example/3.0/example-3.0.jar", 0));
+    }
+
+    /**
+     * The shards are remembered for the life of the JVM, so each test uses a bucket of its own.
+     */
+    private static S3Location location(String bucket) {
+        return S3Location.of(new Repository("test", "s3://" + bucket + "/repo"));
+    }
+
+    /**
+     * Holds objects in memory, and answers requests for them like S3 would.
+     */
+    private static final class Bucket implements S3Client {
+        private final Map<String, byte[]> objects = new TreeMap<>();
+        private int gets;
+        /** Whether every conditional write fails, as if someone else always wrote first */
+        private volatile boolean conflicting;
+
+        synchronized List<String> shard(String key) throws IOException {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(objects.get(key))), StandardCharsets.UTF_8
+            ))) {
+                // skip the header
+                in.readLine();
+                return in.lines().collect(Collectors.toList());
+            }
+        }
+
+        private static String eTagOf(byte[] content) {
+            return '"' + Integer.toHexString(Arrays.hashCode(content)) + '"';
+        }
+
+        @Override
+        public synchronized ResponseBytes<GetObjectResponse> getObjectAsBytes(GetObjectRequest request) {
+            gets++;
+            byte[] content = objects.get(request.key());
+            if (content == null) throw NoSuchKeyException.builder().statusCode(404).build();
+            if (eTagOf(content).equals(request.ifNoneMatch())) throw S3Exception.builder().statusCode(304).build();
+            return ResponseBytes.fromByteArray(GetObjectResponse.builder().eTag(eTagOf(content)).build(), content);
+        }
+
+        @Override
+        public synchronized PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            byte[] existing = objects.get(request.key());
+            boolean matches = request.ifMatch() != null
+                ? existing != null && eTagOf(existing).equals(request.ifMatch())
+                : !"*".equals(request.ifNoneMatch()) || existing == null;
+            if (conflicting && (request.ifMatch() != null || request.ifNoneMatch() != null)) matches = false;
+            if (!matches) throw S3Exception.builder().statusCode(412).build();
+            byte[] content;
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                content = in.readAllBytes();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            objects.put(request.key(), content);
+            return PutObjectResponse.builder().eTag(eTagOf(content)).build();
+        }
+
+        @Override
+        public synchronized ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+            List<S3Object> contents = new ArrayList<>();
+            List<CommonPrefix> directories = new ArrayList<>();
+            for (String key : objects.keySet()) {
+                if (!key.startsWith(request.prefix())) continue;
+                int slash = request.delimiter() != null ? key.indexOf('/', request.prefix().length()) : -1;
+                if (slash < 0) {
+                    contents.add(S3Object.builder().key(key).build());
+                }
+                else {
+                    CommonPrefix directory = CommonPrefix.builder().prefix(key.substring(0, slash + 1)).build();
+                    if (!directories.contains(directory)) directories.add(directory);
+                }
+            }
+            return ListObjectsV2Response.builder()
+                .contents(contents)
+                .commonPrefixes(directories)
+                .isTruncated(false)
+                .build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GetIfNewerTest {
+    private static final Instant MODIFIED = Instant.parse("2024-01-01T00:00:00Z");
+    /** Nothing is remembered about objects, so every call gets as far as S3 */
+    private static final Map<String, Object> NO_CACHE = Map.of(
+        "metadataCacheTtlSeconds", 0L,
+        "negativeMetadataCacheTtlSeconds", 0L
+    );
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void downloadsANewerObjectInOneRequest() throws Exception {
+        Bucket s3 = new Bucket("<metadata/>");
+        File destination = directory.resolve("maven-metadata.xml").toFile();
+
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "if-newer", NO_CACHE)) {
+            assertTrue(stubbed.wagon.getIfNewer("maven-metadata.xml", destination, MODIFIED.toEpochMilli() - 1));
+        }
+
+        assertEquals("<metadata/>", Files.readString(destination.toPath()));
+        assertEquals(1, s3.requests.size());
+        assertEquals(MODIFIED.minusMillis(1), s3.requests.get(0).ifModifiedSince());
+        assertNull(s3.requests.get(0).ifNoneMatch());
+    }
+
+    @Test
+    void notModifiedIsNotNewer() throws Exception {
+        Bucket s3 = new Bucket("<metadata/>");
+        File destination = directory.resolve("maven-metadata.xml").toFile();
+        Files.writeString(destination.toPath(), "<old/>");
+
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "if-newer-304", NO_CACHE)) {
+            assertFalse(stubbed.wagon.getIfNewer("maven-metadata.xml", destination, MODIFIED.toEpochMilli()));
+        }
+
+        assertEquals("<old/>", Files.readString(destination.toPath()));
+        assertEquals(1, s3.requests.size());
+    }
+
+    @Test
+    void offersTheETagOfTheLastDownload() throws Exception {
+        Bucket s3 = new Bucket("<metadata/>");
+        File destination = directory.resolve("maven-metadata.xml").toFile();
+
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "if-newer-etag", NO_CACHE)) {
+            assertTrue(stubbed.wagon.getIfNewer("maven-metadata.xml", destination, MODIFIED.toEpochMilli() - 1));
+            assertFalse(stubbed.wagon.getIfNewer("maven-metadata.xml", destination, MODIFIED.toEpochMilli() - 1));
+        }
+
+        assertEquals(Bucket.ETAG, s3.requests.get(1).ifNoneMatch());
+    }
+
+    @Test
+    void onlyRemembersTheETagsOfConditionalDownloads() throws Exception {
+        Bucket s3 = new Bucket("<metadata/>");
+        File destination = directory.resolve("maven-metadata.xml").toFile();
+
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "if-newer-plain", NO_CACHE)) {
+            stubbed.wagon.get("maven-metadata.xml", destination);
+            assertTrue(stubbed.wagon.getIfNewer("maven-metadata.xml", destination, MODIFIED.toEpochMilli() - 1));
+        }
+
+        assertNull(s3.requests.get(1).ifNoneMatch());
+    }
+
+    @Test
+    void missingObjectDoesNotExist() throws Exception {
+        Bucket s3 = new Bucket(null);
+        File destination = directory.resolve("maven-metadata.xml").toFile();
+
+        try (StubbedWagon stubbed = new StubbedWagon(s3, "if-newer-missing", NO_CACHE)) {
+            assertThrows(
+                ResourceDoesNotExistException.class,
+                () -> stubbed.wagon.getIfNewer("maven-metadata.xml", destination, MODIFIED.toEpochMilli())
+            );
+        }
+        assertFalse(destination.exists());
+    }
+
+    /**
+     * Holds one object, and answers conditional GETs for it like S3 would.
+     */
+    private static final class Bucket implements S3Client {
+        private static final String ETAG = "\"v1\"";
+
+        private final byte[] content;
+        private final List<GetObjectRequest> requests = new ArrayList<>();
+
+        /**
+         * @param content the object, or null if it doesn't exist
+         */
+        Bucket(String content) {
+            this.content = content != null ? content.getBytes(StandardCharsets.UTF_8) : null;
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            requests.add(request);
+            if (content == null) throw NoSuchKeyException.builder().statusCode(404).build();
+            boolean modified = request.ifNoneMatch() != null
+                ? !ETAG.equals(request.ifNoneMatch())
+                : request.ifModifiedSince() == null || MODIFIED.isAfter(request.ifModifiedSince());
+            if (!modified) throw S3Exception.builder().statusCode(304).build();
+            GetObjectResponse response = GetObjectResponse.builder()
+                .eTag(ETAG)
+                .lastModified(MODIFIED)
+                .contentLength((long) content.length)
+                .build();
+            return new ResponseInputStream<>(response, AbortableInputStream.create(new ByteArrayInputStream(content)));
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
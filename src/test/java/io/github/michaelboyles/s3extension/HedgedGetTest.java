@@ -0,0 +1,173 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgedGetTest {
+    private static final GetObjectRequest REQUEST = GetObjectRequest.builder().bucket("bucket").key("a.pom").build();
+    /** Enough requests to know what's slow */
+    private static final int WARM_UP = 32;
+
+    private final HedgedGet hedgedGet = new HedgedGet();
+    private final Bucket s3 = new Bucket();
+
+    @Test
+    void returnsTheHedgeAndAbortsTheSlowRequest() throws InterruptedException {
+        warmUp(WARM_UP, 0, 100);
+        s3.delays.add(Bucket.BLOCK);
+
+        ResponseInputStream<GetObjectResponse> response = hedgedGet.getObject(s3, REQUEST, 95, 100);
+
+        assertEquals(WARM_UP + 2, s3.calls.get());
+        assertEquals(Bucket.eTag(WARM_UP + 2), response.response().eTag());
+        assertFalse(s3.aborted(WARM_UP + 2).await(0, TimeUnit.MILLISECONDS));
+        // the slow request only finds out it lost once its response arrives, and mustn't keep the connection
+        s3.release.countDown();
+        assertTrue(s3.aborted(WARM_UP + 1).await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void stopsHedgingOnceTheBudgetIsSpent() throws InterruptedException {
+        warmUp(WARM_UP, 0, 10);
+        // a tenth of a hedge for each request so far, and for each of these
+        for (int i = 0; i < 3; i++) {
+            s3.delays.add(Bucket.BLOCK);
+            int calls = s3.calls.get();
+            assertEquals(Bucket.eTag(calls + 2), hedgedGet.getObject(s3, REQUEST, 95, 10).response().eTag());
+        }
+        s3.delays.add(Bucket.BLOCK);
+        int calls = s3.calls.get();
+        Thread releaser = new Thread(() -> {
+            sleep(200);
+            s3.release.countDown();
+        });
+        releaser.start();
+
+        ResponseInputStream<GetObjectResponse> response = hedgedGet.getObject(s3, REQUEST, 95, 10);
+
+        assertEquals(calls + 1, s3.calls.get());
+        assertEquals(Bucket.eTag(calls + 1), response.response().eTag());
+        releaser.join();
+    }
+
+    @Test
+    void onlyHedgesRequestsSlowerThanThePercentile() {
+        // half of the requests are fast, and half take 100ms
+        warmUp(WARM_UP / 2, 0, 100);
+        warmUp(WARM_UP / 2, 100, 100);
+
+        s3.delays.add(10L);
+        int calls = s3.calls.get();
+        assertEquals(Bucket.eTag(calls + 1), hedgedGet.getObject(s3, REQUEST, 95, 100).response().eTag());
+        assertEquals(calls + 1, s3.calls.get());
+
+        s3.delays.add(10L);
+        assertEquals(Bucket.eTag(calls + 3), hedgedGet.getObject(s3, REQUEST, 25, 100).response().eTag());
+        assertEquals(calls + 3, s3.calls.get());
+    }
+
+    @Test
+    void doesNotHedgeUntilItKnowsWhatIsSlow() {
+        warmUp(WARM_UP - 1, 0, 100);
+        s3.delays.add(50L);
+
+        hedgedGet.getObject(s3, REQUEST, 0, 100);
+
+        assertEquals(WARM_UP, s3.calls.get());
+    }
+
+    private void warmUp(int requests, long delayMillis, double budgetPercent) {
+        for (int i = 0; i < requests; i++) {
+            s3.delays.add(delayMillis);
+            hedgedGet.getObject(s3, REQUEST, 95, budgetPercent);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Responds after the delay given for each request, in the order requests arrive, or straight away if none was.
+     * Like the sync client, it doesn't notice being interrupted while it waits.
+     */
+    private static final class Bucket implements S3Client {
+        /** Wait until released */
+        private static final long BLOCK = -1;
+
+        private final Queue<Long> delays = new ConcurrentLinkedQueue<>();
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+        private final Map<Integer, CountDownLatch> aborted = new ConcurrentHashMap<>();
+
+        /**
+         * @param call the number of the request, from 1
+         */
+        static String eTag(int call) {
+            return "\"" + call + "\"";
+        }
+
+        CountDownLatch aborted(int call) {
+            return aborted.computeIfAbsent(call, c -> new CountDownLatch(1));
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            int call = calls.incrementAndGet();
+            Long delay = delays.poll();
+            boolean interrupted = false;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay != null ? delay : 0);
+            while (true) {
+                try {
+                    if (delay != null && delay == BLOCK) {
+                        release.await();
+                    }
+                    else {
+                        TimeUnit.NANOSECONDS.sleep(deadline - System.nanoTime());
+                    }
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            GetObjectResponse response = GetObjectResponse.builder().eTag(eTag(call)).build();
+            CountDownLatch abort = aborted(call);
+            return new ResponseInputStream<>(
+                response, AbortableInputStream.create(new ByteArrayInputStream(new byte[0]), abort::countDown)
+            );
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
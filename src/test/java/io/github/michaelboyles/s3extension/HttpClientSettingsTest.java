@@ -0,0 +1,135 @@
+package io.github.michaelboyles.s3extension;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.michaelboyles.s3extension.HttpClientSettings.Implementation;
+import org.apache.http.config.Lookup;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.http.HttpExecuteRequest;
+import software.amazon.awssdk.http.HttpExecuteResponse;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.http.SdkHttpRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpClientSettingsTest {
+    @Test
+    void parsesImplementation() {
+        assertEquals(Implementation.APACHE, Implementation.parse(null));
+        assertEquals(Implementation.APACHE, Implementation.parse(" "));
+        assertEquals(Implementation.APACHE, Implementation.parse("Apache"));
+        assertEquals(Implementation.URL_CONNECTION, Implementation.parse("urlconnection"));
+        assertEquals(Implementation.URL_CONNECTION, Implementation.parse("url-connection"));
+        assertEquals(Implementation.CRT, Implementation.parse(" crt "));
+        assertThrows(IllegalArgumentException.class, () -> Implementation.parse("netty"));
+    }
+
+    @Test
+    void parsesRetryMode() {
+        assertEquals(HttpClientSettings.DEFAULT, HttpClientSettings.builder().retryMode(" ").build());
+        assertNotEquals(HttpClientSettings.DEFAULT, HttpClientSettings.builder().retryMode("Adaptive").build());
+        assertThrows(IllegalArgumentException.class, () -> HttpClientSettings.builder().retryMode("eager"));
+    }
+
+    @Test
+    void parsesProxy() {
+        HttpClientSettings settings = HttpClientSettings.builder()
+            .proxy(null, "proxy.example.com", 3128, "user", "secret", "localhost| *.internal.example.com ,,10.*")
+            .build();
+
+        assertEquals("http", settings.proxyScheme());
+        assertEquals("proxy.example.com", settings.proxyHost());
+        assertEquals(3128, settings.proxyPort());
+        assertEquals(Set.of("localhost", "*.internal.example.com", "10.*"), settings.nonProxyHosts());
+        HttpClientSettings https = HttpClientSettings.builder().proxy("HTTPS", "p", 0, null, null, null).build();
+        assertEquals("https", https.proxyScheme());
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> HttpClientSettings.builder().proxy("socks5", "p", 1080, null, null, null)
+        );
+    }
+
+    @Test
+    void equalSettingsAreEqual() {
+        HttpClientSettings a = HttpClientSettings.builder().implementation("urlconnection").maxConnections(8).build();
+        HttpClientSettings b = HttpClientSettings.builder().implementation("url-connection").maxConnections(8).build();
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, HttpClientSettings.builder().implementation("urlconnection").maxConnections(9).build());
+    }
+
+    @Test
+    void toStringHidesProxyPassword() {
+        HttpClientSettings settings = HttpClientSettings.builder()
+            .proxy("http", "proxy.example.com", 3128, "user", "secret", null)
+            .build();
+
+        assertFalse(settings.toString().contains("secret"));
+    }
+
+    @Test
+    void sizesTheSocketsOfEachScheme() throws IOException {
+        Lookup<ConnectionSocketFactory> factories = HttpClientSettings.builder()
+            .socketSendBufferSize(256 * 1024)
+            .socketReceiveBufferSize(512 * 1024)
+            .build()
+            .socketFactories();
+
+        for (String scheme : new String[] { "http", "https" }) {
+            try (Socket socket = factories.lookup(scheme).createSocket(new BasicHttpContext())) {
+                // the OS may round the sizes up, but never ignores them entirely
+                assertTrue(socket.getSendBufferSize() >= 256 * 1024, scheme + ": " + socket.getSendBufferSize());
+                assertTrue(socket.getReceiveBufferSize() >= 512 * 1024, scheme + ": " + socket.getReceiveBufferSize());
+            }
+        }
+        assertTrue(factories.lookup("https") instanceof LayeredConnectionSocketFactory);
+    }
+
+    @Test
+    void sizedClientStillSpeaksPlainHttp() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        SdkHttpClient client = HttpClientSettings.builder().socketReceiveBufferSize(512 * 1024).build()
+            .newHttpClient()
+            .build();
+        try {
+            SdkHttpRequest request = SdkHttpRequest.builder()
+                .uri(URI.create("http://localhost:" + server.getAddress().getPort() + "/object"))
+                .method(SdkHttpMethod.GET)
+                .build();
+            HttpExecuteResponse response = client.prepareRequest(HttpExecuteRequest.builder().request(request).build())
+                .call();
+
+            assertEquals(200, response.httpResponse().statusCode());
+            try (InputStream in = response.responseBody().orElseThrow()) {
+                assertEquals("hello", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+}
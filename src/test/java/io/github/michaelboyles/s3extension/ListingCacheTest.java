@@ -0,0 +1,91 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ListingCacheTest {
+    private final ListClient s3 = new ListClient();
+
+    @Test
+    void listsFilesAndDirectoriesRelativeToThePrefix() {
+        List<String> names = ListingCache.list(s3, "names", "com/example/", 60_000);
+        assertEquals(List.of("1.0/", "1.1/", "maven-metadata.xml"), names);
+    }
+
+    @Test
+    void remembersListingUntilItExpires() throws InterruptedException {
+        ListingCache.list(s3, "expires", "com/example/", 50);
+        ListingCache.list(s3, "expires", "com/example/", 50);
+        assertEquals(1, s3.requests);
+
+        Thread.sleep(100);
+        ListingCache.list(s3, "expires", "com/example/", 50);
+        assertEquals(2, s3.requests);
+    }
+
+    @Test
+    void zeroTtlDisablesCaching() {
+        ListingCache.list(s3, "disabled", "com/example/", 0);
+        ListingCache.list(s3, "disabled", "com/example/", 0);
+        assertEquals(2, s3.requests);
+    }
+
+    @Test
+    void writeWithinListingInvalidatesIt() {
+        ListingCache.list(s3, "invalidated", "com/example/", 60_000);
+        ListingCache.list(s3, "invalidated", "com/other/", 60_000);
+        ListingCache.invalidate("invalidated", "com/example/1.2/example-1.2.jar");
+
+        ListingCache.list(s3, "invalidated", "com/example/", 60_000);
+        ListingCache.list(s3, "invalidated", "com/other/", 60_000);
+        assertEquals(3, s3.requests);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedListings() {
+        ListingCache.list(s3, "bounded", "first/", 60_000);
+        for (int i = 0; i < 1_000; i++) {
+            ListingCache.list(s3, "bounded", "filler-" + i + "/", 60_000);
+        }
+        ListingCache.list(s3, "bounded", "first/", 60_000);
+        assertEquals(1_002, s3.requests);
+    }
+
+    private static final class ListClient implements S3Client {
+        private int requests;
+
+        @Override
+        public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+            requests++;
+            String prefix = request.prefix();
+            return ListObjectsV2Response.builder()
+                .commonPrefixes(
+                    CommonPrefix.builder().prefix(prefix + "1.0/").build(),
+                    CommonPrefix.builder().prefix(prefix + "1.1/").build()
+                )
+                .contents(
+                    S3Object.builder().key(prefix).build(),
+                    S3Object.builder().key(prefix + "maven-metadata.xml").build()
+                )
+                .isTruncated(false)
+                .build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ObjectMetadataCacheTest {
+    private final ObjectMetadataCache cache = new ObjectMetadataCache();
+
+    @Test
+    void remembersExistingObjects() {
+        Instant lastModified = Instant.parse("2024-01-01T00:00:00Z");
+        cache.putExists("exists", "a.jar", 123, "\"etag\"", lastModified, 60_000);
+
+        ObjectMetadataCache.Entry entry = cache.get("exists", "a.jar");
+        assertTrue(entry.exists());
+        assertEquals(123, entry.size());
+        assertEquals("\"etag\"", entry.eTag());
+        assertEquals(lastModified, entry.lastModified());
+    }
+
+    @Test
+    void remembersMissingObjects() {
+        cache.putMissing("missing", "a.jar", 60_000);
+
+        ObjectMetadataCache.Entry entry = cache.get("missing", "a.jar");
+        assertFalse(entry.exists());
+        assertEquals(-1, entry.size());
+    }
+
+    @Test
+    void forgetsEntriesOnceExpired() throws InterruptedException {
+        cache.putMissing("expires", "a.jar", 50);
+        assertNotNull(cache.get("expires", "a.jar"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("expires", "a.jar"));
+    }
+
+    @Test
+    void zeroTtlIsNotRemembered() {
+        cache.putExists("disabled", "a.jar", 1, null, null, 0);
+        cache.putMissing("disabled", "b.jar", 0);
+
+        assertNull(cache.get("disabled", "a.jar"));
+        assertNull(cache.get("disabled", "b.jar"));
+    }
+
+    @Test
+    void invalidateForgetsTheKey() {
+        cache.putMissing("invalidated", "a.jar", 60_000);
+        cache.invalidate("invalidated", "a.jar");
+
+        assertNull(cache.get("invalidated", "a.jar"));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedWhenFull() {
+        cache.requestMaxEntries(2);
+        cache.putMissing("lru", "a.jar", 60_000);
+        cache.putMissing("lru", "b.jar", 60_000);
+        // touching a makes b the least recently used
+        cache.get("lru", "a.jar");
+        cache.putMissing("lru", "c.jar", 60_000);
+
+        assertNotNull(cache.get("lru", "a.jar"));
+        assertNull(cache.get("lru", "b.jar"));
+        assertNotNull(cache.get("lru", "c.jar"));
+    }
+
+    @Test
+    void firstSizeAskedForCanShrinkIt() {
+        cache.putMissing("shrink", "a.jar", 60_000);
+        cache.putMissing("shrink", "b.jar", 60_000);
+        cache.putMissing("shrink", "c.jar", 60_000);
+        cache.requestMaxEntries(1);
+
+        assertNull(cache.get("shrink", "a.jar"));
+        assertNull(cache.get("shrink", "b.jar"));
+        assertNotNull(cache.get("shrink", "c.jar"));
+    }
+
+    @Test
+    void largestSizeAskedForWins() {
+        cache.requestMaxEntries(3);
+        cache.requestMaxEntries(1);
+        cache.putMissing("largest", "a.jar", 60_000);
+        cache.putMissing("largest", "b.jar", 60_000);
+        cache.putMissing("largest", "c.jar", 60_000);
+        cache.putMissing("largest", "d.jar", 60_000);
+
+        assertNull(cache.get("largest", "a.jar"));
+        assertNotNull(cache.get("largest", "b.jar"));
+        assertNotNull(cache.get("largest", "c.jar"));
+        assertNotNull(cache.get("largest", "d.jar"));
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PartialDownloadTest {
+    @TempDir
+    Path temp;
+
+    @Test
+    void claimsSavedContent() throws IOException {
+        File download = download("0123456789");
+        var checksum = StreamingChecksum.Expected.of(ChecksumAlgorithm.CRC32_C, "AAAAAA==");
+        PartialDownload.save("bucket", "claims.jar", download, 4, "\"etag\"", checksum);
+        assertFalse(download.exists());
+
+        PartialDownload partial = PartialDownload.claim("bucket", "claims.jar");
+        assertNotNull(partial);
+        assertEquals("\"etag\"", partial.eTag());
+        assertEquals(4, partial.length());
+        assertEquals("0123", Files.readString(partial.file().toPath()));
+        assertEquals(ChecksumAlgorithm.CRC32_C, partial.checksum().checksum().algorithm());
+        assertEquals("AAAAAA==", partial.checksum().expectedValue());
+    }
+
+    @Test
+    void onlyOneClaimSucceeds() throws IOException {
+        PartialDownload.save("bucket", "once.jar", download("0123456789"), 10, "\"etag\"", null);
+
+        assertNotNull(PartialDownload.claim("bucket", "once.jar"));
+        assertNull(PartialDownload.claim("bucket", "once.jar"));
+    }
+
+    @Test
+    void releasedClaimCanBeClaimedAgain() throws IOException {
+        PartialDownload.save("bucket", "released.jar", download("0123456789"), 6, "\"etag\"", null);
+
+        PartialDownload first = PartialDownload.claim("bucket", "released.jar");
+        first.release();
+        PartialDownload second = PartialDownload.claim("bucket", "released.jar");
+
+        assertNotNull(second);
+        assertEquals(6, second.length());
+        assertNull(second.checksum());
+    }
+
+    @Test
+    void nothingToClaimForOtherKeys() throws IOException {
+        PartialDownload.save("bucket", "saved.jar", download("0123456789"), 6, "\"etag\"", null);
+
+        assertNull(PartialDownload.claim("bucket", "other.jar"));
+        assertNull(PartialDownload.claim("other-bucket", "saved.jar"));
+    }
+
+    private File download(String content) throws IOException {
+        Path file = Files.createTempFile(temp, "download", ".tmp");
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+}
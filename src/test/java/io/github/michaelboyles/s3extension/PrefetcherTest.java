@@ -0,0 +1,133 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrefetcherTest {
+    private static final int SIZE = 1024;
+
+    private final Prefetcher prefetcher = Prefetcher.getInstance();
+
+    @Test
+    void servesPrefetchedSiblings() throws Exception {
+        S3Client s3 = new StubClient("served", key -> new ByteArrayInputStream(new byte[SIZE]));
+        prefetcher.prefetchSiblings(s3, pom("served"), List.of(".jar"), 4 * SIZE, 60_000);
+
+        try (InputStream in = prefetcher.take("served", "com/example/example-1.0.jar")) {
+            assertArrayEquals(new byte[SIZE], in.readAllBytes());
+        }
+        assertNull(prefetcher.take("served", "com/example/example-1.0.jar"));
+    }
+
+    @Test
+    void concurrentFetchesDontExceedTheBudget() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        StubClient s3 = new StubClient("budget", key -> new InputStream() {
+            private int remaining = SIZE;
+
+            @Override
+            public int read() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (remaining == SIZE) reads.incrementAndGet();
+                return remaining-- > 0 ? 0 : -1;
+            }
+        });
+        List<String> suffixes = List.of(".a", ".b", ".c", ".d", ".e", ".f", ".g", ".h");
+
+        // each file is a quarter of the budget, so only four can be staged at once
+        prefetcher.prefetchSiblings(s3, pom("budget"), suffixes, 4 * SIZE, 60_000);
+        try {
+            assertTrue(s3.aborted.await(10, TimeUnit.SECONDS));
+        }
+        finally {
+            release.countDown();
+        }
+
+        List<String> staged = new ArrayList<>();
+        for (String suffix : suffixes) {
+            try (InputStream in = prefetcher.take("budget", "com/example/example-1.0" + suffix)) {
+                if (in != null) staged.add(suffix);
+            }
+        }
+        assertEquals(4, staged.size());
+        assertEquals(4, reads.get());
+    }
+
+    @Test
+    void remembersMissingSiblingsSeparately() {
+        long missingBefore = S3Metrics.getInstance().getPrefetchCounts().get("missing");
+        long prefetchedBefore = S3Metrics.getInstance().getPrefetchCounts().get("prefetched");
+        S3Client s3 = new StubClient("missing", key -> null);
+        prefetcher.prefetchSiblings(s3, pom("missing"), List.of(".jar"), 4 * SIZE, 60_000);
+
+        assertThrows(NoSuchKeyException.class, () -> prefetcher.take("missing", "com/example/example-1.0.jar"));
+        assertEquals(missingBefore + 1, S3Metrics.getInstance().getPrefetchCounts().get("missing"));
+        assertEquals(prefetchedBefore, S3Metrics.getInstance().getPrefetchCounts().get("prefetched"));
+    }
+
+    private static GetObjectRequest pom(String bucket) {
+        return GetObjectRequest.builder().bucket(bucket).key("com/example/example-1.0.pom").build();
+    }
+
+    private interface Content {
+        /**
+         * @return the content of the key, or null if it doesn't exist
+         */
+        InputStream open(String key);
+    }
+
+    private static final class StubClient implements S3Client {
+        private final String bucket;
+        private final Content content;
+        /** Counts down once half of the eight fetches in a test have been abandoned */
+        private final CountDownLatch aborted = new CountDownLatch(4);
+
+        StubClient(String bucket, Content content) {
+            this.bucket = bucket;
+            this.content = content;
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            assertEquals(bucket, request.bucket());
+            InputStream in = content.open(request.key());
+            if (in == null) throw NoSuchKeyException.builder().statusCode(404).build();
+            GetObjectResponse response = GetObjectResponse.builder().contentLength((long) SIZE).build();
+            return new ResponseInputStream<>(response, AbortableInputStream.create(in, aborted::countDown));
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RangedDownloadTest {
+    private static final int PART_SIZE = 64 * 1024;
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void reportsProgressInOrderOfOffsetWhenRangesArriveOutOfOrder() throws Exception {
+        byte[] content = randomBytes(4 * PART_SIZE + 123);
+        // the second range can't finish until the last one has
+        CountDownLatch lastRangeDone = new CountDownLatch(1);
+        S3Client s3 = new RangeClient(content, "\"etag\"") {
+            @Override
+            void beforeRange(long start) throws InterruptedException {
+                if (start == PART_SIZE) lastRangeDone.await(10, TimeUnit.SECONDS);
+            }
+
+            @Override
+            void afterRange(long start) {
+                if (start == 4L * PART_SIZE) lastRangeDone.countDown();
+            }
+        };
+        File destination = temp.resolve("download").toFile();
+        ByteArrayOutputStream reported = new ByteArrayOutputStream();
+
+        new RangedDownload(s3, PART_SIZE, 4).download(
+            request(), first(content, "\"etag\""), destination, reported::write
+        );
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertArrayEquals(content, reported.toByteArray());
+    }
+
+    @Test
+    void failsIfTheObjectChangesMidDownload() {
+        byte[] content = randomBytes(3 * PART_SIZE);
+        S3Client s3 = new RangeClient(content, "\"changed\"");
+        File destination = temp.resolve("download").toFile();
+
+        assertThrows(S3Exception.class, () -> new RangedDownload(s3, PART_SIZE, 2).download(
+            request(), first(content, "\"original\""), destination, (buffer, offset, length) -> {}
+        ));
+    }
+
+    private static GetObjectRequest request() {
+        return GetObjectRequest.builder().bucket("bucket").key("key").build();
+    }
+
+    private static ResponseInputStream<GetObjectResponse> first(byte[] content, String eTag) {
+        GetObjectResponse response = GetObjectResponse.builder()
+            .contentLength((long) content.length)
+            .eTag(eTag)
+            .build();
+        return new ResponseInputStream<>(response, AbortableInputStream.create(new ByteArrayInputStream(content)));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Serves ranged GETs of a single object.
+     */
+    private static class RangeClient implements S3Client {
+        private final byte[] content;
+        private final String eTag;
+
+        RangeClient(byte[] content, String eTag) {
+            this.content = content;
+            this.eTag = eTag;
+        }
+
+        void beforeRange(long start) throws InterruptedException {
+        }
+
+        void afterRange(long start) {
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            if (!eTag.equals(request.ifMatch())) {
+                throw S3Exception.builder().statusCode(412).message("Precondition Failed").build();
+            }
+            String[] range = request.range().substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(range[0]);
+            int end = Integer.parseInt(range[1]) + 1;
+            try {
+                beforeRange(start);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            byte[] bytes = Arrays.copyOfRange(content, start, end);
+            GetObjectResponse response = GetObjectResponse.builder().contentLength((long) bytes.length).build();
+            var in = new ByteArrayInputStream(bytes) {
+                @Override
+                public void close() {
+                    afterRange(start);
+                }
+            };
+            return new ResponseInputStream<>(response, AbortableInputStream.create(in));
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
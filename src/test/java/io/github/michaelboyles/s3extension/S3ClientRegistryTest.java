@@ -0,0 +1,124 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3ClientRegistryTest {
+    private final S3ClientRegistry registry = S3ClientRegistry.getInstance();
+
+    @Test
+    void sharesClientBetweenLeasesOfTheSameKey() {
+        S3ClientKey key = key("shares");
+        AtomicInteger built = new AtomicInteger();
+        var first = registry.acquire(key, () -> { built.incrementAndGet(); return new StubClient(); });
+        var second = registry.acquire(key, () -> { built.incrementAndGet(); return new StubClient(); });
+
+        assertSame(first.client(), second.client());
+        assertEquals(1, built.get());
+        first.release(0);
+        second.release(0);
+    }
+
+    @Test
+    void closesClientWhenLastLeaseIsReleased() {
+        S3ClientKey key = key("closes");
+        StubClient client = new StubClient();
+        var first = registry.acquire(key, () -> client);
+        var second = registry.acquire(key, StubClient::new);
+
+        first.release(0);
+        assertFalse(client.closed);
+        second.release(0);
+        assertTrue(client.closed);
+
+        var third = registry.acquire(key, StubClient::new);
+        assertNotSame(client, third.client());
+        third.release(0);
+    }
+
+    @Test
+    void buildingOneClientDoesNotBlockOtherKeys() throws Exception {
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        var slow = CompletableFuture.supplyAsync(() -> registry.acquire(key("slow"), () -> {
+            building.countDown();
+            await(finish);
+            return new StubClient();
+        }), S3ClientRegistryTest::newThread);
+        assertTrue(building.await(10, TimeUnit.SECONDS));
+
+        var fast = registry.acquire(key("fast"), StubClient::new);
+        finish.countDown();
+        fast.release(0);
+        slow.get(10, TimeUnit.SECONDS).release(0);
+    }
+
+    @Test
+    void closesTheExtraClientWhenTwoThreadsBuildTheSameKey() throws Exception {
+        S3ClientKey key = key("race");
+        CountDownLatch bothBuilding = new CountDownLatch(2);
+        StubClient a = new StubClient();
+        StubClient b = new StubClient();
+        var first = CompletableFuture.supplyAsync(() -> registry.acquire(key, () -> {
+            bothBuilding.countDown();
+            await(bothBuilding);
+            return a;
+        }), S3ClientRegistryTest::newThread);
+        var second = CompletableFuture.supplyAsync(() -> registry.acquire(key, () -> {
+            bothBuilding.countDown();
+            await(bothBuilding);
+            return b;
+        }), S3ClientRegistryTest::newThread);
+
+        var firstLease = first.get(10, TimeUnit.SECONDS);
+        var secondLease = second.get(10, TimeUnit.SECONDS);
+        assertSame(firstLease.client(), secondLease.client());
+        assertTrue(a.closed ^ b.closed);
+        firstLease.release(0);
+        secondLease.release(0);
+        assertTrue(a.closed && b.closed);
+    }
+
+    private static S3ClientKey key(String bucket) {
+        return new S3ClientKey(bucket, "eu-west-1", null, false, null, 0, HttpClientSettings.builder().build());
+    }
+
+    private static void newThread(Runnable task) {
+        new Thread(task).start();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("Timed out");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class StubClient implements S3Client {
+        private volatile boolean closed;
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SharedMetadataCacheTest {
+    private static final GetObjectRequest REQUEST = GetObjectRequest.builder()
+        .bucket("bucket")
+        .key("com/example/maven-metadata.xml")
+        .build();
+
+    @TempDir
+    Path directory;
+
+    private final Bucket s3 = new Bucket();
+
+    @Test
+    void revalidatesCachedCopy() throws IOException {
+        SharedMetadataCache cache = SharedMetadataCache.open(directory.toString(), 1024 * 1024);
+        s3.put("<metadata>1</metadata>", "\"v1\"");
+        Map<String, Long> before = counts();
+
+        assertEquals("<metadata>1</metadata>", read(cache.getObject(REQUEST, s3)));
+        assertEquals("<metadata>1</metadata>", read(cache.getObject(REQUEST, s3)));
+
+        assertNull(s3.requests.get(0).ifNoneMatch());
+        assertEquals("\"v1\"", s3.requests.get(1).ifNoneMatch());
+        assertEquals(1, counts().get("missed") - before.get("missed"));
+        assertEquals(1, counts().get("revalidated") - before.get("revalidated"));
+        assertEquals(0, counts().get("changed") - before.get("changed"));
+    }
+
+    @Test
+    void replacesOutOfDateCopy() throws IOException {
+        SharedMetadataCache cache = SharedMetadataCache.open(directory.toString(), 1024 * 1024);
+        s3.put("<metadata>1</metadata>", "\"v1\"");
+        read(cache.getObject(REQUEST, s3));
+        Map<String, Long> before = counts();
+
+        s3.put("<metadata>2</metadata>", "\"v2\"");
+        assertEquals("<metadata>2</metadata>", read(cache.getObject(REQUEST, s3)));
+        assertEquals("<metadata>2</metadata>", read(cache.getObject(REQUEST, s3)));
+
+        assertEquals("\"v2\"", s3.requests.get(2).ifNoneMatch());
+        assertEquals(1, counts().get("changed") - before.get("changed"));
+        assertEquals(1, counts().get("revalidated") - before.get("revalidated"));
+        assertEquals(0, counts().get("missed") - before.get("missed"));
+    }
+
+    @Test
+    void failingToWriteTheCacheDoesntFailTheDownload() throws IOException {
+        SharedMetadataCache cache = SharedMetadataCache.open(directory.toString(), 1024 * 1024);
+        // nothing can be created in the objects directory if it's a file
+        Path objects = directory.resolve("objects");
+        Files.delete(objects);
+        Files.createFile(objects);
+        s3.put("<metadata>1</metadata>", "\"v1\"");
+
+        assertEquals("<metadata>1</metadata>", read(cache.getObject(REQUEST, s3)));
+        assertEquals("<metadata>1</metadata>", read(cache.getObject(REQUEST, s3)));
+        assertNull(s3.requests.get(1).ifNoneMatch());
+    }
+
+    @Test
+    void directoryWhichCantBeOpenedIsOnlyTriedOnce() throws IOException {
+        Path file = Files.createFile(directory.resolve("not-a-directory"));
+
+        assertThrows(IOException.class, () -> SharedMetadataCache.open(file.toString(), 1024 * 1024));
+        assertNull(SharedMetadataCache.open(file.toString(), 1024 * 1024));
+    }
+
+    @Test
+    void downloadsWithoutACacheWhichCantBeOpened() throws Exception {
+        Path file = Files.createFile(directory.resolve("not-a-directory"));
+        s3.put("<metadata>1</metadata>", "\"v1\"");
+        S3Client client = new S3Client() {
+            @Override
+            public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+                return s3.apply(request);
+            }
+
+            @Override
+            public String serviceName() {
+                return "s3";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Map<String, Object> configuration = Map.of(
+            "sharedMetadataCache", true,
+            "sharedMetadataCacheDirectory", file.toString(),
+            "metadataCacheTtlSeconds", 0L
+        );
+
+        try (StubbedWagon stubbed = new StubbedWagon(client, "shared-cache-unusable", configuration)) {
+            for (int i = 0; i < 2; i++) {
+                Path destination = directory.resolve("maven-metadata-" + i + ".xml");
+                stubbed.wagon.get("com/example/maven-metadata.xml", destination.toFile());
+                assertEquals("<metadata>1</metadata>", Files.readString(destination));
+            }
+        }
+        assertEquals(2, s3.requests.size());
+    }
+
+    private static Map<String, Long> counts() {
+        return S3Metrics.getInstance().getSharedCacheCounts();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Holds one object, and answers GETs for it like S3 would.
+     */
+    private static final class Bucket
+        implements Function<GetObjectRequest, ResponseInputStream<GetObjectResponse>>
+    {
+        private final List<GetObjectRequest> requests = new ArrayList<>();
+        private byte[] content;
+        private String eTag;
+
+        void put(String content, String eTag) {
+            this.content = content.getBytes(StandardCharsets.UTF_8);
+            this.eTag = eTag;
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> apply(GetObjectRequest request) {
+            requests.add(request);
+            if (eTag.equals(request.ifNoneMatch())) {
+                throw S3Exception.builder().statusCode(304).build();
+            }
+            GetObjectResponse response = GetObjectResponse.builder()
+                .eTag(eTag)
+                .contentLength((long) content.length)
+                .build();
+            return new ResponseInputStream<>(response, AbortableInputStream.create(new ByteArrayInputStream(content)));
+        }
+    }
+}
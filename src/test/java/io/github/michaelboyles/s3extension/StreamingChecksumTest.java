@@ -0,0 +1,92 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StreamingChecksumTest {
+    @Test
+    void computesCrcs() {
+        assertEquals(crc(0xE3069283), checksum(ChecksumAlgorithm.CRC32_C, "123456789"));
+        assertEquals(crc(0xCBF43926), checksum(ChecksumAlgorithm.CRC32, "123456789"));
+    }
+
+    @Test
+    void computesDigests() {
+        assertEquals("qZk+NkcGgWq6PiVxeFDCbJzQ2J0=", checksum(ChecksumAlgorithm.SHA1, "abc"));
+        assertEquals("ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=", checksum(ChecksumAlgorithm.SHA256, "abc"));
+    }
+
+    @Test
+    void sameValueWhenFedInPieces() {
+        StreamingChecksum checksum = StreamingChecksum.of(ChecksumAlgorithm.CRC32_C);
+        byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+        checksum.progress(bytes, 0, 4);
+        checksum.progress(bytes, 4, 0);
+        checksum.progress(bytes, 4, 5);
+        assertEquals(crc(0xE3069283), checksum.value());
+    }
+
+    @Test
+    void skipsCompositeChecksumsOfMultipartUploads() {
+        GetObjectResponse response = GetObjectResponse.builder()
+            .checksumCRC32C("AAAAAA==-3")
+            .checksumSHA256("ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=")
+            .build();
+
+        StreamingChecksum.Expected expected = StreamingChecksum.forResponse(response);
+        assertEquals(ChecksumAlgorithm.SHA256, expected.checksum().algorithm());
+        assertEquals("ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=", expected.expectedValue());
+    }
+
+    @Test
+    void noExpectationWhenOnlyCompositeChecksums() {
+        GetObjectResponse response = GetObjectResponse.builder()
+            .checksumCRC32("AAAAAA==-2")
+            .checksumSHA1("qZk+NkcGgWq6PiVxeFDCbJzQ2J0=-2")
+            .build();
+
+        assertNull(StreamingChecksum.forResponse(response));
+        assertNull(StreamingChecksum.forResponse(GetObjectResponse.builder().build()));
+    }
+
+    @Test
+    void verifyFailsOnMismatch() throws Exception {
+        byte[] bytes = "abc".getBytes(StandardCharsets.US_ASCII);
+        var matching = StreamingChecksum.Expected.of(ChecksumAlgorithm.SHA1, "qZk+NkcGgWq6PiVxeFDCbJzQ2J0=");
+        matching.checksum().progress(bytes, 0, bytes.length);
+        matching.verify();
+
+        var mismatched = StreamingChecksum.Expected.of(ChecksumAlgorithm.SHA1, "qZk+NkcGgWq6PiVxeFDCbJzQ2J0=");
+        mismatched.checksum().progress(bytes, 0, 2);
+        assertThrows(StreamingChecksum.ChecksumMismatchException.class, mismatched::verify);
+    }
+
+    @Test
+    void parsesAlgorithm() {
+        assertEquals(ChecksumAlgorithm.CRC32_C, StreamingChecksum.parseAlgorithm(" crc32c "));
+        assertEquals(ChecksumAlgorithm.SHA256, StreamingChecksum.parseAlgorithm("SHA256"));
+        assertNull(StreamingChecksum.parseAlgorithm("none"));
+        assertNull(StreamingChecksum.parseAlgorithm(""));
+        assertThrows(IllegalArgumentException.class, () -> StreamingChecksum.parseAlgorithm("MD5"));
+    }
+
+    private static String checksum(ChecksumAlgorithm algorithm, String content) {
+        StreamingChecksum checksum = StreamingChecksum.of(algorithm);
+        byte[] bytes = content.getBytes(StandardCharsets.US_ASCII);
+        checksum.progress(bytes, 0, bytes.length);
+        return checksum.value();
+    }
+
+    private static String crc(int value) {
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt(value).array());
+    }
+}
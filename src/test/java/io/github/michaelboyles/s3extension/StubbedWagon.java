@@ -0,0 +1,54 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.repository.Repository;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+/**
+ * An {@link S3Wagon} connected to a stubbed client, rather than to S3. The client is registered under the key the
+ * wagon asks for, so the wagon leases it as it would a real one.
+ */
+final class StubbedWagon implements AutoCloseable {
+    final S3Wagon wagon = new S3Wagon();
+    private final S3ClientRegistry.Lease lease;
+
+    /**
+     * @param configuration server configuration, set on the wagon's fields like Maven sets it from settings.xml
+     */
+    StubbedWagon(S3Client s3, String bucket, Map<String, Object> configuration) throws Exception {
+        for (Map.Entry<String, Object> entry : configuration.entrySet()) {
+            Field field = field(entry.getKey());
+            field.setAccessible(true);
+            field.set(wagon, entry.getValue());
+        }
+        Repository repository = new Repository("test", "s3://" + bucket + "/repo");
+        S3ClientKey key = wagon.clientKey(repository, null, null);
+        this.lease = S3ClientRegistry.getInstance().acquire(key, () -> s3);
+        wagon.connect(repository);
+    }
+
+    private static Field field(String name) throws NoSuchFieldException {
+        for (Class<?> type = S3Wagon.class; type != null; type = type.getSuperclass()) {
+            try {
+                return type.getDeclaredField(name);
+            }
+            catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    @Override
+    public void close() throws ConnectionException {
+        try {
+            wagon.disconnect();
+        }
+        finally {
+            lease.release(0);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.github.michaelboyles.s3extension;
+
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransferProgressTest {
+    private static final int GRANULARITY = 64 * 1024;
+    /** Long enough that progress is only ever reported by size */
+    private static final Map<String, Object> BY_SIZE_ONLY = Map.of(
+        "progressGranularityBytes", GRANULARITY,
+        "progressIntervalMillis", 60_000L
+    );
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void downloadReportsEveryByteOnceInCoalescedChunks() throws Exception {
+        byte[] content = randomBytes(5 * GRANULARITY - 1000);
+        Recorder recorder = new Recorder();
+
+        try (StubbedWagon stubbed = new StubbedWagon(new Bucket(content), "progress-get", BY_SIZE_ONLY)) {
+            stubbed.wagon.addTransferListener(recorder);
+            stubbed.wagon.get("a.jar", directory.resolve("a.jar").toFile());
+        }
+
+        assertArrayEquals(content, recorder.bytes.toByteArray());
+        // read 1000 bytes at a time, but reported in chunks of the granularity, and then what's left
+        assertEquals(
+            List.of("initiated", "started", "progress", "progress", "progress", "progress", "progress", "completed"),
+            recorder.events
+        );
+        assertEquals(1, recorder.progressEvents.size());
+    }
+
+    @Test
+    void transferSmallerThanTheGranularityIsReportedBeforeItCompletes() throws Exception {
+        byte[] content = randomBytes(100);
+        Recorder recorder = new Recorder();
+
+        try (StubbedWagon stubbed = new StubbedWagon(new Bucket(content), "progress-small", BY_SIZE_ONLY)) {
+            stubbed.wagon.addTransferListener(recorder);
+            stubbed.wagon.get("a.pom", directory.resolve("a.pom").toFile());
+        }
+
+        assertArrayEquals(content, recorder.bytes.toByteArray());
+        assertEquals(List.of("initiated", "started", "progress", "completed"), recorder.events);
+    }
+
+    @Test
+    void retriedUploadReportsEveryByteOnce() throws Exception {
+        byte[] content = randomBytes(3 * GRANULARITY + 7);
+        Path file = directory.resolve("a.jar");
+        Files.write(file, content);
+        Recorder recorder = new Recorder();
+
+        try (StubbedWagon stubbed = new StubbedWagon(new Bucket(content), "progress-put", BY_SIZE_ONLY)) {
+            stubbed.wagon.addTransferListener(recorder);
+            stubbed.wagon.put(file.toFile(), "a.jar");
+        }
+
+        assertArrayEquals(content, recorder.bytes.toByteArray());
+        assertEquals(
+            List.of("initiated", "started", "progress", "progress", "progress", "progress", "completed"),
+            recorder.events
+        );
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static final class Recorder implements TransferListener {
+        private final List<String> events = new ArrayList<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        /** Distinct progress event objects, by identity */
+        private final Set<Integer> progressEvents = new HashSet<>();
+
+        @Override
+        public void transferInitiated(TransferEvent event) {
+            events.add("initiated");
+        }
+
+        @Override
+        public void transferStarted(TransferEvent event) {
+            events.add("started");
+        }
+
+        @Override
+        public void transferProgress(TransferEvent event, byte[] buffer, int length) {
+            events.add("progress");
+            progressEvents.add(System.identityHashCode(event));
+            bytes.write(buffer, 0, length);
+        }
+
+        @Override
+        public void transferCompleted(TransferEvent event) {
+            events.add("completed");
+        }
+
+        @Override
+        public void transferError(TransferEvent event) {
+            events.add("error");
+        }
+
+        @Override
+        public void debug(String message) {
+        }
+    }
+
+    /**
+     * Serves one object, a little at a time, and reads each upload twice, as the SDK does when it retries.
+     */
+    private static final class Bucket implements S3Client {
+        private final byte[] content;
+
+        Bucket(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            GetObjectResponse response = GetObjectResponse.builder().contentLength((long) content.length).build();
+            InputStream in = new ByteArrayInputStream(content) {
+                @Override
+                public synchronized int read(byte[] buffer, int offset, int length) {
+                    return super.read(buffer, offset, Math.min(length, 1000));
+                }
+            };
+            return new ResponseInputStream<>(response, AbortableInputStream.create(in));
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try (InputStream in = body.contentStreamProvider().newStream()) {
+                    in.readAllBytes();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return PutObjectResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
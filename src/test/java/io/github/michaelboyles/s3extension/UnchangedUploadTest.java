@@ -0,0 +1,214 @@
+package io.github.michaelboyles.s3extension;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
+import software.amazon.awssdk.services.s3.model.StorageClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UnchangedUploadTest {
+    private static final byte[] CONTENT = "<project/>".getBytes(StandardCharsets.UTF_8);
+    private static final long PART_SIZE = 8 * 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void skipsUnchangedContent() throws Exception {
+        StubClient s3 = new StubClient(stored().cacheControl("no-cache").build());
+
+        assertTrue(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, "no-cache", null));
+        assertTrue(s3.copies.isEmpty());
+    }
+
+    @Test
+    void uploadsChangedContent() throws Exception {
+        StubClient s3 = new StubClient(stored().build());
+        File file = file("<project></project>".getBytes(StandardCharsets.UTF_8));
+
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file, PART_SIZE, null, null));
+    }
+
+    @Test
+    void copyKeepsEverythingButTheCacheControl() throws Exception {
+        StubClient s3 = new StubClient(
+            stored()
+                .cacheControl("max-age=60")
+                .contentType("text/xml")
+                .contentEncoding("identity")
+                .metadata(Map.of("built-by", "ci"))
+                .storageClass(StorageClass.STANDARD_IA)
+                .serverSideEncryption(ServerSideEncryption.AWS_KMS)
+                .ssekmsKeyId("key")
+                .bucketKeyEnabled(true)
+                .build()
+        );
+
+        assertTrue(UnchangedUpload.skipIfUnchanged(
+            s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, "no-cache", ObjectCannedACL.PUBLIC_READ
+        ));
+        CopyObjectRequest copy = s3.copies.get(0);
+        assertEquals(MetadataDirective.REPLACE, copy.metadataDirective());
+        assertEquals("no-cache", copy.cacheControl());
+        assertEquals("text/xml", copy.contentType());
+        assertEquals("identity", copy.contentEncoding());
+        assertEquals(Map.of("built-by", "ci"), copy.metadata());
+        assertEquals(StorageClass.STANDARD_IA, copy.storageClass());
+        assertEquals(ServerSideEncryption.AWS_KMS, copy.serverSideEncryption());
+        assertEquals("key", copy.ssekmsKeyId());
+        assertEquals(true, copy.bucketKeyEnabled());
+        assertEquals(ObjectCannedACL.PUBLIC_READ, copy.acl());
+    }
+
+    @Test
+    void uploadsIfTheCopyFails() throws Exception {
+        StubClient s3 = new StubClient(stored().build());
+        s3.copyFailure = S3Exception.builder().statusCode(403).message("Access Denied").build();
+
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, "no-cache", null));
+    }
+
+    @Test
+    void uploadsIfTheHeadFails() throws Exception {
+        StubClient s3 = new StubClient(null);
+
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+        s3.headFailure = SdkClientException.create("Unable to execute HTTP request");
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+    }
+
+    @Test
+    void doesntCopyObjectsEncryptedWithACustomerKey() throws Exception {
+        StubClient s3 = new StubClient(stored().sseCustomerAlgorithm("AES256").build());
+
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, "no-cache", null));
+        assertTrue(s3.copies.isEmpty());
+    }
+
+    @Test
+    void matchingCrcDoesntMeanTheContentIsTheSame() throws Exception {
+        // S3 has different content, which happens to have the same CRC as the file
+        StubClient s3 = new StubClient(
+            stored()
+                .checksumCRC32C(crc32c(CONTENT))
+                .eTag("\"" + md5("<project></project>".getBytes(StandardCharsets.UTF_8)) + "\"")
+                .build()
+        );
+
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+    }
+
+    @Test
+    void objectWithOnlyACrcIsComparedByItsETag() throws Exception {
+        StubClient s3 = new StubClient(stored().checksumCRC32C(crc32c(CONTENT)).build());
+
+        assertTrue(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+        s3 = new StubClient(stored().checksumCRC32C(crc32c(CONTENT)).eTag("\"kms-encrypted\"").build());
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+    }
+
+    @Test
+    void trustsAStoredSha256() throws Exception {
+        String sha256 = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+        StubClient s3 = new StubClient(stored().checksumSHA256(sha256).eTag("\"kms-encrypted\"").build());
+
+        assertTrue(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+    }
+
+    @Test
+    void doesntTrustTheETagOfAMultipartUpload() throws Exception {
+        // what S3 would give a one-part multipart upload of the same content
+        String eTag = md5(MessageDigest.getInstance("MD5").digest(CONTENT)) + "-1";
+        StubClient s3 = new StubClient(stored().eTag("\"" + eTag + "\"").build());
+
+        assertFalse(UnchangedUpload.skipIfUnchanged(s3, "bucket", "a.pom", file(CONTENT), PART_SIZE, null, null));
+    }
+
+    private static String crc32c(byte[] content) {
+        StreamingChecksum checksum = StreamingChecksum.of(ChecksumAlgorithm.CRC32_C);
+        checksum.progress(content, 0, content.length);
+        return checksum.value();
+    }
+
+    private static String md5(byte[] content) throws Exception {
+        StringBuilder md5 = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+            md5.append(String.format("%02x", b));
+        }
+        return md5.toString();
+    }
+
+    private static HeadObjectResponse.Builder stored() throws Exception {
+        return HeadObjectResponse.builder()
+            .contentLength((long) CONTENT.length)
+            .eTag("\"" + md5(CONTENT) + "\"");
+    }
+
+    private File file(byte[] content) throws IOException {
+        Path path = directory.resolve("a.pom");
+        Files.write(path, content);
+        return path.toFile();
+    }
+
+    private static final class StubClient implements S3Client {
+        private final HeadObjectResponse stored;
+        private final List<CopyObjectRequest> copies = new ArrayList<>();
+        private RuntimeException headFailure;
+        private RuntimeException copyFailure;
+
+        /**
+         * @param stored what a HEAD of the object returns, or null if it doesn't exist
+         */
+        StubClient(HeadObjectResponse stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public HeadObjectResponse headObject(HeadObjectRequest request) {
+            if (headFailure != null) throw headFailure;
+            if (stored == null) throw NoSuchKeyException.builder().statusCode(404).build();
+            return stored;
+        }
+
+        @Override
+        public CopyObjectResponse copyObject(CopyObjectRequest request) {
+            if (copyFailure != null) throw copyFailure;
+            copies.add(request);
+            return CopyObjectResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}